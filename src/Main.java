@@ -1,14 +1,34 @@
 import cli.MainMenu;
+import exception.StorageException;
+import model.CentreAdministrator;
+import model.TreatmentType;
 import repository.AdminRepository;
+import repository.CachingRepository;
 import repository.ClinicianRepository;
+import repository.CommitLogs;
+import repository.IndexedPatientRepository;
+import repository.ListenableRepository;
 import repository.PatientRepository;
+import repository.PromotionRepository;
+import repository.Repository;
 import repository.TreatmentRepository;
 import repository.TreatmentTypeRepository;
+import service.AudienceIndex;
 import service.AuthService;
+import service.BalanceLedger;
+import service.CredentialDirectory;
+import service.FileNotifier;
 import service.PatientService;
+import service.PriceCatalogService;
+import service.PromotionDispatcher;
+import service.PromotionLogWriter;
+import service.PromotionScheduler;
 import service.TreatmentService;
 import service.PromotionService;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
 public class Main {
 
     public static void main(String[] args) {
@@ -21,28 +41,69 @@ public class Main {
         String treatmentEntriesCsv = basePath + "treatment_entries.csv";
         String treatmentTypeCsv = basePath + "treatment_types.csv";
         String promotionLogCsv = basePath + "promotion_log.csv";
+        String balanceCsv = basePath + "patient_balances.csv";
+        String promotionOutboxCsv = basePath + "promotion_outbox.csv";
+        String promotionCsv = basePath + "promotions.csv";
 
         // --- Instantiate repositories ---
-        PatientRepository patientRepository = new PatientRepository(patientCsv);
+        PatientRepository patientRepository = new IndexedPatientRepository(patientCsv);
         ClinicianRepository clinicianRepository = new ClinicianRepository(clinicianCsv);
-        AdminRepository adminRepository = new AdminRepository(adminCsv);
+        // small reference tables stay resident and write through to their files
+        ListenableRepository<CentreAdministrator> adminRepository = new CachingRepository<>(
+                new AdminRepository(adminCsv), adminCsv, AdminRepository.MAPPER);
         // pass BOTH CSV paths
         TreatmentRepository treatmentRepository =
                 new TreatmentRepository(treatmentCsv, treatmentEntriesCsv);
-        TreatmentTypeRepository treatmentTypeRepository = new TreatmentTypeRepository(treatmentTypeCsv);
+        Repository<TreatmentType> treatmentTypeRepository = new CachingRepository<>(
+                new TreatmentTypeRepository(treatmentTypeCsv), treatmentTypeCsv, TreatmentTypeRepository.MAPPER);
 
         // --- Instantiate services ---
-        AuthService authService =
-                new AuthService(patientRepository, clinicianRepository, adminRepository);
+        CredentialDirectory credentialDirectory =
+                new CredentialDirectory(patientRepository, clinicianRepository, adminRepository);
+        AuthService authService = new AuthService(patientRepository, clinicianRepository,
+                adminRepository, credentialDirectory);
         PatientService patientService = new PatientService(patientRepository);
+        PriceCatalogService priceCatalog = new PriceCatalogService(treatmentTypeRepository);
+        try {
+            priceCatalog.watch(Paths.get(treatmentTypeCsv));
+        } catch (IOException e) {
+            // prices still refresh on add/remove, just not on external edits
+            e.printStackTrace();
+        }
         TreatmentService treatmentService =
                 new TreatmentService(treatmentRepository, treatmentTypeRepository,
-                        patientRepository, clinicianRepository);
-        PromotionService promotionService =
-                new PromotionService(patientRepository, promotionLogCsv);
+                        patientRepository, clinicianRepository, priceCatalog,
+                        new BalanceLedger(treatmentRepository, balanceCsv));
+        PromotionScheduler promotionScheduler =
+                new PromotionScheduler(new PromotionRepository(promotionCsv));
+        try {
+            promotionScheduler.watch(Paths.get(promotionCsv));
+        } catch (IOException e) {
+            // promotions still start and end on their dates, just not on external edits
+            e.printStackTrace();
+        }
+        promotionScheduler.start();
+        PromotionLogWriter promotionLog;
+        try {
+            promotionLog = new PromotionLogWriter(promotionLogCsv);
+        } catch (StorageException e) {
+            System.out.println("Cannot open the promotion log: " + e.getMessage());
+            return;
+        }
+        PromotionService promotionService = new PromotionService(patientRepository,
+                new AudienceIndex(patientRepository, treatmentRepository),
+                new PromotionDispatcher(new FileNotifier(promotionOutboxCsv)), promotionLog,
+                promotionScheduler);
 
         // --- Start main menu ---
         MainMenu mainMenu = new MainMenu(authService, patientService, treatmentService, promotionService);
         mainMenu.start(); // loop until exit
+
+        // a clean exit leaves nothing to replay, so files edited while stopped are kept
+        try {
+            CommitLogs.checkpointAll();
+        } catch (StorageException e) {
+            System.out.println("Cannot checkpoint the data files: " + e.getMessage());
+        }
     }
 }
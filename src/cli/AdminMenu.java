@@ -6,18 +6,24 @@ import exception.UserNotFoundException;
 import model.CentreAdministrator;
 import model.Patient;
 import model.Treatment;
-import model.TreatmentStatus;
 import model.TreatmentType;
+import service.ActivityReport;
+import service.CostingSummary;
 import service.PatientService;
 import service.PromotionService;
 import service.TreatmentService;
 import model.Clinician;
 
 
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.List;
+import java.util.Map;
 
 public class AdminMenu {
 
+    private static final int PAGE_SIZE = 10;
+
     private final CentreAdministrator admin;
     private final PatientService patientService;
     private final TreatmentService treatmentService;
@@ -40,7 +46,7 @@ public class AdminMenu {
         boolean back = false;
         while (!back) {
             printMenu();
-            int choice = input.readInt("Choose an option: ", 1, 9);
+            int choice = input.readInt("Choose an option: ", 1, 12);
 
             switch (choice) {
                 case 1 -> registerWalkInPatient();
@@ -51,7 +57,10 @@ public class AdminMenu {
                 case 6 -> flagNonPayingPatient();
                 case 7 -> sendPromotions();
                 case 8 -> listAllTreatmentTypes();
-                case 9 -> back = true;
+                case 9 -> costAllAssessedTreatments();
+                case 10 -> viewTopDebtors();
+                case 11 -> viewActivityReport();
+                case 12 -> back = true;
             }
         }
     }
@@ -64,9 +73,12 @@ public class AdminMenu {
         System.out.println("4. Add treatment type");
         System.out.println("5. Remove treatment type");
         System.out.println("6. Flag non-paying patient");
-        System.out.println("7. Send promotions to registered patients (opt-in)");
+        System.out.println("7. Send promotions to a patient audience");
         System.out.println("8. List all treatment types");
-        System.out.println("9. Logout");
+        System.out.println("9. Cost all assessed treatments");
+        System.out.println("10. View patients with outstanding balances");
+        System.out.println("11. Revenue and throughput report");
+        System.out.println("12. Logout");
     }
 
     private void registerWalkInPatient() {
@@ -96,6 +108,10 @@ public class AdminMenu {
 
             // Ask service to suggest clinicians with that speciality
             var clinicians = treatmentService.findCliniciansBySpeciality(speciality);
+            if (clinicians.isEmpty()) {
+                // fall back to specialities starting with what was typed, e.g. "physio"
+                clinicians = treatmentService.findCliniciansBySpecialityPrefix(speciality);
+            }
 
             if (clinicians.isEmpty()) {
                 System.out.println("No clinician found with speciality: " + speciality);
@@ -136,21 +152,28 @@ public class AdminMenu {
     private void viewAndCostAssessedTreatments() {
         System.out.println("\n--- Assessed Treatments (Ready to Cost) ---");
         try {
-            List<Treatment> assessed = treatmentService.getTreatmentsByStatus(TreatmentStatus.TREATMENT_ASSESSED);
-            if (assessed.isEmpty()) {
-                System.out.println("No assessed treatments to cost.");
-                return;
+            System.out.println(treatmentService.countPendingCosting() + " treatment(s) waiting to be costed.");
+            Treatment after = null;
+            List<Treatment> assessed;
+            int choice;
+            while (true) {
+                assessed = treatmentService.getPendingCostingPage(after, PAGE_SIZE);
+                if (assessed.isEmpty()) {
+                    System.out.println(after == null ? "No assessed treatments to cost." : "No more assessed treatments.");
+                    return;
+                }
+                printPendingPage(assessed);
+                boolean more = assessed.size() == PAGE_SIZE;
+                if (more) {
+                    System.out.println((assessed.size() + 1) + ". Next page");
+                }
+                choice = input.readInt("Select treatment to cost (or 0 to cancel): ",
+                        0, more ? assessed.size() + 1 : assessed.size());
+                if (choice <= assessed.size()) {
+                    break;
+                }
+                after = assessed.get(assessed.size() - 1);
             }
-
-            for (int i = 0; i < assessed.size(); i++) {
-                Treatment t = assessed.get(i);
-                System.out.println((i + 1) + ". ID: " + t.getId()
-                        + ", Patient: " + t.getPatient().getName()
-                        + ", Clinician: " + t.getClinician().getName()
-                        + ", Current status: " + t.getStatus());
-            }
-
-            int choice = input.readInt("Select treatment to cost (or 0 to cancel): ", 0, assessed.size());
             if (choice == 0) return;
 
             Treatment selected = assessed.get(choice - 1);
@@ -165,6 +188,86 @@ public class AdminMenu {
         }
     }
 
+    private void printPendingPage(List<Treatment> assessed) {
+        for (int i = 0; i < assessed.size(); i++) {
+            Treatment t = assessed.get(i);
+            System.out.println((i + 1) + ". ID: " + t.getId()
+                    + ", Patient: " + (t.getPatient() != null ? t.getPatient().getName() : t.getPatientId())
+                    + ", Clinician: " + (t.getClinician() != null ? t.getClinician().getName() : t.getClinicianId())
+                    + ", Current status: " + t.getStatus());
+        }
+    }
+
+    private void costAllAssessedTreatments() {
+        System.out.println("\n--- Cost All Assessed Treatments ---");
+        try {
+            CostingSummary summary = treatmentService.costAllAssessed();
+            System.out.println("Treatments costed: " + summary.getCostedCount());
+            System.out.println("Total billed: " + summary.getTotal());
+            if (!summary.getFailures().isEmpty()) {
+                System.out.println("Left pending (" + summary.getFailures().size() + "):");
+                for (Map.Entry<String, String> failure : summary.getFailures().entrySet()) {
+                    System.out.println("  " + failure.getKey() + ": " + failure.getValue());
+                }
+            }
+        } catch (StorageException e) {
+            System.out.println("Error costing treatments: " + e.getMessage());
+        }
+    }
+
+    private void viewTopDebtors() {
+        System.out.println("\n--- Outstanding Balances ---");
+        try {
+            Map<String, Double> debtors = treatmentService.getTopDebtors(PAGE_SIZE);
+            if (debtors.isEmpty()) {
+                System.out.println("No outstanding balances.");
+                return;
+            }
+            int i = 1;
+            for (Map.Entry<String, Double> debtor : debtors.entrySet()) {
+                System.out.println(i++ + ". Patient ID: " + debtor.getKey()
+                        + " | Outstanding: " + debtor.getValue());
+            }
+        } catch (StorageException e) {
+            System.out.println("Error loading balances: " + e.getMessage());
+        }
+    }
+
+    private void viewActivityReport() {
+        System.out.println("\n--- Revenue and Throughput Report ---");
+        try {
+            LocalDate from = readReportDate("From date (yyyy-MM-dd, or 'all'): ");
+            LocalDate to = readReportDate("To date (yyyy-MM-dd, or 'all'): ");
+            ActivityReport report = treatmentService.getActivityReport(from, to);
+
+            printTotals("Overall", report.getOverall());
+            System.out.println("Treatments by status:");
+            report.getCountByStatus().forEach((status, count) ->
+                    System.out.println("  " + status + ": " + count));
+            System.out.println("Revenue by clinician:");
+            report.getByClinician().forEach((id, totals) -> printTotals("  " + id, totals));
+            System.out.println("Revenue by treatment type:");
+            report.getByTreatmentType().forEach((id, totals) -> printTotals("  " + id, totals));
+            System.out.println("Revenue by month:");
+            report.getByMonth().forEach((month, totals) -> printTotals("  " + month, totals));
+        } catch (StorageException e) {
+            System.out.println("Error building report: " + e.getMessage());
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            System.out.println("Invalid date range: " + e.getMessage());
+        }
+    }
+
+    private LocalDate readReportDate(String prompt) {
+        String value = input.readNonEmptyString(prompt);
+        return value.equalsIgnoreCase("all") ? null : LocalDate.parse(value);
+    }
+
+    private static void printTotals(String label, ActivityReport.Totals totals) {
+        System.out.println(label + " | Count: " + totals.getCount()
+                + " | Revenue: " + totals.getSum()
+                + " | Average: " + totals.getAverage());
+    }
+
     private void addTreatmentType() {
         System.out.println("\n--- Add Treatment Type ---");
         try {
@@ -205,14 +308,24 @@ public class AdminMenu {
     }
 
     private void sendPromotions() {
-        System.out.println("\n--- Send Promotions to Opt-in Patients ---");
-        String title = input.readNonEmptyString("Promotion title: ");
-        String message = input.readNonEmptyString("Promotion message: ");
+        System.out.println("\n--- Send Promotions ---");
+        System.out.println("Audience examples: optedIn AND registered AND NOT flaggedNonPaying,");
+        System.out.println("                   optedIn AND type(<treatment type id>, 90)");
+        String segment = input.readNonEmptyString("Audience (or 'optedIn'): ");
         try {
-            int count = promotionService.sendPromotionToOptInPatients(title, message);
+            int audience = promotionService.countSegment(segment);
+            if (!input.readYesNo("Send to " + audience + " patients?")) {
+                return;
+            }
+            String title = input.readNonEmptyString("Promotion title: ");
+            String message = input.readNonEmptyString("Promotion message: ");
+            int count = promotionService.sendPromotionToSegment(segment, title, message,
+                    processed -> System.out.println("  ...processed " + processed + " patients"));
             System.out.println("Promotion sen t to " + count + " patients.");
         } catch (StorageException e) {
             System.out.println("Error sending promotions: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid audience: " + e.getMessage());
         }
     }
 
@@ -56,7 +56,7 @@ public class ClinicianMenu {
             }
             for (Treatment t : treatments) {
                 System.out.println("ID: " + t.getId()
-                        + " | Patient: " + t.getPatient().getName()
+                        + " | Patient: " + (t.getPatient() != null ? t.getPatient().getName() : t.getPatientId())
                         + " | Status: " + t.getStatus());
             }
         } catch (StorageException e) {
@@ -76,7 +76,7 @@ public class ClinicianMenu {
             }
             for (Treatment t : treatments) {
                 System.out.println("ID: " + t.getId()
-                        + " | Patient: " + t.getPatient().getName()
+                        + " | Patient: " + (t.getPatient() != null ? t.getPatient().getName() : t.getPatientId())
                         + " | Status: " + t.getStatus());
             }
         } catch (StorageException e) {
@@ -98,7 +98,7 @@ public class ClinicianMenu {
             for (int i = 0; i < treatments.size(); i++) {
                 Treatment t = treatments.get(i);
                 System.out.println((i + 1) + ". ID: " + t.getId()
-                        + " | Patient: " + t.getPatient().getName());
+                        + " | Patient: " + (t.getPatient() != null ? t.getPatient().getName() : t.getPatientId()));
             }
 
             int choice = input.readInt("Select treatment to assess (or 0 to cancel): ", 0, treatments.size());
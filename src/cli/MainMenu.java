@@ -53,6 +53,12 @@ public class MainMenu {
                 }
             }
         }
+        try {
+            // write out promotion log rows that are still queued
+            promotionService.close();
+        } catch (StorageException e) {
+            System.out.println("Error closing promotion log: " + e.getMessage());
+        }
         scanner.close();
     }
 
@@ -3,6 +3,7 @@ package cli;
 import exception.StorageException;
 import model.Clinician;
 import model.Patient;
+import model.Promotion;
 import model.Treatment;
 import model.TreatmentType;
 import service.PatientService;
@@ -10,6 +11,7 @@ import service.PromotionService;
 import service.TreatmentService;
 
 import java.util.List;
+import java.util.Optional;
 
 public class PatientMenu {
 
@@ -52,6 +54,10 @@ public class PatientMenu {
         System.out.println("\n=== Patient Menu ===");
         System.out.println("Logged in as: " + patient.getName()
                 + " (registered: " + patient.isRegistered() + ")");
+        for (Promotion promotion : promotionService.getCurrentPromotions()) {
+            System.out.println("Offer: " + promotion.getTitle() + " - " + promotion.getMessage()
+                    + " (until " + promotion.getEndDate() + ")");
+        }
         System.out.println("1. Book treatment");
         System.out.println("2. Upgrade to registered");
         System.out.println("3. Manage notification preferences");
@@ -88,13 +94,13 @@ public class PatientMenu {
 
             int quantity = input.readInt("Quantity (e.g., sessions): ", 1, 20);
 
-            // For simplicity: let the system auto-select a clinician with matching speciality
-            List<Clinician> clinicians = treatmentService.findCliniciansBySpeciality(selectedType.getName());
-            if (clinicians.isEmpty()) {
+            // Auto-select the least busy clinician with matching speciality
+            Optional<Clinician> assigned = treatmentService.assignClinician(selectedType.getName());
+            if (assigned.isEmpty()) {
                 System.out.println("No clinician available for this treatment right now.");
                 return;
             }
-            Clinician clinician = clinicians.get(0);
+            Clinician clinician = assigned.get();
             System.out.println("Treatment will be assigned to clinician: " + clinician.getName());
 
             Treatment treatment = treatmentService.createNewTreatment(patient, clinician, selectedType, quantity);
@@ -143,7 +149,7 @@ public class PatientMenu {
             }
             for (Treatment t : treatments) {
                 System.out.println("ID: " + t.getId()
-                        + " | Clinician: " + t.getClinician().getName()
+                        + " | Clinician: " + (t.getClinician() != null ? t.getClinician().getName() : t.getClinicianId())
                         + " | Status: " + t.getStatus()
                         + " | Total (if costed): " + t.getTotalCost());
             }
@@ -156,17 +162,16 @@ public class PatientMenu {
         System.out.println("\n--- My Bills ---");
         try {
             List<Treatment> treatments = treatmentService.getTreatmentsForPatient(patient.getId());
-            double totalOutstanding = 0.0;
             for (Treatment t : treatments) {
                 if (t.isPaid()) continue;
                 if (t.getTotalCost() > 0) {
                     System.out.println("Treatment ID: " + t.getId()
                             + " | Status: " + t.getStatus()
                             + " | Amount due: " + t.getTotalCost());
-                    totalOutstanding += t.getTotalCost();
                 }
             }
-            System.out.println("Total outstanding: " + totalOutstanding);
+            System.out.println("Total outstanding: "
+                    + treatmentService.getOutstandingBalance(patient.getId()));
         } catch (StorageException e) {
             System.out.println("Error loading bills: " + e.getMessage());
         }
@@ -14,6 +14,8 @@ public class Treatment {
     private LocalDateTime createdAt;
     private double totalCost;
     private boolean paid;
+    // version of the price catalog the current total was computed against; 0 = never costed
+    private long pricedCatalogVersion;
     private List<TreatmentEntry> entries = new ArrayList<>();
     private Patient patient;
     private Clinician clinician;
@@ -134,6 +136,14 @@ public class Treatment {
         this.paid = paid;
     }
 
+    public long getPricedCatalogVersion() {
+        return pricedCatalogVersion;
+    }
+
+    public void setPricedCatalogVersion(long pricedCatalogVersion) {
+        this.pricedCatalogVersion = pricedCatalogVersion;
+    }
+
     public void recalculateTotal() {
         this.totalCost = entries.stream()
                 .mapToDouble(TreatmentEntry::getLineCost)
@@ -150,7 +160,8 @@ public class Treatment {
                 ", createdAt=" + createdAt +
                 ", totalCost=" + totalCost +
                 ", paid=" + paid +
+                ", pricedCatalogVersion=" + pricedCatalogVersion +
                 ", entries=" + entries +
                 '}';
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -8,9 +8,16 @@ import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-public class AdminRepository implements Repository<CentreAdministrator> {
+public class AdminRepository implements ListenableRepository<CentreAdministrator> {
+
+    /**
+     * Row mapping used by this repository, shared with alternative storage engines.
+     */
+    public static final EntityMapper<CentreAdministrator> MAPPER =
+            EntityMapper.of(CentreAdministrator::getId, AdminRepository::toCsv, AdminRepository::fromCsv);
 
     private final Path csvPath;
+    private final RepositoryListeners<CentreAdministrator> listeners = new RepositoryListeners<>();
 
     public AdminRepository(String filePath) {
         this.csvPath = Paths.get(filePath);
@@ -25,13 +32,29 @@ public class AdminRepository implements Repository<CentreAdministrator> {
 
                 // SEED - Create a default admin so project works immediately
                 String defaultAdmin = "admin001,Administrator,admin@mms.com,admin123";
-                Files.write(csvPath, List.of(defaultAdmin));
+                AtomicFiles.replace(csvPath, List.of(defaultAdmin));
             }
+            // finish any write a crash cut short before the file is read
+            AtomicFiles.recover(csvPath.toAbsolutePath().getParent());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    @Override
+    public void addListener(RepositoryListener<CentreAdministrator> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public long outsideChanges() throws StorageException {
+        try {
+            return FileChanges.outsideChanges(csvPath);
+        } catch (IOException e) {
+            throw new StorageException("Error reading admin file attributes", e);
+        }
+    }
+
     @Override
     public Optional<CentreAdministrator> findById(String id) throws StorageException {
         return findAll().stream()
@@ -50,13 +73,25 @@ public class AdminRepository implements Repository<CentreAdministrator> {
         try (Stream<String> lines = Files.lines(csvPath)) {
             return lines
                     .filter(l -> !l.isBlank())
-                    .map(this::fromCsv)
+                    .map(AdminRepository::fromCsv)
                     .collect(Collectors.toList());
         } catch (IOException e) {
             throw new StorageException("Error reading admin CSV", e);
         }
     }
 
+    @Override
+    public Stream<CentreAdministrator> stream() throws StorageException {
+        try {
+            // Files.lines closes the file when the returned stream is closed
+            return Files.lines(csvPath)
+                    .filter(line -> !line.isBlank())
+                    .map(AdminRepository::fromCsv);
+        } catch (IOException e) {
+            throw new StorageException("Error reading admin CSV", e);
+        }
+    }
+
     @Override
     public void save(CentreAdministrator admin) throws StorageException {
         try {
@@ -65,10 +100,11 @@ public class AdminRepository implements Repository<CentreAdministrator> {
             admins.add(admin);
 
             List<String> csvLines = admins.stream()
-                    .map(this::toCsv)
+                    .map(AdminRepository::toCsv)
                     .collect(Collectors.toList());
 
-            Files.write(csvPath, csvLines);
+            AtomicFiles.replace(csvPath, csvLines);
+            listeners.saved(admin);
         } catch (IOException e) {
             throw new StorageException("Error saving admin CSV", e);
         }
@@ -81,35 +117,78 @@ public class AdminRepository implements Repository<CentreAdministrator> {
             admins.removeIf(a -> a.getId().equals(id));
 
             List<String> csvLines = admins.stream()
-                    .map(this::toCsv)
+                    .map(AdminRepository::toCsv)
+                    .collect(Collectors.toList());
+
+            AtomicFiles.replace(csvPath, csvLines);
+            listeners.deleted(id);
+        } catch (IOException e) {
+            throw new StorageException("Error deleting admin", e);
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<CentreAdministrator> batch) throws StorageException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            // later duplicates win, as if saved one by one
+            Map<String, CentreAdministrator> byId = new LinkedHashMap<>();
+            for (CentreAdministrator a : batch) {
+                byId.remove(a.getId());
+                byId.put(a.getId(), a);
+            }
+            List<CentreAdministrator> admins = findAll();
+            admins.removeIf(a -> byId.containsKey(a.getId()));
+            admins.addAll(byId.values());
+
+            List<String> csvLines = admins.stream()
+                    .map(AdminRepository::toCsv)
                     .collect(Collectors.toList());
+            AtomicFiles.replace(csvPath, csvLines);
+            listeners.savedAll(byId.values());
+        } catch (IOException e) {
+            throw new StorageException("Error saving admin CSV", e);
+        }
+    }
 
-            Files.write(csvPath, csvLines);
+    @Override
+    public void deleteAll(Collection<String> ids) throws StorageException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            Set<String> toDelete = new HashSet<>(ids);
+            List<CentreAdministrator> admins = findAll();
+            admins.removeIf(a -> toDelete.contains(a.getId()));
+
+            List<String> csvLines = admins.stream()
+                    .map(AdminRepository::toCsv)
+                    .collect(Collectors.toList());
+            AtomicFiles.replace(csvPath, csvLines);
+            listeners.deletedAll(toDelete);
         } catch (IOException e) {
             throw new StorageException("Error deleting admin", e);
         }
     }
 
-    private CentreAdministrator fromCsv(String line) {
-        String[] parts = line.split(",", -1);
-        String id = parts[0];
-        String name = parts[1];
-        String email = parts[2];
-        String password = parts[3];
+    private static CentreAdministrator fromCsv(String line) {
+        CsvCodec.Row row = CsvCodec.row(line);
+        String id = row.next();
+        String name = row.next();
+        String email = row.next();
+        String password = row.next();
 
         return new CentreAdministrator(id, name, email, password);
     }
 
-    private String toCsv(CentreAdministrator admin) {
-        return String.join(",",
-                safe(admin.getId()),
-                safe(admin.getName()),
-                safe(admin.getEmail()),
-                safe(admin.getPassword())
+    private static String toCsv(CentreAdministrator admin) {
+        return CsvCodec.join(
+                admin.getId(),
+                admin.getName(),
+                admin.getEmail(),
+                admin.getPassword()
         );
     }
-
-    private String safe(String s) {
-        return s == null ? "" : s.replace(",", " ");
-    }
 }
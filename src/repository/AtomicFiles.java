@@ -0,0 +1,83 @@
+package repository;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Replaces one or more files as a single durable change.
+ * <p>
+ * Every new content is written to a temp file beside its target first. The change is
+ * then committed through the directory's {@link CommitLog}: once its record is on disk
+ * the temps are renamed over their targets. A crash before the record is forced leaves
+ * every target untouched; a crash after it is repaired by replaying the log the next time
+ * a repository in that directory is opened. Either way readers never see one file of the
+ * set changed without the others, and a write that returned is never lost.
+ */
+final class AtomicFiles {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * New lines for one file.
+     */
+    static final class Write {
+        final Path path;
+        final List<String> lines;
+
+        Write(Path path, List<String> lines) {
+            this.path = path;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * Drop-in for {@code Files.write(path, lines)} that is atomic and durable.
+     */
+    static void replace(Path path, List<String> lines) throws IOException {
+        replaceAll(List.of(new Write(path, lines)));
+    }
+
+    static void replaceAll(List<Write> writes) throws IOException {
+        if (writes.isEmpty()) {
+            return;
+        }
+        Map<Path, Path> tempByTarget = new LinkedHashMap<>();
+        Map<Path, byte[]> contents = new LinkedHashMap<>();
+        try {
+            for (Write write : writes) {
+                Path target = write.path.toAbsolutePath().normalize();
+                if (tempByTarget.containsKey(target)) {
+                    throw new IllegalArgumentException("File written twice in one commit: " + target);
+                }
+                byte[] content = CommitLog.toBytes(write.lines);
+                Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), TEMP_SUFFIX);
+                tempByTarget.put(target, temp);
+                contents.put(target, content);
+                CommitLog.copyPermissions(target, temp);
+                Files.write(temp, content);
+            }
+        } catch (IOException | RuntimeException e) {
+            // nothing committed: the targets are untouched, drop what was staged
+            for (Path temp : tempByTarget.values()) {
+                Files.deleteIfExists(temp);
+            }
+            throw e;
+        }
+        Path first = tempByTarget.keySet().iterator().next();
+        CommitLog.forDirectory(first.getParent()).commit(tempByTarget, contents);
+    }
+
+    /**
+     * Writes back every change the directory's commit log holds from before a crash. Only
+     * the first call for a directory in a process does any work.
+     */
+    static void recover(Path directory) throws IOException {
+        if (Files.isDirectory(directory)) {
+            CommitLog.forDirectory(directory);
+        }
+    }
+}
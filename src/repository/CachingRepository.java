@@ -0,0 +1,205 @@
+package repository;
+
+import exception.StorageException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Write-through cache in front of another repository, for small reference tables that are
+ * read far more often than they change.
+ * <p>
+ * The whole table is kept in memory as CSV rows and every read hands out freshly parsed
+ * entities, so callers cannot change the cached copy by mutating a result. Before each
+ * operation the backing file's modification time and size are compared with the values
+ * recorded at load time; if either differs the file was edited outside this instance
+ * and the table is reloaded. Writes go to the delegate first and are then applied to the
+ * resident table, and reported to listeners registered on this instance.
+ */
+public class CachingRepository<T> implements ListenableRepository<T> {
+
+    private final Repository<T> delegate;
+    private final Path csvPath;
+    private final EntityMapper<T> mapper;
+    private final RepositoryListeners<T> listeners = new RepositoryListeners<>();
+
+    // id -> CSV row, in file order; null until the first read or after an invalidation
+    private Map<String, String> rows;
+    private FileTime loadedModified;
+    private long loadedSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CachingRepository(Repository<T> delegate, String filePath, EntityMapper<T> mapper) {
+        this.delegate = delegate;
+        this.csvPath = Paths.get(filePath);
+        this.mapper = mapper;
+    }
+
+    @Override
+    public void addListener(RepositoryListener<T> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public long outsideChanges() throws StorageException {
+        try {
+            return FileChanges.outsideChanges(csvPath);
+        } catch (IOException e) {
+            throw new StorageException("Error reading data file attributes", e);
+        }
+    }
+
+    @Override
+    public synchronized Optional<T> findById(String id) throws StorageException {
+        String row = table().get(id);
+        return row == null ? Optional.empty() : Optional.of(mapper.fromCsv(row));
+    }
+
+    @Override
+    public synchronized List<T> findAll() throws StorageException {
+        return table().values().stream()
+                .map(mapper::fromCsv)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Streams a snapshot of the resident table; no file is held open.
+     */
+    @Override
+    public synchronized Stream<T> stream() throws StorageException {
+        return new ArrayList<>(table().values()).stream().map(mapper::fromCsv);
+    }
+
+    @Override
+    public synchronized void save(T entity) throws StorageException {
+        boolean fresh = isFresh();
+        delegate.save(entity);
+        if (fresh) {
+            String id = mapper.idOf(entity);
+            rows.remove(id);
+            rows.put(id, mapper.toCsv(entity));
+            stamp();
+        } else {
+            rows = null;
+        }
+        listeners.saved(entity);
+    }
+
+    @Override
+    public synchronized void delete(String id) throws StorageException {
+        boolean fresh = isFresh();
+        delegate.delete(id);
+        if (fresh) {
+            rows.remove(id);
+            stamp();
+        } else {
+            rows = null;
+        }
+        listeners.deleted(id);
+    }
+
+    @Override
+    public synchronized void saveAll(Collection<T> entities) throws StorageException {
+        if (entities.isEmpty()) {
+            return;
+        }
+        boolean fresh = isFresh();
+        delegate.saveAll(entities);
+        if (fresh) {
+            for (T entity : entities) {
+                String id = mapper.idOf(entity);
+                rows.remove(id);
+                rows.put(id, mapper.toCsv(entity));
+            }
+            stamp();
+        } else {
+            rows = null;
+        }
+        listeners.savedAll(entities);
+    }
+
+    @Override
+    public synchronized void deleteAll(Collection<String> ids) throws StorageException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        boolean fresh = isFresh();
+        delegate.deleteAll(ids);
+        if (fresh) {
+            ids.forEach(rows::remove);
+            stamp();
+        } else {
+            rows = null;
+        }
+        listeners.deletedAll(ids);
+    }
+
+    /**
+     * Reads answered from the resident table.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Reads that had to (re)load the table from the delegate.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Drops the resident table; the next read reloads it.
+     */
+    public synchronized void invalidate() {
+        rows = null;
+    }
+
+    private Map<String, String> table() throws StorageException {
+        if (isFresh()) {
+            hits.incrementAndGet();
+            return rows;
+        }
+        misses.incrementAndGet();
+        // stamp before reading so an edit that races the load is seen by the next check
+        stamp();
+        Map<String, String> loaded = new LinkedHashMap<>();
+        for (T entity : delegate.findAll()) {
+            loaded.put(mapper.idOf(entity), mapper.toCsv(entity));
+        }
+        rows = loaded;
+        return rows;
+    }
+
+    private boolean isFresh() throws StorageException {
+        if (rows == null) {
+            return false;
+        }
+        BasicFileAttributes attributes = attributes();
+        return attributes.lastModifiedTime().equals(loadedModified) && attributes.size() == loadedSize;
+    }
+
+    private void stamp() throws StorageException {
+        BasicFileAttributes attributes = attributes();
+        loadedModified = attributes.lastModifiedTime();
+        loadedSize = attributes.size();
+    }
+
+    private BasicFileAttributes attributes() throws StorageException {
+        try {
+            return Files.readAttributes(csvPath, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new StorageException("Error checking " + csvPath.getFileName() + " for changes", e);
+        }
+    }
+}
@@ -5,14 +5,33 @@ import model.Clinician;
 
 import java.io.IOException;
 import java.nio.file.*;
-import java.util.List;
-import java.util.Optional;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-public class ClinicianRepository implements Repository<Clinician> {
+/**
+ * CSV-based repository for Clinician entities.
+ * Speciality lookups are answered from an in-memory index keyed by normalized speciality
+ * (trimmed, lower-case). The index is rebuilt after each write through this repository and
+ * whenever the file's modification time or size shows it was edited elsewhere.
+ */
+public class ClinicianRepository implements ListenableRepository<Clinician> {
+
+    /**
+     * Row mapping used by this repository, shared with alternative storage engines.
+     */
+    public static final EntityMapper<Clinician> MAPPER =
+            EntityMapper.of(Clinician::getId, ClinicianRepository::toCsv, ClinicianRepository::fromCsv);
 
     private final Path csvPath;
+    private final RepositoryListeners<Clinician> listeners = new RepositoryListeners<>();
+
+    // normalized speciality -> clinicians, sorted so prefix lookups are a sub-map
+    private TreeMap<String, Speciality> specialities;
+    private FileTime indexedModified;
+    private long indexedSize;
 
     public ClinicianRepository(String filePath) {
         this.csvPath = Paths.get(filePath);
@@ -25,17 +44,33 @@ public class ClinicianRepository implements Repository<Clinician> {
                 Files.createDirectories(csvPath.getParent());
                 Files.createFile(csvPath);
             }
+            // finish any write a crash cut short before the file is read
+            AtomicFiles.recover(csvPath.toAbsolutePath().getParent());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    @Override
+    public void addListener(RepositoryListener<Clinician> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public long outsideChanges() throws StorageException {
+        try {
+            return FileChanges.outsideChanges(csvPath);
+        } catch (IOException e) {
+            throw new StorageException("Error reading clinician data", e);
+        }
+    }
+
     @Override
     public Optional<Clinician> findById(String id) throws StorageException {
         try (Stream<String> lines = Files.lines(csvPath)) {
             return lines
                     .filter(line -> !line.isBlank())
-                    .map(this::fromCsv)
+                    .map(ClinicianRepository::fromCsv)
                     .filter(c -> c.getId().equals(id))
                     .findFirst();
         } catch (IOException e) {
@@ -47,7 +82,7 @@ public class ClinicianRepository implements Repository<Clinician> {
         try (Stream<String> lines = Files.lines(csvPath)) {
             return lines
                     .filter(line -> !line.isBlank())
-                    .map(this::fromCsv)
+                    .map(ClinicianRepository::fromCsv)
                     .filter(c -> c.getEmail().equalsIgnoreCase(email))
                     .findFirst();
         } catch (IOException e) {
@@ -55,12 +90,51 @@ public class ClinicianRepository implements Repository<Clinician> {
         }
     }
 
-    public List<Clinician> findBySpeciality(String speciality) throws StorageException {
+    /**
+     * Clinicians whose speciality matches, ignoring case and surrounding spaces, in file order.
+     */
+    public synchronized List<Clinician> findBySpeciality(String speciality) throws StorageException {
+        if (speciality == null) {
+            return new ArrayList<>();
+        }
+        Speciality match = specialityIndex().get(normalize(speciality));
+        return match == null ? new ArrayList<>() : copies(match.clinicians.values());
+    }
+
+    /**
+     * Clinicians whose speciality starts with the prefix (case-insensitive),
+     * ordered by speciality and then file order.
+     */
+    public synchronized List<Clinician> findBySpecialityPrefix(String prefix) throws StorageException {
+        if (prefix == null) {
+            return new ArrayList<>();
+        }
+        String from = normalize(prefix);
+        List<Clinician> matches = new ArrayList<>();
+        for (Speciality s : specialityIndex().subMap(from, true, from + Character.MAX_VALUE, false).values()) {
+            matches.addAll(copies(s.clinicians.values()));
+        }
+        return matches;
+    }
+
+    /**
+     * Number of clinicians per speciality, keyed by the first spelling found in the file
+     * and ordered case-insensitively.
+     */
+    public synchronized Map<String, Integer> countBySpeciality() throws StorageException {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (Speciality s : specialityIndex().values()) {
+            counts.put(s.displayName, s.clinicians.size());
+        }
+        return counts;
+    }
+
+    @Override
+    public List<Clinician> findAll() throws StorageException {
         try (Stream<String> lines = Files.lines(csvPath)) {
             return lines
                     .filter(line -> !line.isBlank())
-                    .map(this::fromCsv)
-                    .filter(c -> c.getSpeciality().equalsIgnoreCase(speciality))
+                    .map(ClinicianRepository::fromCsv)
                     .collect(Collectors.toList());
         } catch (IOException e) {
             throw new StorageException("Error reading clinician data", e);
@@ -68,12 +142,12 @@ public class ClinicianRepository implements Repository<Clinician> {
     }
 
     @Override
-    public List<Clinician> findAll() throws StorageException {
-        try (Stream<String> lines = Files.lines(csvPath)) {
-            return lines
+    public Stream<Clinician> stream() throws StorageException {
+        try {
+            // Files.lines closes the file when the returned stream is closed
+            return Files.lines(csvPath)
                     .filter(line -> !line.isBlank())
-                    .map(this::fromCsv)
-                    .collect(Collectors.toList());
+                    .map(ClinicianRepository::fromCsv);
         } catch (IOException e) {
             throw new StorageException("Error reading clinician data", e);
         }
@@ -87,9 +161,11 @@ public class ClinicianRepository implements Repository<Clinician> {
             clinicians.add(clinician);
 
             List<String> csvLines = clinicians.stream()
-                    .map(this::toCsv)
+                    .map(ClinicianRepository::toCsv)
                     .collect(Collectors.toList());
-            Files.write(csvPath, csvLines);
+            AtomicFiles.replace(csvPath, csvLines);
+            indexSpecialities(clinicians);
+            listeners.saved(clinician);
         } catch (IOException e) {
             throw new StorageException("Error writing clinician data", e);
         }
@@ -102,36 +178,144 @@ public class ClinicianRepository implements Repository<Clinician> {
             clinicians.removeIf(c -> c.getId().equals(id));
 
             List<String> csvLines = clinicians.stream()
-                    .map(this::toCsv)
+                    .map(ClinicianRepository::toCsv)
                     .collect(Collectors.toList());
-            Files.write(csvPath, csvLines);
+            AtomicFiles.replace(csvPath, csvLines);
+            indexSpecialities(clinicians);
+            listeners.deleted(id);
         } catch (IOException e) {
             throw new StorageException("Error deleting clinician data", e);
         }
     }
 
-    private Clinician fromCsv(String line) {
-        String[] parts = line.split(",", -1);
-        String id = parts[0];
-        String name = parts[1];
-        String email = parts[2];
-        String password = parts[3];
-        String speciality = parts[4];
+    @Override
+    public void saveAll(Collection<Clinician> batch) throws StorageException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            // later duplicates win, as if saved one by one
+            Map<String, Clinician> byId = new LinkedHashMap<>();
+            for (Clinician c : batch) {
+                byId.remove(c.getId());
+                byId.put(c.getId(), c);
+            }
+            List<Clinician> clinicians = findAll();
+            clinicians.removeIf(c -> byId.containsKey(c.getId()));
+            clinicians.addAll(byId.values());
 
-        return new Clinician(id, name, email, password, speciality);
+            List<String> csvLines = clinicians.stream()
+                    .map(ClinicianRepository::toCsv)
+                    .collect(Collectors.toList());
+            AtomicFiles.replace(csvPath, csvLines);
+            indexSpecialities(clinicians);
+            listeners.savedAll(byId.values());
+        } catch (IOException e) {
+            throw new StorageException("Error writing clinician data", e);
+        }
     }
 
-    private String toCsv(Clinician c) {
-        return String.join(",",
-                safe(c.getId()),
-                safe(c.getName()),
-                safe(c.getEmail()),
-                safe(c.getPassword()),
-                safe(c.getSpeciality())
-        );
+    @Override
+    public void deleteAll(Collection<String> ids) throws StorageException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            Set<String> toDelete = new HashSet<>(ids);
+            List<Clinician> clinicians = findAll();
+            clinicians.removeIf(c -> toDelete.contains(c.getId()));
+
+            List<String> csvLines = clinicians.stream()
+                    .map(ClinicianRepository::toCsv)
+                    .collect(Collectors.toList());
+            AtomicFiles.replace(csvPath, csvLines);
+            indexSpecialities(clinicians);
+            listeners.deletedAll(toDelete);
+        } catch (IOException e) {
+            throw new StorageException("Error deleting clinician data", e);
+        }
+    }
+
+    private synchronized TreeMap<String, Speciality> specialityIndex() throws StorageException {
+        BasicFileAttributes attributes = attributes();
+        if (specialities == null
+                || !attributes.lastModifiedTime().equals(indexedModified)
+                || attributes.size() != indexedSize) {
+            build(findAll(), attributes);
+        }
+        return specialities;
+    }
+
+    // Called with the rows just written, so a write does not need a re-read to refresh the index.
+    private synchronized void indexSpecialities(List<Clinician> clinicians) throws StorageException {
+        build(clinicians, attributes());
+    }
+
+    private void build(List<Clinician> clinicians, BasicFileAttributes attributes) {
+        TreeMap<String, Speciality> index = new TreeMap<>();
+        for (Clinician c : clinicians) {
+            String speciality = c.getSpeciality() == null ? "" : c.getSpeciality();
+            index.computeIfAbsent(normalize(speciality), k -> new Speciality(speciality.trim()))
+                    .clinicians.putIfAbsent(c.getId(), copy(c));
+        }
+        specialities = index;
+        indexedModified = attributes.lastModifiedTime();
+        indexedSize = attributes.size();
+    }
+
+    private BasicFileAttributes attributes() throws StorageException {
+        try {
+            return Files.readAttributes(csvPath, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new StorageException("Error reading clinician data", e);
+        }
+    }
+
+    private static String normalize(String speciality) {
+        return speciality.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static List<Clinician> copies(Collection<Clinician> clinicians) {
+        List<Clinician> result = new ArrayList<>(clinicians.size());
+        for (Clinician c : clinicians) {
+            result.add(copy(c));
+        }
+        return result;
+    }
+
+    // index entries are handed out as copies so callers cannot change them in place
+    private static Clinician copy(Clinician c) {
+        return new Clinician(c.getId(), c.getName(), c.getEmail(), c.getPassword(), c.getSpeciality());
+    }
+
+    private static final class Speciality {
+        private final String displayName;
+        // first row per id wins, same as findById
+        private final Map<String, Clinician> clinicians = new LinkedHashMap<>();
+
+        private Speciality(String displayName) {
+            this.displayName = displayName;
+        }
     }
 
-    private String safe(String s) {
-        return s == null ? "" : s.replace(",", " ");
+    private static Clinician fromCsv(String line) {
+        CsvCodec.Row row = CsvCodec.row(line);
+        String id = row.next();
+        String name = row.next();
+        String email = row.next();
+        String password = row.next();
+        String speciality = row.next();
+
+        return new Clinician(id, name, email, password, speciality);
+    }
+
+    private static String toCsv(Clinician c) {
+        return CsvCodec.join(
+                c.getId(),
+                c.getName(),
+                c.getEmail(),
+                c.getPassword(),
+                c.getSpeciality()
+        );
     }
 }
@@ -0,0 +1,590 @@
+package repository;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Group-committed redo log that makes file replacements durable.
+ * <p>
+ * Each data directory has one {@code commit.log}. A commit appends one record holding the
+ * full new content of every file it replaces, and only returns once the record has been
+ * forced to disk; the renames that make the change visible happen after that. Writers
+ * that arrive while a force is in progress queue up, and the next one through takes the
+ * whole queue as a batch: one write and one {@code force()} for the batch, after which it
+ * applies every commit's renames in order and releases all the waiting callers. Under
+ * concurrent saves the cost of a flush is shared by everyone in the batch.
+ * <p>
+ * The data files themselves are not forced per commit. Once the log passes
+ * {@value #CHECKPOINT_RATIO} times the current size of the files changed since the last
+ * checkpoint (and at least {@value #CHECKPOINT_BYTES} bytes), those files and their
+ * directories are forced and the log is truncated. Records hold whole files, so the log
+ * costs a second write of everything saved; scaling the threshold with the files keeps
+ * the cost of a checkpoint, which forces every one of them, to a fixed share of that
+ * however large they get, and bounds the log at that multiple of the data. A rename that
+ * fails after its record is forced does not fail the commit, which is durable from then
+ * on: it is retried from the logged content on every later flush, and the log is not
+ * truncated until it succeeds or a newer commit replaces that file. A failed checkpoint
+ * is retried before the next batch is logged, and fails that batch if it fails again.
+ * The first time a directory's log is opened in a process it is replayed, so every
+ * commit that was acknowledged before a crash or power loss is written back; a torn
+ * record at the end (one whose force never completed) is ignored.
+ * <p>
+ * Each file in a record also carries the CRC-32 of the content it replaces, so a replay
+ * can tell what a file on disk is: the last logged content (already applied, left alone),
+ * the content some logged commit started from (a rename the crash lost, rewritten), or
+ * neither. Neither means the file was edited after the log last touched it, and the edit
+ * is kept; a file that is missing or cannot be read gets the logged content back.
+ * {@link #checkpointAll()}, run on a clean shutdown, empties every log, so after
+ * one nothing is replayed at all.
+ */
+final class CommitLog {
+
+    static final String FILE_NAME = "commit.log";
+    private static final int RECORD_MAGIC = 0x434d4954;
+    private static final long CHECKPOINT_BYTES = 1 << 20;
+    private static final int CHECKPOINT_RATIO = 4;
+    // stand for a missing and an unreadable file where a content CRC is expected; CRC-32
+    // values are never negative
+    private static final long MISSING = -1;
+    private static final long UNREADABLE = -2;
+
+    // one log per directory for the whole process; replayed when first opened
+    private static final Map<Path, CommitLog> OPEN = new HashMap<>();
+
+    private final Path directory;
+    private final Path logPath;
+
+    // guarded by this
+    private List<Pending> queue = new ArrayList<>();
+    private boolean flushing;
+
+    // only touched by the thread holding the flush
+    // file changed since the last checkpoint -> size of its latest content
+    private final Map<Path, Long> dirtySinceCheckpoint = new LinkedHashMap<>();
+    private long dirtyBytes;
+    private long logSize;
+    // logged changes whose rename failed, by target; the log must survive until they are applied
+    private final Map<Path, Unapplied> unapplied = new LinkedHashMap<>();
+    // why the last checkpoint failed; retried before the next batch is logged
+    private IOException checkpointFailure;
+
+    // target -> CRC of the content it holds once the commits logged so far are applied, and
+    // its outside change count when that was taken; guarded by itself
+    private final Map<Path, Known> known = new HashMap<>();
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong forces = new AtomicLong();
+    private final AtomicLong checkpoints = new AtomicLong();
+
+    private CommitLog(Path directory) {
+        this.directory = directory;
+        this.logPath = directory.resolve(FILE_NAME);
+    }
+
+    static CommitLog forDirectory(Path directory) throws IOException {
+        Path key = directory.toAbsolutePath().normalize();
+        synchronized (OPEN) {
+            CommitLog log = OPEN.get(key);
+            if (log == null) {
+                log = new CommitLog(key);
+                log.replay();
+                OPEN.put(key, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * Logs the new contents, waits until the record is on disk, then moves each staged
+     * temp over its target.
+     *
+     * @param tempByTarget absolute target path to the temp file already holding its content
+     * @param contents     absolute target path to the bytes written to the temp
+     * A rename that fails once the record is forced is not reported: the change is durable
+     * and is applied by a later flush, the clean-shutdown checkpoint or the next replay,
+     * until which the target still shows its old content.
+     *
+     * @throws IOException if the record could not be forced, in which case the temps are
+     *                     deleted and nothing changed
+     */
+    void commit(Map<Path, Path> tempByTarget, Map<Path, byte[]> contents) throws IOException {
+        Pending mine = new Pending(encode(contents), tempByTarget, contents);
+        commits.incrementAndGet();
+        List<Pending> batch;
+        boolean interrupted = false;
+        synchronized (this) {
+            queue.add(mine);
+            while (flushing && !mine.done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // a logged commit must not be abandoned half way; keep waiting
+                    interrupted = true;
+                }
+            }
+            if (mine.done) {
+                batch = null;
+            } else {
+                flushing = true;
+                batch = queue;
+                queue = new ArrayList<>();
+            }
+        }
+        if (batch != null) {
+            flush(batch);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mine.failure != null) {
+            throw new IOException("Error committing file changes", mine.failure);
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        batches.incrementAndGet();
+        retryUnapplied();
+        IOException logFailure = null;
+        if (checkpointFailure != null && unapplied.isEmpty()) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                logFailure = new IOException("Error checkpointing commit log", e);
+            }
+        }
+        if (logFailure == null) {
+            try {
+                append(batch);
+            } catch (IOException e) {
+                logFailure = e;
+            }
+        }
+        for (Pending p : batch) {
+            if (logFailure != null) {
+                p.failure = logFailure;
+                for (Path temp : p.tempByTarget.values()) {
+                    deleteQuietly(temp);
+                }
+                // the targets keep their old content, so what encode assumed no longer holds
+                synchronized (known) {
+                    known.keySet().removeAll(p.contents.keySet());
+                }
+                continue;
+            }
+            for (Map.Entry<Path, Path> e : p.tempByTarget.entrySet()) {
+                Path target = e.getKey();
+                byte[] content = p.contents.get(target);
+                Unapplied replaced;
+                try {
+                    FileChanges.replacing(target);
+                    moveIfPresent(e.getValue(), target);
+                    FileChanges.replaced(target);
+                    replaced = unapplied.remove(target);
+                } catch (IOException ex) {
+                    // logged, so the commit stands; the rename is retried until it succeeds
+                    replaced = unapplied.put(target, new Unapplied(e.getValue(), content));
+                }
+                // an older failed rename of the same file is superseded by this content
+                if (replaced != null) {
+                    deleteQuietly(replaced.temp);
+                }
+                markDirty(target, content.length);
+            }
+        }
+        if (logFailure == null && unapplied.isEmpty()
+                && logSize >= Math.max(CHECKPOINT_BYTES, CHECKPOINT_RATIO * dirtyBytes)) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                // the log still holds every change; retried, and reported if it fails again,
+                // before the next batch is logged
+                checkpointFailure = e;
+            }
+        }
+        synchronized (this) {
+            for (Pending p : batch) {
+                p.done = true;
+            }
+            flushing = false;
+            notifyAll();
+        }
+    }
+
+    private void append(List<Pending> batch) throws IOException {
+        ByteBuffer[] records = new ByteBuffer[batch.size()];
+        long total = 0;
+        for (int i = 0; i < records.length; i++) {
+            records[i] = ByteBuffer.wrap(batch.get(i).record);
+            total += records[i].remaining();
+        }
+        try (FileChannel channel = FileChannel.open(logPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            try {
+                long written = 0;
+                while (written < total) {
+                    written += channel.write(records);
+                }
+                // the one force this batch pays for
+                channel.force(false);
+                forces.incrementAndGet();
+            } catch (IOException e) {
+                // cut off the partial batch so later records are not stranded behind it
+                channel.truncate(logSize);
+                throw e;
+            }
+        }
+        logSize += total;
+    }
+
+    // Renames that failed in an earlier flush, tried again before anything newer is applied.
+    private void retryUnapplied() {
+        Iterator<Map.Entry<Path, Unapplied>> it = unapplied.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Unapplied> e = it.next();
+            try {
+                deleteQuietly(e.getValue().temp);
+                writeAndMove(e.getKey(), e.getValue().content);
+                it.remove();
+            } catch (IOException ex) {
+                // still failing; kept, and so is the log
+            }
+        }
+    }
+
+    private void markDirty(Path file, long size) {
+        Long previous = dirtySinceCheckpoint.put(file, size);
+        dirtyBytes += size - (previous == null ? 0 : previous);
+    }
+
+    // Forces the data files and their directories, after which the log is not needed.
+    private void checkpoint() throws IOException {
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Path file : dirtySinceCheckpoint.keySet()) {
+            if (Files.exists(file)) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                    forces.incrementAndGet();
+                }
+            }
+            directories.add(file.getParent());
+        }
+        for (Path dir : directories) {
+            forceDirectory(dir);
+        }
+        try (FileChannel channel = FileChannel.open(logPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+            channel.force(true);
+            forces.incrementAndGet();
+        }
+        dirtySinceCheckpoint.clear();
+        dirtyBytes = 0;
+        logSize = 0;
+        checkpointFailure = null;
+        checkpoints.incrementAndGet();
+    }
+
+    // Makes renames durable; not every platform can open a directory, and those that cannot
+    // make renames durable on their own.
+    private void forceDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+            forces.incrementAndGet();
+        } catch (IOException e) {
+            // not supported here
+        }
+    }
+
+    /**
+     * Empties every open log: takes each one's flush, retries failed renames, forces the
+     * data files and truncates the log.
+     *
+     * @throws IOException if a log could not be emptied; it is then replayed on the next start
+     */
+    static void checkpointAll() throws IOException {
+        List<CommitLog> logs;
+        synchronized (OPEN) {
+            logs = new ArrayList<>(OPEN.values());
+        }
+        IOException failure = null;
+        for (CommitLog log : logs) {
+            try {
+                log.checkpointNow();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void checkpointNow() throws IOException {
+        boolean interrupted = false;
+        synchronized (this) {
+            while (flushing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            flushing = true;
+        }
+        try {
+            if (Files.notExists(directory)) {
+                // removed since it was opened; nothing left to protect
+                return;
+            }
+            retryUnapplied();
+            if (!unapplied.isEmpty()) {
+                throw new IOException("Logged changes to " + unapplied.keySet() + " are not applied yet");
+            }
+            checkpoint();
+        } finally {
+            synchronized (this) {
+                flushing = false;
+                notifyAll();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void replay() throws IOException {
+        if (Files.notExists(logPath)) {
+            return;
+        }
+        Map<Path, Replayed> files = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+            byte[] payload;
+            while ((payload = readRecord(in)) != null) {
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                int count = record.readInt();
+                for (int i = 0; i < count; i++) {
+                    Path target = directory.resolve(record.readUTF()).normalize();
+                    long before = record.readLong();
+                    byte[] content = new byte[record.readInt()];
+                    record.readFully(content);
+                    files.computeIfAbsent(target, k -> new Replayed()).add(before, content);
+                }
+            }
+        }
+        for (Map.Entry<Path, Replayed> e : files.entrySet()) {
+            Path target = e.getKey();
+            Replayed logged = e.getValue();
+            long current = crcOf(target);
+            // applied already, or edited since: either way the file is left as it is. A file
+            // that is gone, or whose state cannot be told, gets the logged content back.
+            if (current != MISSING && current != UNREADABLE
+                    && !logged.startedFrom.contains(UNREADABLE) && !logged.startedFrom.contains(current)) {
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            writeAndMove(target, logged.content);
+            markDirty(target, logged.content.length);
+        }
+        checkpoint();
+    }
+
+    // Null at the end of the log or at a record whose write never completed.
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            if (in.readInt() != RECORD_MAGIC) {
+                return null;
+            }
+            int length = in.readInt();
+            long crc = in.readLong();
+            if (length < 0) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 check = new CRC32();
+            check.update(payload);
+            return check.getValue() == crc ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // Called before the commit is queued. Commits to one file come from one repository,
+    // which holds its lock until the commit returns, so they are encoded in log order.
+    private byte[] encode(Map<Path, byte[]> contents) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        try (DataOutputStream payload = new DataOutputStream(payloadBytes)) {
+            payload.writeInt(contents.size());
+            for (Map.Entry<Path, byte[]> e : contents.entrySet()) {
+                // relative, so a copied data directory replays into itself
+                payload.writeUTF(directory.relativize(e.getKey()).toString());
+                payload.writeLong(crcBefore(e.getKey(), e.getValue()));
+                payload.writeInt(e.getValue().length);
+                payload.write(e.getValue());
+            }
+        }
+        byte[] body = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(body.length + 16);
+        try (DataOutputStream record = new DataOutputStream(recordBytes)) {
+            record.writeInt(RECORD_MAGIC);
+            record.writeInt(body.length);
+            record.writeLong(crc.getValue());
+            record.write(body);
+        }
+        return recordBytes.toByteArray();
+    }
+
+    /**
+     * The bytes {@code Files.write} would produce for the lines.
+     */
+    static byte[] toBytes(List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append(System.lineSeparator());
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // CRC of what the target holds before this content, which becomes what it holds after.
+    // Known from the last commit unless the file was changed outside since; read otherwise.
+    private long crcBefore(Path target, byte[] content) throws IOException {
+        long outside = FileChanges.outsideChanges(target);
+        Long before = null;
+        synchronized (known) {
+            Known k = known.get(target);
+            if (k != null && k.outside == outside) {
+                before = k.crc;
+            }
+        }
+        if (before == null) {
+            before = crcOf(target);
+        }
+        CRC32 after = new CRC32();
+        after.update(content);
+        synchronized (known) {
+            known.put(target, new Known(after.getValue(), outside));
+        }
+        return before;
+    }
+
+    private static long crcOf(Path file) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        } catch (NoSuchFileException e) {
+            return MISSING;
+        } catch (IOException e) {
+            // the move that follows decides whether the commit can go ahead
+            return UNREADABLE;
+        }
+        return crc.getValue();
+    }
+
+    CommitStats stats() {
+        return new CommitStats(commits.get(), batches.get(), forces.get(), checkpoints.get());
+    }
+
+    private static void writeAndMove(Path target, byte[] content) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            copyPermissions(target, temp);
+            Files.write(temp, content);
+            FileChanges.replacing(target);
+            moveIfPresent(temp, target);
+            FileChanges.replaced(target);
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Gives a temp file the permissions of the file it will replace; temp files are
+     * created readable by their owner only. Nothing to copy where the target is missing or
+     * the file system has no POSIX permissions.
+     */
+    static void copyPermissions(Path target, Path temp) throws IOException {
+        if (Files.exists(target) && Files.getFileStore(temp).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+        }
+    }
+
+    static void moveIfPresent(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // already moved by an earlier attempt or a concurrent recovery
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // a stray temp file is harmless
+        }
+    }
+
+    private static final class Pending {
+        private final byte[] record;
+        private final Map<Path, Path> tempByTarget;
+        private final Map<Path, byte[]> contents;
+        private boolean done;
+        private IOException failure;
+
+        private Pending(byte[] record, Map<Path, Path> tempByTarget, Map<Path, byte[]> contents) {
+            this.record = record;
+            this.tempByTarget = tempByTarget;
+            this.contents = contents;
+        }
+    }
+
+    private static final class Known {
+        private final long crc;
+        private final long outside;
+
+        private Known(long crc, long outside) {
+            this.crc = crc;
+            this.outside = outside;
+        }
+    }
+
+    // Everything the log holds for one file: the content of its last commit, and the CRC
+    // of the content each of its commits started from.
+    private static final class Replayed {
+        private final Set<Long> startedFrom = new HashSet<>();
+        private byte[] content;
+
+        void add(long before, byte[] content) {
+            startedFrom.add(before);
+            this.content = content;
+        }
+    }
+
+    private static final class Unapplied {
+        private final Path temp;
+        private final byte[] content;
+
+        private Unapplied(Path temp, byte[] content) {
+            this.temp = temp;
+            this.content = content;
+        }
+    }
+}
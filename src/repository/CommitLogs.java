@@ -0,0 +1,27 @@
+package repository;
+
+import exception.StorageException;
+
+import java.io.IOException;
+
+/**
+ * Shutdown hook into the commit logs behind every repository.
+ */
+public final class CommitLogs {
+
+    private CommitLogs() {
+    }
+
+    /**
+     * Forces every data file written in this process and empties each directory's commit
+     * log, so the next start has nothing to replay. Call once on a clean shutdown, after
+     * the last write.
+     */
+    public static void checkpointAll() throws StorageException {
+        try {
+            CommitLog.checkpointAll();
+        } catch (IOException e) {
+            throw new StorageException("Error checkpointing commit logs", e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package repository;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Counters of one data directory's commit log since it was opened in this process. With
+ * concurrent writers {@link #batches()} falls below {@link #commits()}: each batch is a
+ * single force of the log, shared by every commit in it.
+ */
+public final class CommitStats {
+
+    private final long commits;
+    private final long batches;
+    private final long forces;
+    private final long checkpoints;
+
+    CommitStats(long commits, long batches, long forces, long checkpoints) {
+        this.commits = commits;
+        this.batches = batches;
+        this.forces = forces;
+        this.checkpoints = checkpoints;
+    }
+
+    public static CommitStats of(Path directory) throws IOException {
+        return CommitLog.forDirectory(directory).stats();
+    }
+
+    public long commits() {
+        return commits;
+    }
+
+    public long batches() {
+        return batches;
+    }
+
+    /**
+     * Every {@code force()} made: one per batch, plus the data files, directories and log
+     * forced at each checkpoint.
+     */
+    public long forces() {
+        return forces;
+    }
+
+    public long checkpoints() {
+        return checkpoints;
+    }
+}
@@ -0,0 +1,212 @@
+package repository;
+
+/**
+ * Shared CSV encoding for every repository file.
+ * <p>
+ * Fields are quoted RFC-4180 style when they contain a comma or a quote, so values such as
+ * names and notes round-trip unchanged. Line breaks are folded to spaces because every
+ * store is read one line per row. Decoding walks the line once with a {@link Row} cursor
+ * instead of {@code String.split}, so boolean and integer fields are read without
+ * allocating a substring and quoted fields only allocate when they contain escaped quotes.
+ */
+public final class CsvCodec {
+
+    private static final char SEPARATOR = ',';
+    private static final char QUOTE = '"';
+
+    private CsvCodec() {
+    }
+
+    /**
+     * Starts reading the fields of one CSV line.
+     */
+    public static Row row(String line) {
+        return new Row(line);
+    }
+
+    /**
+     * Encodes the fields and joins them into one CSV line.
+     */
+    public static String join(String... fields) {
+        StringBuilder sb = new StringBuilder(fields.length * 16);
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(SEPARATOR);
+            }
+            appendField(sb, fields[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Encodes a single field; {@code null} becomes an empty field.
+     */
+    public static String encode(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (!needsEscaping(value)) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        appendField(sb, value);
+        return sb.toString();
+    }
+
+    private static void appendField(StringBuilder sb, String value) {
+        if (value == null) {
+            return;
+        }
+        if (!needsEscaping(value)) {
+            sb.append(value);
+            return;
+        }
+        boolean quoted = value.indexOf(SEPARATOR) >= 0 || value.indexOf(QUOTE) >= 0;
+        if (quoted) {
+            sb.append(QUOTE);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == QUOTE) {
+                sb.append(QUOTE).append(QUOTE);
+            } else if (c == '\r' || c == '\n') {
+                sb.append(' ');
+            } else {
+                sb.append(c);
+            }
+        }
+        if (quoted) {
+            sb.append(QUOTE);
+        }
+    }
+
+    private static boolean needsEscaping(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == SEPARATOR || c == QUOTE || c == '\r' || c == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forward-only cursor over the fields of one line.
+     * Behaves like {@code split(",", -1)}: an empty line has one empty field and
+     * trailing empty fields are kept.
+     */
+    public static final class Row {
+
+        private final String line;
+        private int pos;
+
+        private Row(String line) {
+            this.line = line;
+        }
+
+        public boolean hasNext() {
+            return pos <= line.length();
+        }
+
+        public String next() {
+            requireField();
+            if (pos < line.length() && line.charAt(pos) == QUOTE) {
+                return nextQuoted();
+            }
+            int end = fieldEnd(pos);
+            String value = line.substring(pos, end);
+            pos = end + 1;
+            return value;
+        }
+
+        /**
+         * Same result as {@code Boolean.parseBoolean(next())}.
+         */
+        public boolean nextBoolean() {
+            requireField();
+            if (pos < line.length() && line.charAt(pos) == QUOTE) {
+                return Boolean.parseBoolean(nextQuoted());
+            }
+            int end = fieldEnd(pos);
+            boolean value = end - pos == 4 && line.regionMatches(true, pos, "true", 0, 4);
+            pos = end + 1;
+            return value;
+        }
+
+        /**
+         * Same result as {@code Integer.parseInt(next())}.
+         */
+        public int nextInt() {
+            requireField();
+            int end = fieldEnd(pos);
+            int start = pos;
+            boolean negative = start < end && line.charAt(start) == '-';
+            int i = negative || (start < end && line.charAt(start) == '+') ? start + 1 : start;
+            // fast path for plain digits that cannot overflow; anything else goes through parseInt
+            if (i == end || end - i > 9) {
+                return Integer.parseInt(next());
+            }
+            int value = 0;
+            for (; i < end; i++) {
+                int digit = line.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return Integer.parseInt(next());
+                }
+                value = value * 10 + digit;
+            }
+            pos = end + 1;
+            return negative ? -value : value;
+        }
+
+        public double nextDouble() {
+            return Double.parseDouble(next());
+        }
+
+        public void skip() {
+            next();
+        }
+
+        private void requireField() {
+            if (!hasNext()) {
+                throw new IllegalArgumentException("CSV row has fewer fields than expected: " + line);
+            }
+        }
+
+        private int fieldEnd(int from) {
+            int end = line.indexOf(SEPARATOR, from);
+            return end < 0 ? line.length() : end;
+        }
+
+        private String nextQuoted() {
+            int start = pos + 1;
+            StringBuilder sb = null;
+            int i = start;
+            while (true) {
+                int q = line.indexOf(QUOTE, i);
+                if (q < 0) {
+                    // unterminated quote: keep the rest of the line as the value
+                    String value = sb == null ? line.substring(start) : sb.append(line, start, line.length()).toString();
+                    pos = line.length() + 1;
+                    return value;
+                }
+                if (q + 1 < line.length() && line.charAt(q + 1) == QUOTE) {
+                    if (sb == null) {
+                        sb = new StringBuilder(q - start + 16);
+                    }
+                    sb.append(line, start, q + 1);
+                    i = q + 2;
+                    start = i;
+                    continue;
+                }
+                String value = sb == null ? line.substring(start, q) : sb.append(line, start, q).toString();
+                int end = fieldEnd(q + 1);
+                if (end > q + 1) {
+                    // text after the closing quote is kept rather than dropped
+                    value = value + line.substring(q + 1, end);
+                }
+                pos = end + 1;
+                return value;
+            }
+        }
+    }
+}
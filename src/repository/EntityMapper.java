@@ -0,0 +1,36 @@
+package repository;
+
+import java.util.function.Function;
+
+/**
+ * Converts an entity to and from a single CSV row.
+ */
+public interface EntityMapper<T> {
+
+    String idOf(T entity);
+
+    String toCsv(T entity);
+
+    T fromCsv(String line);
+
+    static <T> EntityMapper<T> of(Function<T, String> id,
+                                  Function<T, String> toCsv,
+                                  Function<String, T> fromCsv) {
+        return new EntityMapper<>() {
+            @Override
+            public String idOf(T entity) {
+                return id.apply(entity);
+            }
+
+            @Override
+            public String toCsv(T entity) {
+                return toCsv.apply(entity);
+            }
+
+            @Override
+            public T fromCsv(String line) {
+                return fromCsv.apply(line);
+            }
+        };
+    }
+}
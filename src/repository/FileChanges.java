@@ -0,0 +1,127 @@
+package repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Tells edits made to data files by other processes apart from the application's own
+ * writes.
+ * <p>
+ * Every file replaced through {@link CommitLog} has its size and modification time
+ * recorded right after the rename. A file later found with different ones was changed
+ * elsewhere, and each such finding is counted; the check also runs just before the
+ * application replaces a file, so an edit it is about to overwrite is still counted.
+ * Views kept current through repository listeners compare the count with the one they
+ * loaded at and reload when it moved, since listeners only hear about the application's
+ * own writes.
+ */
+final class FileChanges {
+
+    // absolute file -> what is known about it; guarded by itself
+    private static final Map<Path, Tracked> TRACKED = new HashMap<>();
+
+    private FileChanges() {
+    }
+
+    /**
+     * Checks the file now and returns how many outside changes have been seen so far. The
+     * first call for a file only records it.
+     */
+    static long outsideChanges(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        Stamp now = Stamp.of(key);
+        synchronized (TRACKED) {
+            Tracked tracked = TRACKED.get(key);
+            if (tracked == null) {
+                tracked = new Tracked(now);
+                TRACKED.put(key, tracked);
+            } else if (!now.equals(tracked.stamp)) {
+                tracked.count++;
+                tracked.stamp = now;
+            }
+            return tracked.count;
+        }
+    }
+
+    // Before the application replaces the file.
+    static void replacing(Path file) {
+        try {
+            outsideChanges(file);
+        } catch (IOException e) {
+            // unreadable attributes; the next check after the write will count it instead
+        }
+    }
+
+    // After the application replaced the file.
+    static void replaced(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        Stamp now;
+        try {
+            now = Stamp.of(key);
+        } catch (IOException e) {
+            // matches nothing, so the next check counts a change and views reload
+            now = Stamp.UNKNOWN;
+        }
+        synchronized (TRACKED) {
+            Tracked tracked = TRACKED.get(key);
+            if (tracked == null) {
+                TRACKED.put(key, new Tracked(now));
+            } else {
+                tracked.stamp = now;
+            }
+        }
+    }
+
+    private static final class Tracked {
+        private Stamp stamp;
+        private long count;
+
+        private Tracked(Stamp stamp) {
+            this.stamp = stamp;
+        }
+    }
+
+    private static final class Stamp {
+        private static final Stamp MISSING = new Stamp(null, -1);
+        private static final Stamp UNKNOWN = new Stamp(null, -2);
+
+        private final FileTime modified;
+        private final long size;
+
+        private Stamp(FileTime modified, long size) {
+            this.modified = modified;
+            this.size = size;
+        }
+
+        static Stamp of(Path file) throws IOException {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                return new Stamp(attributes.lastModifiedTime(), attributes.size());
+            } catch (NoSuchFileException e) {
+                return MISSING;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) o;
+            return this != UNKNOWN && other != UNKNOWN
+                    && size == other.size && Objects.equals(modified, other.modified);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(modified, size);
+        }
+    }
+}
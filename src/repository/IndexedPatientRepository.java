@@ -0,0 +1,248 @@
+package repository;
+
+import exception.StorageException;
+import model.Patient;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * PatientRepository that loads patients.csv once and answers lookups from
+ * hash indexes keyed by id and by lower-cased email.
+ * The file is still rewritten on every save/delete so it stays the source of truth.
+ */
+public class IndexedPatientRepository extends PatientRepository {
+
+    // insertion order mirrors the row order of the file
+    private final Map<String, Patient> byId = new LinkedHashMap<>();
+    private final Map<String, Patient> byEmail = new HashMap<>();
+    private boolean loaded;
+
+    public IndexedPatientRepository(String filePath) {
+        super(filePath);
+    }
+
+    @Override
+    public synchronized Optional<Patient> findById(String id) throws StorageException {
+        ensureLoaded();
+        return Optional.ofNullable(byId.get(id)).map(this::copy);
+    }
+
+    @Override
+    public synchronized Optional<Patient> findByEmail(String email) throws StorageException {
+        if (email == null) {
+            return Optional.empty();
+        }
+        ensureLoaded();
+        return Optional.ofNullable(byEmail.get(normalize(email))).map(this::copy);
+    }
+
+    @Override
+    public synchronized List<Patient> findAll() throws StorageException {
+        ensureLoaded();
+        return byId.values().stream()
+                .map(this::copy)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized Stream<Patient> stream() throws StorageException {
+        ensureLoaded();
+        // served from memory; copies are made as the stream is consumed
+        return new ArrayList<>(byId.values()).stream().map(this::copy);
+    }
+
+    @Override
+    public synchronized void save(Patient patient) throws StorageException {
+        ensureLoaded();
+        Patient stored = copy(patient);
+        Patient previous = byId.remove(stored.getId());
+        byId.put(stored.getId(), stored);
+        try {
+            writeAll();
+        } catch (IOException e) {
+            byId.remove(stored.getId());
+            if (previous != null) {
+                byId.put(previous.getId(), previous);
+            }
+            throw new StorageException("Error writing patient data", e);
+        }
+        unindexEmail(previous);
+        indexEmail(stored);
+        listeners.saved(patient);
+    }
+
+    @Override
+    public synchronized void delete(String id) throws StorageException {
+        ensureLoaded();
+        Patient previous = byId.remove(id);
+        if (previous == null) {
+            return;
+        }
+        try {
+            writeAll();
+        } catch (IOException e) {
+            byId.put(id, previous);
+            throw new StorageException("Error deleting patient data", e);
+        }
+        unindexEmail(previous);
+        listeners.deleted(id);
+    }
+
+    @Override
+    public synchronized void saveAll(Collection<Patient> batch) throws StorageException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ensureLoaded();
+        // keyed by id, so a later record of the same id in the batch replaces the earlier one
+        Map<String, Patient> stored = new LinkedHashMap<>();
+        for (Patient patient : batch) {
+            Patient copy = copy(patient);
+            Patient old = byId.remove(copy.getId());
+            byId.put(copy.getId(), copy);
+            stored.put(copy.getId(), copy);
+            // the indexes are dropped wholesale if the write fails
+            unindexEmail(old);
+        }
+        try {
+            writeAll();
+        } catch (IOException e) {
+            reset();
+            throw new StorageException("Error writing patient data", e);
+        }
+        stored.values().forEach(this::indexEmail);
+        listeners.savedAll(batch);
+    }
+
+    @Override
+    public synchronized void deleteAll(Collection<String> ids) throws StorageException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        ensureLoaded();
+        List<Patient> previous = new ArrayList<>();
+        for (String id : ids) {
+            Patient old = byId.remove(id);
+            if (old != null) {
+                previous.add(old);
+            }
+        }
+        if (previous.isEmpty()) {
+            return;
+        }
+        try {
+            writeAll();
+        } catch (IOException e) {
+            reset();
+            throw new StorageException("Error deleting patient data", e);
+        }
+        previous.forEach(this::unindexEmail);
+        previous.forEach(p -> listeners.deleted(p.getId()));
+    }
+
+    @Override
+    public synchronized List<AtomicFiles.Write> stage(Map<String, Patient> saved, Set<String> deleted)
+            throws StorageException {
+        ensureLoaded();
+        // same row order the one-by-one writes would give: saved patients move to the end
+        Map<String, Patient> rows = new LinkedHashMap<>(byId);
+        rows.keySet().removeAll(deleted);
+        rows.keySet().removeAll(saved.keySet());
+        rows.putAll(saved);
+        List<String> csvLines = rows.values().stream()
+                .map(PatientRepository::toCsv)
+                .collect(Collectors.toList());
+        return List.of(new AtomicFiles.Write(csvPath, csvLines));
+    }
+
+    @Override
+    public synchronized void committed(Map<String, Patient> saved, Set<String> deleted,
+                                       List<AtomicFiles.Write> written) {
+        List<Patient> previous = new ArrayList<>();
+        for (String id : deleted) {
+            Patient old = byId.remove(id);
+            if (old != null) {
+                previous.add(old);
+            }
+        }
+        List<Patient> stored = new ArrayList<>();
+        for (Patient patient : saved.values()) {
+            Patient copy = copy(patient);
+            Patient old = byId.remove(copy.getId());
+            if (old != null) {
+                previous.add(old);
+            }
+            byId.put(copy.getId(), copy);
+            stored.add(copy);
+        }
+        previous.forEach(this::unindexEmail);
+        stored.forEach(this::indexEmail);
+        listeners.savedAll(saved.values());
+        listeners.deletedAll(deleted);
+    }
+
+    // Drops the indexes so the next call reloads them from the file.
+    private void reset() {
+        byId.clear();
+        byEmail.clear();
+        loaded = false;
+    }
+
+    private void ensureLoaded() throws StorageException {
+        if (loaded) {
+            return;
+        }
+        for (Patient p : super.findAll()) {
+            // keep the first row for an id, same as the scan-based findById
+            if (byId.putIfAbsent(p.getId(), p) == null) {
+                byEmail.putIfAbsent(normalize(p.getEmail()), p);
+            }
+        }
+        loaded = true;
+    }
+
+    private void writeAll() throws IOException {
+        List<String> csvLines = byId.values().stream()
+                .map(PatientRepository::toCsv)
+                .collect(Collectors.toList());
+        AtomicFiles.replace(csvPath, csvLines);
+    }
+
+    private void indexEmail(Patient p) {
+        byEmail.putIfAbsent(normalize(p.getEmail()), p);
+    }
+
+    private void unindexEmail(Patient p) {
+        if (p == null) {
+            return;
+        }
+        String key = normalize(p.getEmail());
+        if (byEmail.get(key) != p) {
+            return;
+        }
+        byEmail.remove(key);
+        // another patient may share the address; fall back to the first one in file order
+        for (Patient other : byId.values()) {
+            if (normalize(other.getEmail()).equals(key)) {
+                byEmail.put(key, other);
+                break;
+            }
+        }
+    }
+
+    private static String normalize(String email) {
+        return email.toLowerCase(Locale.ROOT);
+    }
+
+    // callers mutate the patients they get back before saving, so never hand out the indexed instance
+    private Patient copy(Patient p) {
+        Patient c = new Patient(p.getId(), p.getName(), p.getEmail(), p.getPassword(),
+                p.isRegistered(), p.isMarketingOptIn());
+        c.setFlaggedNonPaying(p.isFlaggedNonPaying());
+        return c;
+    }
+}
@@ -0,0 +1,349 @@
+package repository;
+
+import exception.StorageException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only journal storage for any entity with an EntityMapper.
+ * <p>
+ * Every save appends an upsert record ({@code U,<csv row>}) and every delete appends a
+ * tombstone ({@code D,<id>}), so a write costs O(record) instead of a full file rewrite.
+ * The live state is rebuilt on startup by replaying the journal. Once the share of dead
+ * records (overwritten upserts and tombstones) crosses the compaction threshold, the
+ * journal is rewritten in the background with one upsert per live entity.
+ * <p>
+ * This is an opt-in storage engine: the application still uses the CSV repositories, and
+ * an entity can be moved onto a journal by constructing one with its {@link EntityMapper}.
+ */
+public class JournalRepository<T> implements Repository<T> {
+
+    private static final String UPSERT = "U,";
+    private static final String TOMBSTONE = "D,";
+    private static final int MIN_RECORDS_FOR_COMPACTION = 100;
+
+    private final Path journalPath;
+    private final EntityMapper<T> mapper;
+    private final double compactionThreshold;
+
+    // id -> latest csv row; rows are parsed on read so callers never share instances
+    private final Map<String, String> live = new LinkedHashMap<>();
+    private final ExecutorService compactor;
+
+    private BufferedWriter appender;
+    private long totalRecords;
+    private List<String> appendedDuringCompaction;
+
+    public JournalRepository(String filePath, EntityMapper<T> mapper) {
+        this(filePath, mapper, 0.5);
+    }
+
+    /**
+     * @param compactionThreshold fraction of dead records (0..1) that triggers a background compaction
+     */
+    public JournalRepository(String filePath, EntityMapper<T> mapper, double compactionThreshold) {
+        if (compactionThreshold <= 0 || compactionThreshold >= 1) {
+            throw new IllegalArgumentException("Compaction threshold must be between 0 and 1.");
+        }
+        this.journalPath = Paths.get(filePath);
+        this.mapper = mapper;
+        this.compactionThreshold = compactionThreshold;
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "journal-compactor-" + journalPath.getFileName());
+            t.setDaemon(true);
+            return t;
+        });
+        ensureFileExists();
+    }
+
+    private void ensureFileExists() {
+        try {
+            if (Files.notExists(journalPath)) {
+                if (journalPath.getParent() != null) {
+                    Files.createDirectories(journalPath.getParent());
+                }
+                Files.createFile(journalPath);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public synchronized Optional<T> findById(String id) throws StorageException {
+        open();
+        String row = live.get(id);
+        return row == null ? Optional.empty() : Optional.of(mapper.fromCsv(row));
+    }
+
+    @Override
+    public synchronized List<T> findAll() throws StorageException {
+        open();
+        return live.values().stream()
+                .map(mapper::fromCsv)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized Stream<T> stream() throws StorageException {
+        open();
+        // rows are parsed as the stream is consumed
+        return new ArrayList<>(live.values()).stream().map(mapper::fromCsv);
+    }
+
+    @Override
+    public synchronized void save(T entity) throws StorageException {
+        open();
+        String id = mapper.idOf(entity);
+        String row = mapper.toCsv(entity);
+        append(List.of(UPSERT + row), "Error appending to journal");
+        // re-insert so iteration order matches the CSV repositories (updated rows move to the end)
+        live.remove(id);
+        live.put(id, row);
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized void delete(String id) throws StorageException {
+        open();
+        if (!live.containsKey(id)) {
+            return;
+        }
+        append(List.of(TOMBSTONE + CsvCodec.encode(id)), "Error appending tombstone to journal");
+        live.remove(id);
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized void saveAll(Collection<T> entities) throws StorageException {
+        if (entities.isEmpty()) {
+            return;
+        }
+        open();
+        Map<String, String> rows = new LinkedHashMap<>();
+        for (T entity : entities) {
+            String id = mapper.idOf(entity);
+            rows.remove(id);
+            rows.put(id, mapper.toCsv(entity));
+        }
+        List<String> records = new ArrayList<>();
+        rows.values().forEach(row -> records.add(UPSERT + row));
+        append(records, "Error appending to journal");
+        for (Map.Entry<String, String> row : rows.entrySet()) {
+            live.remove(row.getKey());
+            live.put(row.getKey(), row.getValue());
+        }
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized void deleteAll(Collection<String> ids) throws StorageException {
+        open();
+        Set<String> present = new LinkedHashSet<>();
+        for (String id : ids) {
+            if (live.containsKey(id)) {
+                present.add(id);
+            }
+        }
+        if (present.isEmpty()) {
+            return;
+        }
+        List<String> records = new ArrayList<>();
+        present.forEach(id -> records.add(TOMBSTONE + CsvCodec.encode(id)));
+        append(records, "Error appending tombstones to journal");
+        present.forEach(live::remove);
+        maybeCompact();
+    }
+
+    /**
+     * Number of journal records that no longer contribute to the live state.
+     */
+    public synchronized long getDeadRecordCount() {
+        return totalRecords - live.size();
+    }
+
+    /**
+     * Rewrites the journal with one record per live entity and waits for it to finish.
+     */
+    public void compact() throws StorageException {
+        synchronized (this) {
+            open();
+        }
+        try {
+            compactor.submit(() -> {
+                runCompaction();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while compacting journal", e);
+        } catch (ExecutionException e) {
+            throw new StorageException("Error compacting journal", e.getCause());
+        }
+    }
+
+    /**
+     * Stops the compactor and closes the journal file.
+     */
+    public void close() throws StorageException {
+        compactor.shutdown();
+        synchronized (this) {
+            if (appender == null) {
+                return;
+            }
+            try {
+                appender.close();
+            } catch (IOException e) {
+                throw new StorageException("Error closing journal", e);
+            } finally {
+                appender = null;
+            }
+        }
+    }
+
+    // Replays the journal on first use.
+    private void open() throws StorageException {
+        if (appender != null) {
+            return;
+        }
+        try {
+            replay();
+            appender = Files.newBufferedWriter(journalPath, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new StorageException("Error opening journal " + journalPath, e);
+        }
+    }
+
+    private void replay() throws IOException {
+        live.clear();
+        totalRecords = 0;
+        String content = Files.readString(journalPath);
+        // a record is only complete once its line break is on disk; a crash mid-append leaves a torn tail
+        int completeLength = content.lastIndexOf('\n') + 1;
+        List<String> lines = content.substring(0, completeLength).lines().collect(Collectors.toList());
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                if (line.startsWith(UPSERT)) {
+                    String row = line.substring(UPSERT.length());
+                    String id = mapper.idOf(mapper.fromCsv(row));
+                    live.remove(id);
+                    live.put(id, row);
+                } else if (line.startsWith(TOMBSTONE)) {
+                    live.remove(CsvCodec.row(line.substring(TOMBSTONE.length())).next());
+                } else {
+                    throw new IOException("Unknown journal record at line " + (i + 1));
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt journal record at line " + (i + 1), e);
+            }
+            totalRecords++;
+        }
+        if (completeLength < content.length()) {
+            long validBytes = content.substring(0, completeLength).getBytes(StandardCharsets.UTF_8).length;
+            try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+                channel.truncate(validBytes);
+            }
+        }
+    }
+
+    // Appends the records and flushes once, so a batch costs a single write.
+    private void append(List<String> records, String errorMessage) throws StorageException {
+        try {
+            for (String record : records) {
+                appender.write(record);
+                appender.newLine();
+            }
+            appender.flush();
+        } catch (IOException e) {
+            throw new StorageException(errorMessage, e);
+        }
+        totalRecords += records.size();
+        if (appendedDuringCompaction != null) {
+            appendedDuringCompaction.addAll(records);
+        }
+    }
+
+    private void maybeCompact() {
+        if (appendedDuringCompaction != null || totalRecords < MIN_RECORDS_FOR_COMPACTION) {
+            return;
+        }
+        double deadRatio = (double) (totalRecords - live.size()) / totalRecords;
+        if (deadRatio < compactionThreshold) {
+            return;
+        }
+        appendedDuringCompaction = new ArrayList<>();
+        compactor.execute(() -> {
+            try {
+                runCompaction();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // However it ends, the journal keeps an open appender and the next compaction can start.
+    private void runCompaction() throws IOException {
+        Path temp = journalPath.resolveSibling(journalPath.getFileName() + ".compact");
+        try {
+            List<String> snapshot;
+            synchronized (this) {
+                if (appender == null) {
+                    return;
+                }
+                snapshot = live.values().stream()
+                        .map(row -> UPSERT + row)
+                        .collect(Collectors.toList());
+                if (appendedDuringCompaction == null) {
+                    appendedDuringCompaction = new ArrayList<>();
+                } else {
+                    // records appended before the snapshot are already part of it
+                    appendedDuringCompaction.clear();
+                }
+            }
+
+            // the slow part runs without the lock so saves keep appending to the old journal
+            Files.write(temp, snapshot);
+
+            synchronized (this) {
+                if (appender == null) {
+                    // closed while we were writing; leave the journal as it is
+                    return;
+                }
+                Files.write(temp, appendedDuringCompaction, StandardOpenOption.APPEND);
+                BufferedWriter previous = appender;
+                try {
+                    previous.close();
+                    Files.move(temp, journalPath,
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    totalRecords = snapshot.size() + appendedDuringCompaction.size();
+                } finally {
+                    // the old writer is closed either way; append to whichever file is the journal now
+                    appender = Files.newBufferedWriter(journalPath, StandardOpenOption.APPEND);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                appendedDuringCompaction = null;
+            }
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                // a leftover compaction file is overwritten by the next attempt
+            }
+        }
+    }
+}
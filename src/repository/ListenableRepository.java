@@ -0,0 +1,23 @@
+package repository;
+
+import exception.StorageException;
+
+/**
+ * Repository that reports every successful save and delete to registered listeners,
+ * so in-memory views built from it can be kept current without re-reading the store.
+ * Batch writes report each entity or id individually. Changes made to the backing
+ * file by other processes are not reported; {@link #outsideChanges()} counts them instead.
+ */
+public interface ListenableRepository<T> extends Repository<T> {
+
+    void addListener(RepositoryListener<T> listener);
+
+    /**
+     * Checks the backing files and returns how many times so far one was found changed by
+     * something other than this application. A view built from listener events reloads
+     * when the value differs from the one it read before its last load.
+     */
+    default long outsideChanges() throws StorageException {
+        return 0;
+    }
+}
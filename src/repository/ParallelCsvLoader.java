@@ -0,0 +1,257 @@
+package repository;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Loads a CSV file by cutting it into newline-aligned chunks, reading each chunk into a
+ * heap buffer with a positioned read and parsing the chunks on the common fork-join
+ * pool. The file is not memory-mapped: a mapping stays open until it is garbage
+ * collected, and on Windows that would keep the atomic replace of the same file from
+ * succeeding. Rows come back in file order.
+ * Small files end up as a single chunk and are parsed on the calling thread.
+ * <p>
+ * Rows end at {@code '\n'} only, minus one trailing {@code '\r'}; a bare {@code '\r'}
+ * inside a quoted field stays part of the row. Blank rows are skipped. {@link #rows}
+ * reads lazily by the same rule, so a full load and a stream agree row for row.
+ */
+final class ParallelCsvLoader {
+
+    private static final long MIN_CHUNK_BYTES = 1L << 20;
+    private static final long MAX_CHUNK_BYTES = 64L << 20;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private ParallelCsvLoader() {
+    }
+
+    /**
+     * Parses one non-blank line; offset and length locate it in the file (line break excluded).
+     */
+    interface RowParser<T> {
+        T parse(String line, long offset, int length);
+    }
+
+    static <T> List<T> load(Path path, Function<String, T> parser) throws IOException {
+        return load(path, (line, offset, length) -> parser.apply(line));
+    }
+
+    static <T> List<T> load(Path path, RowParser<T> parser) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return new ArrayList<>();
+            }
+            long[] bounds = chunkBounds(channel, size);
+            int chunks = bounds.length - 1;
+            List<List<T>> results = new ArrayList<>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                results.add(null);
+            }
+            ChunkTask<T> root = new ChunkTask<>(channel, bounds, 0, chunks, parser, results);
+            if (chunks == 1) {
+                root.compute();
+            } else {
+                ForkJoinPool.commonPool().invoke(root);
+            }
+
+            int total = 0;
+            for (List<T> rows : results) {
+                total += rows.size();
+            }
+            List<T> merged = new ArrayList<>(total);
+            results.forEach(merged::addAll);
+            return merged;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * The non-blank rows of the file, read lazily as the stream is consumed. Close the
+     * stream to release the file.
+     */
+    static Stream<String> rows(Path path) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16);
+        Iterator<String> lines = new Iterator<>() {
+            private byte[] line = new byte[256];
+            private String next;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && !done) {
+                    next = readRow();
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String row = next;
+                next = null;
+                return row;
+            }
+
+            // The next row, null for a blank one; sets done at the end of the file.
+            private String readRow() {
+                try {
+                    int length = 0;
+                    int b;
+                    while ((b = in.read()) != -1 && b != '\n') {
+                        if (length == line.length) {
+                            line = Arrays.copyOf(line, length * 2);
+                        }
+                        line[length++] = (byte) b;
+                    }
+                    if (b == -1) {
+                        done = true;
+                    }
+                    String text = text(line, length);
+                    return text.isBlank() ? null : text;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        return StreamSupport.stream(
+                        Spliterators.spliteratorUnknownSize(lines, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    // One row's text from its bytes up to the '\n'.
+    private static String text(byte[] bytes, int length) {
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Chunk i covers [bounds[i], bounds[i + 1]); every inner bound sits just after a '\n'.
+    private static long[] chunkBounds(FileChannel channel, long size) throws IOException {
+        int threads = ForkJoinPool.getCommonPoolParallelism();
+        long target = Math.max(MIN_CHUNK_BYTES,
+                Math.min(MAX_CHUNK_BYTES, size / Math.max(1, threads * CHUNKS_PER_THREAD)));
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        long start = 0;
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        while (size - start > target) {
+            long end = nextLineStart(channel, start + target, size, probe);
+            if (end >= size) {
+                break;
+            }
+            bounds.add(end);
+            start = end;
+        }
+        bounds.add(size);
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static long nextLineStart(FileChannel channel, long from, long size, ByteBuffer probe)
+            throws IOException {
+        long position = from;
+        while (position < size) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static final class ChunkTask<T> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+        private final RowParser<T> parser;
+        private final List<List<T>> results;
+
+        private ChunkTask(FileChannel channel, long[] bounds, int from, int to,
+                          RowParser<T> parser, List<List<T>> results) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.parser = parser;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ChunkTask<>(channel, bounds, from, mid, parser, results),
+                        new ChunkTask<>(channel, bounds, mid, to, parser, results));
+                return;
+            }
+            try {
+                results.set(from, parseChunk(bounds[from], bounds[from + 1]));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private List<T> parseChunk(long start, long end) throws IOException {
+            // at most MAX_CHUNK_BYTES plus the rest of one row
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            byte[] bytes = buffer.array();
+            int limit = buffer.position();
+            List<T> rows = new ArrayList<>();
+            int lineStart = 0;
+            for (int i = 0; i <= limit; i++) {
+                if (i < limit && bytes[i] != '\n') {
+                    continue;
+                }
+                int length = i - lineStart;
+                if (length > 0 && bytes[lineStart + length - 1] == '\r') {
+                    length--;
+                }
+                String text = new String(bytes, lineStart, length, StandardCharsets.UTF_8);
+                if (!text.isBlank()) {
+                    rows.add(parser.parse(text, start + lineStart, length));
+                }
+                lineStart = i + 1;
+            }
+            return rows;
+        }
+    }
+}
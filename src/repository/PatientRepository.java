@@ -12,9 +12,16 @@ import java.util.stream.Stream;
 /**
  * CSV-based repository for Patient entities.
  */
-public class PatientRepository implements Repository<Patient> {
+public class PatientRepository implements ListenableRepository<Patient>, StagedRepository<Patient> {
 
-    private final Path csvPath;
+    /**
+     * Row mapping used by this repository, shared with alternative storage engines.
+     */
+    public static final EntityMapper<Patient> MAPPER =
+            EntityMapper.of(Patient::getId, PatientRepository::toCsv, PatientRepository::fromCsv);
+
+    final Path csvPath;
+    final RepositoryListeners<Patient> listeners = new RepositoryListeners<>();
 
     public PatientRepository(String filePath) {
         this.csvPath = Paths.get(filePath);
@@ -27,18 +34,34 @@ public class PatientRepository implements Repository<Patient> {
                 Files.createDirectories(csvPath.getParent());
                 Files.createFile(csvPath);
             }
+            // finish any write a crash cut short before the file is read
+            AtomicFiles.recover(csvPath.toAbsolutePath().getParent());
         } catch (IOException e) {
             // Don't throw here – constructor should not throw checked exception.
             e.printStackTrace();
         }
     }
 
+    @Override
+    public void addListener(RepositoryListener<Patient> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public long outsideChanges() throws StorageException {
+        try {
+            return FileChanges.outsideChanges(csvPath);
+        } catch (IOException e) {
+            throw new StorageException("Error reading patient file attributes", e);
+        }
+    }
+
     @Override
     public Optional<Patient> findById(String id) throws StorageException {
         try (Stream<String> lines = Files.lines(csvPath)) {
             return lines
                     .filter(line -> !line.isBlank())
-                    .map(this::fromCsv)
+                    .map(PatientRepository::fromCsv)
                     .filter(p -> p.getId().equals(id))
                     .findFirst();
         } catch (IOException e) {
@@ -50,7 +73,7 @@ public class PatientRepository implements Repository<Patient> {
         try (Stream<String> lines = Files.lines(csvPath)) {
             return lines
                     .filter(line -> !line.isBlank())
-                    .map(this::fromCsv)
+                    .map(PatientRepository::fromCsv)
                     .filter(p -> p.getEmail().equalsIgnoreCase(email))
                     .findFirst();
         } catch (IOException e) {
@@ -63,13 +86,25 @@ public class PatientRepository implements Repository<Patient> {
         try (Stream<String> lines = Files.lines(csvPath)) {
             return lines
                     .filter(line -> !line.isBlank())
-                    .map(this::fromCsv)
+                    .map(PatientRepository::fromCsv)
                     .collect(Collectors.toList());
         } catch (IOException e) {
             throw new StorageException("Error reading patient data", e);
         }
     }
 
+    @Override
+    public Stream<Patient> stream() throws StorageException {
+        try {
+            // Files.lines closes the file when the returned stream is closed
+            return Files.lines(csvPath)
+                    .filter(line -> !line.isBlank())
+                    .map(PatientRepository::fromCsv);
+        } catch (IOException e) {
+            throw new StorageException("Error reading patient data", e);
+        }
+    }
+
     @Override
     public void save(Patient patient) throws StorageException {
         try {
@@ -78,9 +113,10 @@ public class PatientRepository implements Repository<Patient> {
             patients.add(patient);
 
             List<String> csvLines = patients.stream()
-                    .map(this::toCsv)
+                    .map(PatientRepository::toCsv)
                     .collect(Collectors.toList());
-            Files.write(csvPath, csvLines);
+            AtomicFiles.replace(csvPath, csvLines);
+            listeners.saved(patient);
         } catch (IOException e) {
             throw new StorageException("Error writing patient data", e);
         }
@@ -93,42 +129,109 @@ public class PatientRepository implements Repository<Patient> {
             patients.removeIf(p -> p.getId().equals(id));
 
             List<String> csvLines = patients.stream()
-                    .map(this::toCsv)
+                    .map(PatientRepository::toCsv)
+                    .collect(Collectors.toList());
+            AtomicFiles.replace(csvPath, csvLines);
+            listeners.deleted(id);
+        } catch (IOException e) {
+            throw new StorageException("Error deleting patient data", e);
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<Patient> batch) throws StorageException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            // later duplicates win, as if saved one by one
+            Map<String, Patient> byId = new LinkedHashMap<>();
+            for (Patient p : batch) {
+                byId.remove(p.getId());
+                byId.put(p.getId(), p);
+            }
+            List<Patient> patients = findAll();
+            patients.removeIf(p -> byId.containsKey(p.getId()));
+            patients.addAll(byId.values());
+
+            List<String> csvLines = patients.stream()
+                    .map(PatientRepository::toCsv)
                     .collect(Collectors.toList());
-            Files.write(csvPath, csvLines);
+            AtomicFiles.replace(csvPath, csvLines);
+            listeners.savedAll(byId.values());
+        } catch (IOException e) {
+            throw new StorageException("Error writing patient data", e);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> ids) throws StorageException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            Set<String> toDelete = new HashSet<>(ids);
+            List<Patient> patients = findAll();
+            patients.removeIf(p -> toDelete.contains(p.getId()));
+
+            List<String> csvLines = patients.stream()
+                    .map(PatientRepository::toCsv)
+                    .collect(Collectors.toList());
+            AtomicFiles.replace(csvPath, csvLines);
+            listeners.deletedAll(toDelete);
         } catch (IOException e) {
             throw new StorageException("Error deleting patient data", e);
         }
     }
 
-    private Patient fromCsv(String line) {
-        String[] parts = line.split(",", -1); // keep empty strings
-        String id = parts[0];
-        String name = parts[1];
-        String email = parts[2];
-        String password = parts[3];
-        boolean registered = Boolean.parseBoolean(parts[4]);
-        boolean marketingOptIn = Boolean.parseBoolean(parts[5]);
-        boolean flaggedNonPaying = Boolean.parseBoolean(parts[6]);
+    @Override
+    public String idOf(Patient patient) {
+        return patient.getId();
+    }
+
+    @Override
+    public List<AtomicFiles.Write> stage(Map<String, Patient> saved, Set<String> deleted)
+            throws StorageException {
+        List<Patient> patients = findAll();
+        patients.removeIf(p -> saved.containsKey(p.getId()) || deleted.contains(p.getId()));
+        patients.addAll(saved.values());
+
+        List<String> csvLines = patients.stream()
+                .map(PatientRepository::toCsv)
+                .collect(Collectors.toList());
+        return List.of(new AtomicFiles.Write(csvPath, csvLines));
+    }
+
+    @Override
+    public void committed(Map<String, Patient> saved, Set<String> deleted, List<AtomicFiles.Write> written) {
+        listeners.savedAll(saved.values());
+        listeners.deletedAll(deleted);
+    }
+
+    static Patient fromCsv(String line) {
+        CsvCodec.Row row = CsvCodec.row(line);
+        String id = row.next();
+        String name = row.next();
+        String email = row.next();
+        String password = row.next();
+        boolean registered = row.nextBoolean();
+        boolean marketingOptIn = row.nextBoolean();
+        boolean flaggedNonPaying = row.nextBoolean();
 
         Patient p = new Patient(id, name, email, password, registered, marketingOptIn);
         p.setFlaggedNonPaying(flaggedNonPaying);
         return p;
     }
 
-    private String toCsv(Patient p) {
-        return String.join(",",
-                safe(p.getId()),
-                safe(p.getName()),
-                safe(p.getEmail()),
-                safe(p.getPassword()),
+    static String toCsv(Patient p) {
+        return CsvCodec.join(
+                p.getId(),
+                p.getName(),
+                p.getEmail(),
+                p.getPassword(),
                 String.valueOf(p.isRegistered()),
                 String.valueOf(p.isMarketingOptIn()),
                 String.valueOf(p.isFlaggedNonPaying())
         );
     }
-
-    private String safe(String s) {
-        return s == null ? "" : s.replace(",", " "); // crude CSV escaping
-    }
 }
@@ -0,0 +1,127 @@
+package repository;
+
+import model.Promotion;
+
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Centered interval tree over the date ranges of active promotions.
+ * <p>
+ * Each node keeps the ranges that contain its center date twice, sorted by start and by
+ * end, and passes the ranges wholly before or after the center to its children. A lookup
+ * walks one root-to-leaf path and stops scanning a node's list at the first range that
+ * misses, so finding the k promotions running on a day costs O(log n + k) before the
+ * results are put in start order. Ranges are inclusive at both ends and only promotions
+ * with the active flag set are indexed.
+ * The index is immutable; the repository builds a new one after each write.
+ */
+class PromotionIntervalIndex {
+
+    private final Node root;
+    // days on which the set of running promotions can change: starts, and the day after ends
+    private final NavigableSet<LocalDate> boundaries = new TreeSet<>();
+
+    PromotionIntervalIndex(Collection<Promotion> promotions) {
+        List<Promotion> ranges = new ArrayList<>();
+        for (Promotion p : promotions) {
+            if (p.isActive() && p.getStartDate() != null && p.getEndDate() != null
+                    && !p.getEndDate().isBefore(p.getStartDate())) {
+                ranges.add(p);
+                boundaries.add(p.getStartDate());
+                boundaries.add(p.getEndDate().plusDays(1));
+            }
+        }
+        this.root = build(ranges);
+    }
+
+    /**
+     * Promotions whose range contains the day, ordered by start date then id.
+     */
+    List<Promotion> runningOn(LocalDate day) {
+        List<Promotion> result = new ArrayList<>();
+        Node node = root;
+        while (node != null) {
+            int cmp = day.compareTo(node.center);
+            if (cmp < 0) {
+                for (Promotion p : node.byStart) {
+                    if (p.getStartDate().isAfter(day)) {
+                        break;
+                    }
+                    result.add(p);
+                }
+                node = node.left;
+            } else if (cmp > 0) {
+                for (Promotion p : node.byEndDescending) {
+                    if (p.getEndDate().isBefore(day)) {
+                        break;
+                    }
+                    result.add(p);
+                }
+                node = node.right;
+            } else {
+                result.addAll(node.byStart);
+                node = null;
+            }
+        }
+        result.sort(BY_START);
+        return result;
+    }
+
+    /**
+     * The first day after the given one on which a promotion starts or ends.
+     */
+    Optional<LocalDate> nextBoundaryAfter(LocalDate day) {
+        return Optional.ofNullable(boundaries.higher(day));
+    }
+
+    private static final Comparator<Promotion> BY_START =
+            Comparator.comparing(Promotion::getStartDate).thenComparing(Promotion::getId);
+
+    private static Node build(List<Promotion> ranges) {
+        if (ranges.isEmpty()) {
+            return null;
+        }
+        // the median endpoint keeps the tree balanced
+        List<LocalDate> endpoints = new ArrayList<>(ranges.size() * 2);
+        for (Promotion p : ranges) {
+            endpoints.add(p.getStartDate());
+            endpoints.add(p.getEndDate());
+        }
+        Collections.sort(endpoints);
+        LocalDate center = endpoints.get(endpoints.size() / 2);
+
+        List<Promotion> before = new ArrayList<>();
+        List<Promotion> after = new ArrayList<>();
+        List<Promotion> spanning = new ArrayList<>();
+        for (Promotion p : ranges) {
+            if (p.getEndDate().isBefore(center)) {
+                before.add(p);
+            } else if (p.getStartDate().isAfter(center)) {
+                after.add(p);
+            } else {
+                spanning.add(p);
+            }
+        }
+        Node node = new Node(center, spanning);
+        node.left = build(before);
+        node.right = build(after);
+        return node;
+    }
+
+    private static final class Node {
+        private final LocalDate center;
+        private final List<Promotion> byStart;
+        private final List<Promotion> byEndDescending;
+        private Node left;
+        private Node right;
+
+        private Node(LocalDate center, List<Promotion> spanning) {
+            this.center = center;
+            this.byStart = new ArrayList<>(spanning);
+            byStart.sort(BY_START);
+            this.byEndDescending = new ArrayList<>(spanning);
+            byEndDescending.sort(Comparator.comparing(Promotion::getEndDate).reversed());
+        }
+    }
+}
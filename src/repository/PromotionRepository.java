@@ -5,22 +5,37 @@ import model.Promotion;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * CSV-based repository for Promotion entities.
+ * Date lookups are answered from a {@link PromotionIntervalIndex} that is rebuilt after each
+ * write through this repository and whenever the file's modification time or size shows it
+ * was edited elsewhere.
  */
-public class PromotionRepository implements Repository<Promotion> {
+public class PromotionRepository implements ListenableRepository<Promotion> {
+
+    /**
+     * Row mapping used by this repository, shared with alternative storage engines.
+     */
+    public static final EntityMapper<Promotion> MAPPER =
+            EntityMapper.of(Promotion::getId, PromotionRepository::toCsv, PromotionRepository::fromCsv);
 
     private final Path csvPath;
+    private final RepositoryListeners<Promotion> listeners = new RepositoryListeners<>();
     private static final DateTimeFormatter DATE_FORMATTER =
             DateTimeFormatter.ofPattern("yyyy-MM-dd");
 
+    private PromotionIntervalIndex intervals;
+    private FileTime indexedModified;
+    private long indexedSize;
+
     public PromotionRepository(String filePath) {
         this.csvPath = Paths.get(filePath);
         ensureFileExists();
@@ -32,17 +47,39 @@ public class PromotionRepository implements Repository<Promotion> {
                 Files.createDirectories(csvPath.getParent());
                 Files.createFile(csvPath);
             }
+            // finish any write a crash cut short before the file is read
+            AtomicFiles.recover(csvPath.toAbsolutePath().getParent());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    @Override
+    public void addListener(RepositoryListener<Promotion> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Active promotions whose date range (inclusive) contains the day, by start date.
+     */
+    public List<Promotion> findActiveOn(LocalDate day) throws StorageException {
+        return copies(intervalIndex().runningOn(day));
+    }
+
+    /**
+     * The first day after the given one on which an active promotion starts, or the day
+     * after one ends; that is, the next day {@link #findActiveOn} can answer differently.
+     */
+    public Optional<LocalDate> nextBoundaryAfter(LocalDate day) throws StorageException {
+        return intervalIndex().nextBoundaryAfter(day);
+    }
+
     @Override
     public Optional<Promotion> findById(String id) throws StorageException {
         try (Stream<String> lines = Files.lines(csvPath)) {
             return lines
                     .filter(line -> !line.isBlank())
-                    .map(this::fromCsv)
+                    .map(PromotionRepository::fromCsv)
                     .filter(p -> p.getId().equals(id))
                     .findFirst();
         } catch (IOException e) {
@@ -55,13 +92,25 @@ public class PromotionRepository implements Repository<Promotion> {
         try (Stream<String> lines = Files.lines(csvPath)) {
             return lines
                     .filter(line -> !line.isBlank())
-                    .map(this::fromCsv)
+                    .map(PromotionRepository::fromCsv)
                     .collect(Collectors.toList());
         } catch (IOException e) {
             throw new StorageException("Error reading promotion data", e);
         }
     }
 
+    @Override
+    public Stream<Promotion> stream() throws StorageException {
+        try {
+            // Files.lines closes the file when the returned stream is closed
+            return Files.lines(csvPath)
+                    .filter(line -> !line.isBlank())
+                    .map(PromotionRepository::fromCsv);
+        } catch (IOException e) {
+            throw new StorageException("Error reading promotion data", e);
+        }
+    }
+
     @Override
     public void save(Promotion promotion) throws StorageException {
         try {
@@ -70,9 +119,11 @@ public class PromotionRepository implements Repository<Promotion> {
             promotions.add(promotion);
 
             List<String> csvLines = promotions.stream()
-                    .map(this::toCsv)
+                    .map(PromotionRepository::toCsv)
                     .collect(Collectors.toList());
-            Files.write(csvPath, csvLines);
+            AtomicFiles.replace(csvPath, csvLines);
+            indexIntervals(promotions);
+            listeners.saved(promotion);
         } catch (IOException e) {
             throw new StorageException("Error writing promotion data", e);
         }
@@ -85,40 +136,134 @@ public class PromotionRepository implements Repository<Promotion> {
             promotions.removeIf(p -> p.getId().equals(id));
 
             List<String> csvLines = promotions.stream()
-                    .map(this::toCsv)
+                    .map(PromotionRepository::toCsv)
                     .collect(Collectors.toList());
-            Files.write(csvPath, csvLines);
+            AtomicFiles.replace(csvPath, csvLines);
+            indexIntervals(promotions);
+            listeners.deleted(id);
         } catch (IOException e) {
             throw new StorageException("Error deleting promotion data", e);
         }
     }
 
-    private Promotion fromCsv(String line) {
-        String[] parts = line.split(",", -1);
-        String id = parts[0];
-        String title = parts[1];
-        String message = parts[2];
-        LocalDate startDate = LocalDate.parse(parts[3], DATE_FORMATTER);
-        LocalDate endDate = LocalDate.parse(parts[4], DATE_FORMATTER);
-        boolean active = Boolean.parseBoolean(parts[5]);
+    @Override
+    public void saveAll(Collection<Promotion> batch) throws StorageException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            // later duplicates win, as if saved one by one
+            Map<String, Promotion> byId = new LinkedHashMap<>();
+            for (Promotion p : batch) {
+                byId.remove(p.getId());
+                byId.put(p.getId(), p);
+            }
+            List<Promotion> promotions = findAll();
+            promotions.removeIf(p -> byId.containsKey(p.getId()));
+            promotions.addAll(byId.values());
+
+            List<String> csvLines = promotions.stream()
+                    .map(PromotionRepository::toCsv)
+                    .collect(Collectors.toList());
+            AtomicFiles.replace(csvPath, csvLines);
+            indexIntervals(promotions);
+            listeners.savedAll(byId.values());
+        } catch (IOException e) {
+            throw new StorageException("Error writing promotion data", e);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> ids) throws StorageException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            Set<String> toDelete = new HashSet<>(ids);
+            List<Promotion> promotions = findAll();
+            promotions.removeIf(p -> toDelete.contains(p.getId()));
+
+            List<String> csvLines = promotions.stream()
+                    .map(PromotionRepository::toCsv)
+                    .collect(Collectors.toList());
+            AtomicFiles.replace(csvPath, csvLines);
+            indexIntervals(promotions);
+            listeners.deletedAll(toDelete);
+        } catch (IOException e) {
+            throw new StorageException("Error deleting promotion data", e);
+        }
+    }
+
+    private synchronized PromotionIntervalIndex intervalIndex() throws StorageException {
+        BasicFileAttributes attributes = attributes();
+        if (intervals == null
+                || !attributes.lastModifiedTime().equals(indexedModified)
+                || attributes.size() != indexedSize) {
+            build(findAll(), attributes);
+        }
+        return intervals;
+    }
+
+    // Called with the rows just written, so a write does not need a re-read to refresh the index.
+    private synchronized void indexIntervals(List<Promotion> promotions) throws StorageException {
+        build(promotions, attributes());
+    }
+
+    private void build(List<Promotion> promotions, BasicFileAttributes attributes) {
+        // first row per id wins, same as findById
+        Map<String, Promotion> byId = new LinkedHashMap<>();
+        for (Promotion p : promotions) {
+            byId.putIfAbsent(p.getId(), copy(p));
+        }
+        intervals = new PromotionIntervalIndex(byId.values());
+        indexedModified = attributes.lastModifiedTime();
+        indexedSize = attributes.size();
+    }
+
+    private BasicFileAttributes attributes() throws StorageException {
+        try {
+            return Files.readAttributes(csvPath, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new StorageException("Error reading promotion data", e);
+        }
+    }
+
+    private static List<Promotion> copies(Collection<Promotion> promotions) {
+        List<Promotion> result = new ArrayList<>(promotions.size());
+        for (Promotion p : promotions) {
+            result.add(copy(p));
+        }
+        return result;
+    }
+
+    // index entries are handed out as copies so callers cannot change them in place
+    private static Promotion copy(Promotion p) {
+        return new Promotion(p.getId(), p.getTitle(), p.getMessage(),
+                p.getStartDate(), p.getEndDate(), p.isActive());
+    }
+
+    private static Promotion fromCsv(String line) {
+        CsvCodec.Row row = CsvCodec.row(line);
+        String id = row.next();
+        String title = row.next();
+        String message = row.next();
+        LocalDate startDate = LocalDate.parse(row.next(), DATE_FORMATTER);
+        LocalDate endDate = LocalDate.parse(row.next(), DATE_FORMATTER);
+        boolean active = row.nextBoolean();
 
         Promotion p = new Promotion(id, title, message, startDate, endDate, active);
         p.setActive(active);
         return p;
     }
 
-    private String toCsv(Promotion p) {
-        return String.join(",",
-                safe(p.getId()),
-                safe(p.getTitle()),
-                safe(p.getMessage()),
+    private static String toCsv(Promotion p) {
+        return CsvCodec.join(
+                p.getId(),
+                p.getTitle(),
+                p.getMessage(),
                 p.getStartDate().format(DATE_FORMATTER),
                 p.getEndDate().format(DATE_FORMATTER),
                 String.valueOf(p.isActive())
         );
     }
-
-    private String safe(String s) {
-        return s == null ? "" : s.replace(",", " ");
-    }
 }
@@ -2,8 +2,10 @@ package repository;
 
 import exception.StorageException;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 public interface Repository<T> {
 
@@ -11,7 +13,24 @@ public interface Repository<T> {
 
     List<T> findAll() throws StorageException;
 
+    /**
+     * Lazily parses entities from the backing store. The stream holds the file open,
+     * so callers must close it (try-with-resources). Read failures while iterating
+     * surface as {@link java.io.UncheckedIOException}.
+     */
+    Stream<T> stream() throws StorageException;
+
     void save(T entity) throws StorageException;
 
     void delete(String id) throws StorageException;
-}
\ No newline at end of file
+
+    /**
+     * Saves every entity in the batch with a single write of the backing store.
+     */
+    void saveAll(Collection<T> entities) throws StorageException;
+
+    /**
+     * Deletes every id in the batch with a single write of the backing store.
+     */
+    void deleteAll(Collection<String> ids) throws StorageException;
+}
\ No newline at end of file
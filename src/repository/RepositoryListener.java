@@ -0,0 +1,12 @@
+package repository;
+
+/**
+ * Callback for changes written through a {@link ListenableRepository}.
+ * Called on the writing thread after the backing store has been updated.
+ */
+public interface RepositoryListener<T> {
+
+    void saved(T entity);
+
+    void deleted(String id);
+}
@@ -0,0 +1,37 @@
+package repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Listener list shared by the listenable repositories.
+ */
+class RepositoryListeners<T> {
+
+    private final List<RepositoryListener<T>> listeners = new CopyOnWriteArrayList<>();
+
+    void add(RepositoryListener<T> listener) {
+        listeners.add(listener);
+    }
+
+    void saved(T entity) {
+        for (RepositoryListener<T> listener : listeners) {
+            listener.saved(entity);
+        }
+    }
+
+    void savedAll(Collection<T> entities) {
+        entities.forEach(this::saved);
+    }
+
+    void deleted(String id) {
+        for (RepositoryListener<T> listener : listeners) {
+            listener.deleted(id);
+        }
+    }
+
+    void deletedAll(Collection<String> ids) {
+        ids.forEach(this::deleted);
+    }
+}
@@ -0,0 +1,110 @@
+package repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Byte-offset index from an id to the rows it owns in a CSV file, so those rows can be
+ * fetched with positioned reads instead of a scan. Each row is stored as a packed span
+ * (offset in the high bits, length in the low {@value #LENGTH_BITS} bits).
+ */
+class RowOffsets {
+
+    private static final int LENGTH_BITS = 24;
+    private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+    private static final long[] NO_SPANS = new long[0];
+
+    private final Map<String, long[]> spansById = new HashMap<>();
+
+    void add(String id, long offset, int length) {
+        if (length > LENGTH_MASK) {
+            throw new IllegalArgumentException("CSV row too long to index: " + length + " bytes");
+        }
+        long span = (offset << LENGTH_BITS) | length;
+        long[] spans = spansById.get(id);
+        if (spans == null) {
+            spansById.put(id, new long[]{span});
+        } else {
+            long[] grown = Arrays.copyOf(spans, spans.length + 1);
+            grown[spans.length] = span;
+            spansById.put(id, grown);
+        }
+    }
+
+    long[] spans(String id) {
+        return spansById.getOrDefault(id, NO_SPANS);
+    }
+
+    /**
+     * Recomputes every span from the lines exactly as {@code Files.write} lays them out.
+     */
+    void rebuild(List<String> lines, Function<String, String> idOfLine) {
+        spansById.clear();
+        int separatorBytes = System.lineSeparator().getBytes(StandardCharsets.UTF_8).length;
+        long offset = 0;
+        for (String line : lines) {
+            int length = utf8Length(line);
+            if (!line.isBlank()) {
+                add(idOfLine.apply(line), offset, length);
+            }
+            offset += length + separatorBytes;
+        }
+    }
+
+    /**
+     * Reads the rows at the given spans with positioned reads.
+     */
+    static List<String> read(Path path, long[] spans) throws IOException {
+        List<String> rows = new ArrayList<>(spans.length);
+        if (spans.length == 0) {
+            return rows;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel, spans);
+        }
+    }
+
+    /**
+     * Same, on a channel the caller keeps open across calls.
+     */
+    static List<String> read(FileChannel channel, long[] spans) throws IOException {
+        List<String> rows = new ArrayList<>(spans.length);
+        for (long span : spans) {
+            long position = span >>> LENGTH_BITS;
+            ByteBuffer buffer = ByteBuffer.allocate((int) (span & LENGTH_MASK));
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    break;
+                }
+            }
+            rows.add(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+        }
+        return rows;
+    }
+
+    private static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
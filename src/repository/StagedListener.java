@@ -0,0 +1,32 @@
+package repository;
+
+import exception.StorageException;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Listener that keeps files of its own in step with a repository's.
+ * <p>
+ * While a change is staged, on the writing thread and under the repository's lock, the
+ * listener is shown the stored and the new version of every entity involved and returns
+ * the full new content of each file it keeps. Those files are replaced in the same
+ * commit as the repository's own, so a crash can never leave them disagreeing.
+ * {@link #committed()} follows once the commit is in place; when the commit fails it is
+ * not called and whatever the listener staged is dropped.
+ */
+public interface StagedListener<T> {
+
+    /**
+     * @param before   stored version of each id the change touches; new ids are absent
+     * @param after    new version of each saved id; deleted ids are absent
+     * @param checksum what the repository's {@code checksum()} returns once this commit is
+     *                 in place
+     * @return new lines per file to replace in the same commit; empty to write nothing
+     */
+    Map<Path, List<String>> staging(Map<String, T> before, Map<String, T> after, long checksum)
+            throws StorageException;
+
+    void committed();
+}
@@ -0,0 +1,28 @@
+package repository;
+
+import exception.StorageException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Repository whose writes can join a {@link UnitOfWork}. The unit of work holds the
+ * repository's monitor from {@link #stage} until {@link #committed} returns, so nothing
+ * else writes the files in between.
+ */
+interface StagedRepository<T> extends Repository<T> {
+
+    String idOf(T entity);
+
+    /**
+     * The new contents of each file this repository would write for the changes, without
+     * writing anything. An id is never both saved and deleted.
+     */
+    List<AtomicFiles.Write> stage(Map<String, T> saved, Set<String> deleted) throws StorageException;
+
+    /**
+     * Called once the staged files are in place: updates in-memory state and tells listeners.
+     */
+    void committed(Map<String, T> saved, Set<String> deleted, List<AtomicFiles.Write> written);
+}
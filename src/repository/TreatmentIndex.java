@@ -0,0 +1,98 @@
+package repository;
+
+import model.Treatment;
+import model.TreatmentStatus;
+
+import java.util.*;
+
+/**
+ * Secondary indexes from clinician, patient and status to treatment ids.
+ * Id sets keep the row order of treatments.csv, so query results come back in file order.
+ */
+class TreatmentIndex {
+
+    private final Map<String, Set<String>> byClinician = new HashMap<>();
+    private final Map<String, Set<String>> byPatient = new HashMap<>();
+    private final Map<TreatmentStatus, Set<String>> byStatus = new EnumMap<>(TreatmentStatus.class);
+    private final Map<String, Map<TreatmentStatus, Set<String>>> byClinicianAndStatus = new HashMap<>();
+
+    // the keys each id is currently filed under, so updates can un-index the old values
+    private final Map<String, Keys> keysById = new HashMap<>();
+
+    synchronized void put(Treatment t) {
+        remove(t.getId());
+        Keys keys = new Keys(t.getClinicianId(), t.getPatientId(), t.getStatus());
+        keysById.put(t.getId(), keys);
+        byClinician.computeIfAbsent(keys.clinicianId, k -> new LinkedHashSet<>()).add(t.getId());
+        byPatient.computeIfAbsent(keys.patientId, k -> new LinkedHashSet<>()).add(t.getId());
+        byStatus.computeIfAbsent(keys.status, k -> new LinkedHashSet<>()).add(t.getId());
+        byClinicianAndStatus.computeIfAbsent(keys.clinicianId, k -> new EnumMap<>(TreatmentStatus.class))
+                .computeIfAbsent(keys.status, k -> new LinkedHashSet<>())
+                .add(t.getId());
+    }
+
+    synchronized void remove(String id) {
+        Keys keys = keysById.remove(id);
+        if (keys == null) {
+            return;
+        }
+        removeFrom(byClinician, keys.clinicianId, id);
+        removeFrom(byPatient, keys.patientId, id);
+        removeFrom(byStatus, keys.status, id);
+        Map<TreatmentStatus, Set<String>> statuses = byClinicianAndStatus.get(keys.clinicianId);
+        if (statuses != null) {
+            removeFrom(statuses, keys.status, id);
+            if (statuses.isEmpty()) {
+                byClinicianAndStatus.remove(keys.clinicianId);
+            }
+        }
+    }
+
+    synchronized boolean contains(String id) {
+        return keysById.containsKey(id);
+    }
+
+    synchronized Set<String> byClinician(String clinicianId) {
+        return copy(byClinician.get(clinicianId));
+    }
+
+    synchronized Set<String> byPatient(String patientId) {
+        return copy(byPatient.get(patientId));
+    }
+
+    synchronized Set<String> byStatus(TreatmentStatus status) {
+        return copy(byStatus.get(status));
+    }
+
+    synchronized Set<String> byClinicianAndStatus(String clinicianId, TreatmentStatus status) {
+        Map<TreatmentStatus, Set<String>> statuses = byClinicianAndStatus.get(clinicianId);
+        return copy(statuses == null ? null : statuses.get(status));
+    }
+
+    private static <K> void removeFrom(Map<K, Set<String>> index, K key, String id) {
+        Set<String> ids = index.get(key);
+        if (ids == null) {
+            return;
+        }
+        ids.remove(id);
+        if (ids.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static Set<String> copy(Set<String> ids) {
+        return ids == null ? new LinkedHashSet<>() : new LinkedHashSet<>(ids);
+    }
+
+    private static final class Keys {
+        private final String clinicianId;
+        private final String patientId;
+        private final TreatmentStatus status;
+
+        private Keys(String clinicianId, String patientId, TreatmentStatus status) {
+            this.clinicianId = clinicianId;
+            this.patientId = patientId;
+            this.status = status;
+        }
+    }
+}
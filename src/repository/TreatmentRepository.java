@@ -6,20 +6,38 @@ import model.TreatmentEntry;
 import model.TreatmentStatus;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 /**
  * CSV-based repository for Treatment entities and their TreatmentEntry line items.
  */
-public class TreatmentRepository implements Repository<Treatment> {
+public class TreatmentRepository implements ListenableRepository<Treatment>, StagedRepository<Treatment> {
 
     private final Path treatmentsCsvPath;
     private final Path entriesCsvPath;
+    private final RepositoryListeners<Treatment> listeners = new RepositoryListeners<>();
+    private final List<StagedListener<Treatment>> stagedListeners = new CopyOnWriteArrayList<>();
+
+    // built on first query, then kept current by save/delete
+    private TreatmentIndex index;
+    private RowOffsets treatmentOffsets;
+    private RowOffsets entryOffsets;
+    // size and mtime of each file when the indexes were last brought up to date
+    private FileStamp treatmentsStamp;
+    private FileStamp entriesStamp;
 
     private static final DateTimeFormatter DATE_TIME_FORMATTER =
             DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
@@ -37,29 +55,89 @@ public class TreatmentRepository implements Repository<Treatment> {
                 Files.createDirectories(path.getParent());
                 Files.createFile(path);
             }
+            // finish any write a crash cut short before the file is read
+            AtomicFiles.recover(path.toAbsolutePath().getParent());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    @Override
+    public void addListener(RepositoryListener<Treatment> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public long outsideChanges() throws StorageException {
+        try {
+            return FileChanges.outsideChanges(treatmentsCsvPath) + FileChanges.outsideChanges(entriesCsvPath);
+        } catch (IOException e) {
+            throw new StorageException("Error reading treatment file attributes", e);
+        }
+    }
+
+    /**
+     * Registers a listener whose files are written in the same commit as every change
+     * to the treatment files, whichever caller makes it. The stored versions it is shown
+     * are read from the treatment file alone and carry no entries.
+     */
+    public void addStagedListener(StagedListener<Treatment> listener) {
+        stagedListeners.add(listener);
+    }
+
+    /**
+     * Replaces a file a staged listener keeps, outside any treatment change. It goes
+     * through the same commit log as the staged writes, so a replay of an older commit
+     * cannot later overwrite it.
+     */
+    public synchronized void replaceListenerFile(Path path, List<String> lines) throws StorageException {
+        try {
+            AtomicFiles.replace(path, lines);
+        } catch (IOException e) {
+            throw new StorageException("Error writing " + path.getFileName(), e);
+        }
+    }
+
+    /**
+     * CRC-32 over the bytes of the treatment file followed by the entry file, so state
+     * derived from them can tell whether they changed since it was saved.
+     */
+    public synchronized long checksum() throws StorageException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        for (Path path : List.of(treatmentsCsvPath, entriesCsvPath)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                throw new StorageException("Error reading treatment data", e);
+            }
+        }
+        return crc.getValue();
+    }
+
     @Override
     public Optional<Treatment> findById(String id) throws StorageException {
-        List<Treatment> all = findAll();
-        return all.stream()
-                .filter(t -> t.getId().equals(id))
-                .findFirst();
+        return Optional.ofNullable(fetch(id));
     }
 
     public List<Treatment> findByClinician(String clinicianId) throws StorageException {
-        return findAll().stream()
-                .filter(t -> t.getClinicianId().equals(clinicianId))
-                .collect(Collectors.toList());
+        return findByIds(index().byClinician(clinicianId));
     }
 
     public List<Treatment> findByPatient(String patientId) throws StorageException {
-        return findAll().stream()
-                .filter(t -> t.getPatientId().equals(patientId))
-                .collect(Collectors.toList());
+        return findByIds(index().byPatient(patientId));
+    }
+
+    public List<Treatment> findByStatus(TreatmentStatus status) throws StorageException {
+        return findByIds(index().byStatus(status));
+    }
+
+    public List<Treatment> findByClinicianAndStatus(String clinicianId, TreatmentStatus status)
+            throws StorageException {
+        return findByIds(index().byClinicianAndStatus(clinicianId, status));
     }
 
     @Override
@@ -77,119 +155,420 @@ public class TreatmentRepository implements Repository<Treatment> {
         return treatments;
     }
 
+    /**
+     * Treatment rows are read and parsed as the stream is consumed, split into rows the
+     * same way {@link #findAll()} splits them. treatment_entries.csv is not ordered by
+     * treatment, so each treatment's entries are fetched by the byte offsets the index
+     * already holds rather than grouped up front; memory stays flat however many
+     * entries there are. Prefer the indexed findBy* methods when only a subset is needed,
+     * they only parse the matching rows. Close the stream to release the files.
+     */
     @Override
-    public void save(Treatment treatment) throws StorageException {
+    public Stream<Treatment> stream() throws StorageException {
+        RowOffsets entrySpans;
+        FileChannel entries;
+        Stream<String> rows;
+        synchronized (this) {
+            index();
+            // writes install new offsets rather than editing these, and the open files keep
+            // the contents they describe
+            entrySpans = entryOffsets;
+            try {
+                entries = FileChannel.open(entriesCsvPath, StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new StorageException("Error reading treatment entries file", e);
+            }
+            try {
+                rows = ParallelCsvLoader.rows(treatmentsCsvPath);
+            } catch (IOException e) {
+                closeQuietly(entries);
+                throw new StorageException("Error reading treatments file", e);
+            }
+        }
+        return rows.map(line -> {
+            Treatment t = treatmentFromCsv(line);
+            List<TreatmentEntry> treatmentEntries = new ArrayList<>();
+            try {
+                for (String row : RowOffsets.read(entries, entrySpans.spans(t.getId()))) {
+                    if (!t.getId().equals(leadingId(row))) {
+                        throw new IOException("Treatment entries changed while streaming " + t.getId());
+                    }
+                    treatmentEntries.add(entryFromCsv(row));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            t.setEntries(treatmentEntries);
+            return t;
+        }).onClose(() -> closeQuietly(entries));
+    }
+
+    private static void closeQuietly(FileChannel channel) {
         try {
-            // save/update core treatment
-            List<Treatment> allTreatments = readTreatments();
-            allTreatments.removeIf(t -> t.getId().equals(treatment.getId()));
-            allTreatments.add(treatment);
-            writeTreatments(allTreatments);
+            channel.close();
+        } catch (IOException e) {
+            // read-only; nothing was lost
+        }
+    }
+
+    // Rebuilt on first use and whenever either file changed outside this repository,
+    // e.g. rows appended by hand, which the recorded offsets would never reach.
+    private synchronized TreatmentIndex index() throws StorageException {
+        if (index == null
+                || !stamp(treatmentsCsvPath).equals(treatmentsStamp)
+                || !stamp(entriesCsvPath).equals(entriesStamp)) {
+            rebuildIndexes();
+        }
+        return index;
+    }
+
+    // One parallel pass over each file: secondary indexes from the treatment rows, byte offsets for both.
+    private synchronized void rebuildIndexes() throws StorageException {
+        TreatmentIndex builtIndex = new TreatmentIndex();
+        RowOffsets builtTreatmentOffsets = new RowOffsets();
+        RowOffsets builtEntryOffsets = new RowOffsets();
+        // taken first, so a change made while loading shows up as stale on the next query
+        FileStamp builtTreatmentsStamp = stamp(treatmentsCsvPath);
+        FileStamp builtEntriesStamp = stamp(entriesCsvPath);
+        try {
+            List<LocatedRow<Treatment>> treatments = ParallelCsvLoader.load(treatmentsCsvPath,
+                    (line, offset, length) -> new LocatedRow<>(treatmentFromCsv(line), offset, length));
+            for (LocatedRow<Treatment> row : treatments) {
+                builtIndex.put(row.value);
+                builtTreatmentOffsets.add(row.value.getId(), row.offset, row.length);
+            }
+            List<LocatedRow<String>> entryIds = ParallelCsvLoader.load(entriesCsvPath,
+                    (line, offset, length) -> new LocatedRow<>(leadingId(line), offset, length));
+            for (LocatedRow<String> row : entryIds) {
+                builtEntryOffsets.add(row.value, row.offset, row.length);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Error indexing treatment files", e);
+        }
+        index = builtIndex;
+        treatmentOffsets = builtTreatmentOffsets;
+        entryOffsets = builtEntryOffsets;
+        treatmentsStamp = builtTreatmentsStamp;
+        entriesStamp = builtEntriesStamp;
+    }
+
+    private static FileStamp stamp(Path path) throws StorageException {
+        try {
+            return FileStamp.of(path);
+        } catch (IOException e) {
+            throw new StorageException("Error reading treatment file attributes", e);
+        }
+    }
 
-            // ensure each entry has the treatmentId set
+    private synchronized List<Treatment> findByIds(Set<String> ids) throws StorageException {
+        List<Treatment> matches = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Treatment t = fetch(id);
+            if (t != null) {
+                matches.add(t);
+            }
+        }
+        return matches;
+    }
+
+    // A treatment row plus its entry rows via positioned reads; null when the id is not stored.
+    private synchronized Treatment fetch(String id) throws StorageException {
+        index();
+        try {
+            List<String> rows = readRows(treatmentsCsvPath, treatmentOffsets, id);
+            List<String> entryRows = readRows(entriesCsvPath, entryOffsets, id);
+            if (rows == null || entryRows == null) {
+                // changed outside this repository without changing size or mtime; re-index and read again
+                rebuildIndexes();
+                rows = readRows(treatmentsCsvPath, treatmentOffsets, id);
+                entryRows = readRows(entriesCsvPath, entryOffsets, id);
+                if (rows == null || entryRows == null) {
+                    throw new StorageException("Treatment files changed while reading " + id);
+                }
+            }
+            if (rows.isEmpty()) {
+                return null;
+            }
+            Treatment t = treatmentFromCsv(rows.get(0));
+            List<TreatmentEntry> entries = new ArrayList<>(entryRows.size());
+            for (String row : entryRows) {
+                entries.add(entryFromCsv(row));
+            }
+            t.setEntries(entries);
+            return t;
+        } catch (IOException e) {
+            throw new StorageException("Error reading treatment " + id, e);
+        }
+    }
+
+    // Returns null when a row at a recorded offset no longer belongs to the id.
+    private static List<String> readRows(Path path, RowOffsets offsets, String id) throws IOException {
+        List<String> rows = RowOffsets.read(path, offsets.spans(id));
+        for (String row : rows) {
+            if (!id.equals(leadingId(row))) {
+                return null;
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public synchronized void save(Treatment treatment) throws StorageException {
+        write(Map.of(treatment.getId(), treatment), Set.of(), "Error saving treatment data");
+    }
+
+    @Override
+    public synchronized void delete(String id) throws StorageException {
+        write(Map.of(), Set.of(id), "Error deleting treatment data");
+    }
+
+    @Override
+    public synchronized void saveAll(Collection<Treatment> batch) throws StorageException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // later duplicates win, as if saved one by one
+        Map<String, Treatment> byId = new LinkedHashMap<>();
+        for (Treatment treatment : batch) {
+            byId.remove(treatment.getId());
+            byId.put(treatment.getId(), treatment);
+        }
+        write(byId, Set.of(), "Error saving treatment data");
+    }
+
+    @Override
+    public synchronized void deleteAll(Collection<String> ids) throws StorageException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        write(Map.of(), new HashSet<>(ids), "Error deleting treatment data");
+    }
+
+    @Override
+    public String idOf(Treatment treatment) {
+        return treatment.getId();
+    }
+
+    /**
+     * Both files are always staged together, so a treatment row never reaches the disk
+     * without its entry rows.
+     */
+    @Override
+    public synchronized List<AtomicFiles.Write> stage(Map<String, Treatment> saved, Set<String> deleted)
+            throws StorageException {
+        // ensure each entry has the treatmentId set
+        for (Treatment treatment : saved.values()) {
             for (TreatmentEntry entry : treatment.getEntries()) {
                 entry.setTreatmentId(treatment.getId());
             }
+        }
+
+        List<Treatment> allTreatments = readTreatments();
+        Map<String, Treatment> before = new HashMap<>();
+        allTreatments.removeIf(t -> {
+            if (saved.containsKey(t.getId()) || deleted.contains(t.getId())) {
+                before.put(t.getId(), t);
+                return true;
+            }
+            return false;
+        });
+        allTreatments.addAll(saved.values());
 
-            // save/update entries
-            List<TreatmentEntry> allEntries = readEntries();
-            allEntries.removeIf(e -> e.getTreatmentId().equals(treatment.getId()));
+        List<TreatmentEntry> allEntries = readEntries();
+        allEntries.removeIf(e -> saved.containsKey(e.getTreatmentId()) || deleted.contains(e.getTreatmentId()));
+        for (Treatment treatment : saved.values()) {
             allEntries.addAll(treatment.getEntries());
-            writeEntries(allEntries);
-        } catch (IOException e) {
-            throw new StorageException("Error saving treatment data", e);
         }
+
+        List<AtomicFiles.Write> files = new ArrayList<>(List.of(
+                new AtomicFiles.Write(treatmentsCsvPath, allTreatments.stream()
+                        .map(this::treatmentToCsv)
+                        .collect(Collectors.toList())),
+                new AtomicFiles.Write(entriesCsvPath, allEntries.stream()
+                        .map(this::entryToCsv)
+                        .collect(Collectors.toList()))));
+        if (!stagedListeners.isEmpty()) {
+            long checksum = checksumOf(files);
+            for (StagedListener<Treatment> listener : stagedListeners) {
+                listener.staging(before, saved, checksum)
+                        .forEach((path, lines) -> files.add(new AtomicFiles.Write(path, lines)));
+            }
+        }
+        return files;
     }
 
+    // Same value checksum() reads back once these files are written.
+    private static long checksumOf(List<AtomicFiles.Write> files) {
+        CRC32 crc = new CRC32();
+        byte[] separator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        for (AtomicFiles.Write file : files) {
+            for (String line : file.lines) {
+                crc.update(line.getBytes(StandardCharsets.UTF_8));
+                crc.update(separator);
+            }
+        }
+        return crc.getValue();
+    }
 
     @Override
-    public void delete(String id) throws StorageException {
+    public synchronized void committed(Map<String, Treatment> saved, Set<String> deleted,
+                                       List<AtomicFiles.Write> written) {
+        // fresh objects, so streams still reading the previous files keep matching offsets;
+        // staged listeners' files are in the list too
+        for (AtomicFiles.Write file : written) {
+            if (file.path.equals(treatmentsCsvPath) && treatmentOffsets != null) {
+                treatmentOffsets = new RowOffsets();
+                treatmentOffsets.rebuild(file.lines, TreatmentRepository::leadingId);
+            } else if (file.path.equals(entriesCsvPath) && entryOffsets != null) {
+                entryOffsets = new RowOffsets();
+                entryOffsets.rebuild(file.lines, TreatmentRepository::leadingId);
+            }
+        }
         try {
-            List<Treatment> allTreatments = readTreatments();
-            allTreatments.removeIf(t -> t.getId().equals(id));
-            writeTreatments(allTreatments);
+            treatmentsStamp = FileStamp.of(treatmentsCsvPath);
+            entriesStamp = FileStamp.of(entriesCsvPath);
+        } catch (IOException e) {
+            // forces a full re-index on the next query
+            index = null;
+        }
+        indexDeleted(deleted);
+        indexSaved(saved.values());
+        stagedListeners.forEach(StagedListener::committed);
+        listeners.savedAll(saved.values());
+        listeners.deletedAll(deleted);
+    }
 
-            List<TreatmentEntry> allEntries = readEntries();
-            allEntries.removeIf(e -> e.getTreatmentId().equals(id));
-            writeEntries(allEntries);
+    private void write(Map<String, Treatment> saved, Set<String> deleted, String failure)
+            throws StorageException {
+        List<AtomicFiles.Write> files = stage(saved, deleted);
+        try {
+            AtomicFiles.replaceAll(files);
         } catch (IOException e) {
-            throw new StorageException("Error deleting treatment data", e);
+            throw new StorageException(failure, e);
         }
+        committed(saved, deleted, files);
     }
 
+    // Full reads parse the file in parallel chunks; rows come back in file order.
     private List<Treatment> readTreatments() throws StorageException {
-        try (Stream<String> lines = Files.lines(treatmentsCsvPath)) {
-            return lines
-                    .filter(line -> !line.isBlank())
-                    .map(this::treatmentFromCsv)
-                    .collect(Collectors.toList());
+        try {
+            return ParallelCsvLoader.load(treatmentsCsvPath, this::treatmentFromCsv);
         } catch (IOException e) {
             throw new StorageException("Error reading treatments file", e);
         }
     }
 
-    private void writeTreatments(List<Treatment> treatments) throws IOException {
-        List<String> lines = treatments.stream()
-                .map(this::treatmentToCsv)
-                .collect(Collectors.toList());
-        Files.write(treatmentsCsvPath, lines);
-    }
-
     private List<TreatmentEntry> readEntries() throws StorageException {
-        try (Stream<String> lines = Files.lines(entriesCsvPath)) {
-            return lines
-                    .filter(line -> !line.isBlank())
-                    .map(this::entryFromCsv)
-                    .collect(Collectors.toList());
+        try {
+            return ParallelCsvLoader.load(entriesCsvPath, this::entryFromCsv);
         } catch (IOException e) {
             throw new StorageException("Error reading treatment entries file", e);
         }
     }
 
-    private void writeEntries(List<TreatmentEntry> entries) throws IOException {
-        List<String> lines = entries.stream()
-                .map(this::entryToCsv)
-                .collect(Collectors.toList());
-        Files.write(entriesCsvPath, lines);
+    // Both files start every row with the treatment id.
+    private static String leadingId(String line) {
+        if (line.startsWith("\"")) {
+            return CsvCodec.row(line).next();
+        }
+        int comma = line.indexOf(',');
+        return comma < 0 ? line : line.substring(0, comma);
+    }
+
+    private synchronized void indexSaved(Collection<Treatment> treatments) {
+        if (index != null) {
+            treatments.forEach(index::put);
+        }
+    }
+
+    private synchronized void indexDeleted(Collection<String> ids) {
+        if (index != null) {
+            ids.forEach(index::remove);
+        }
+    }
+
+    private static final class FileStamp {
+        private final FileTime modified;
+        private final long size;
+
+        private FileStamp(FileTime modified, long size) {
+            this.modified = modified;
+            this.size = size;
+        }
+
+        static FileStamp of(Path path) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileStamp(attributes.lastModifiedTime(), attributes.size());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileStamp)) {
+                return false;
+            }
+            FileStamp other = (FileStamp) o;
+            return size == other.size && modified.equals(other.modified);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(modified, size);
+        }
+    }
+
+    private static final class LocatedRow<T> {
+        private final T value;
+        private final long offset;
+        private final int length;
+
+        private LocatedRow(T value, long offset, int length) {
+            this.value = value;
+            this.offset = offset;
+            this.length = length;
+        }
     }
 
     private Treatment treatmentFromCsv(String line) {
-        String[] parts = line.split(",", -1);
-        String id = parts[0];
-        String patientId = parts[1];
-        String clinicianId = parts[2];
-        TreatmentStatus status = TreatmentStatus.valueOf(parts[3]);
-        LocalDateTime createdAt = LocalDateTime.parse(parts[4], DATE_TIME_FORMATTER);
-        double totalCost = Double.parseDouble(parts[5]);
-        boolean paid = Boolean.parseBoolean(parts[6]);
+        CsvCodec.Row row = CsvCodec.row(line);
+        String id = row.next();
+        String patientId = row.next();
+        String clinicianId = row.next();
+        TreatmentStatus status = TreatmentStatus.valueOf(row.next());
+        LocalDateTime createdAt = LocalDateTime.parse(row.next(), DATE_TIME_FORMATTER);
+        double totalCost = row.nextDouble();
+        boolean paid = row.nextBoolean();
+        // rows written before catalog versions were recorded have no eighth column
+        long pricedCatalogVersion = row.hasNext() ? Long.parseLong(row.next()) : 0L;
 
         Treatment t = new Treatment(id, patientId, clinicianId);
         t.setStatus(status);
         t.setCreatedAt(createdAt);
         t.setTotalCost(totalCost);
         t.setPaid(paid);
+        t.setPricedCatalogVersion(pricedCatalogVersion);
         return t;
     }
 
     private String treatmentToCsv(Treatment t) {
-        return String.join(",",
-                safe(t.getId()),
-                safe(t.getPatientId()),
-                safe(t.getClinicianId()),
+        return CsvCodec.join(
+                t.getId(),
+                t.getPatientId(),
+                t.getClinicianId(),
                 t.getStatus().name(),
                 t.getCreatedAt().format(DATE_TIME_FORMATTER),
                 String.valueOf(t.getTotalCost()),
-                String.valueOf(t.isPaid())
+                String.valueOf(t.isPaid()),
+                String.valueOf(t.getPricedCatalogVersion())
         );
     }
 
     private TreatmentEntry entryFromCsv(String line) {
-        String[] parts = line.split(",", -1);
-        String treatmentId = parts[0];
-        String treatmentTypeId = parts[1];
-        int quantity = Integer.parseInt(parts[2]);
-        String notes = parts[3];
-        double lineCost = Double.parseDouble(parts[4]);
+        CsvCodec.Row row = CsvCodec.row(line);
+        String treatmentId = row.next();
+        String treatmentTypeId = row.next();
+        int quantity = row.nextInt();
+        String notes = row.next();
+        double lineCost = row.nextDouble();
 
         TreatmentEntry entry = new TreatmentEntry(treatmentId, treatmentTypeId, quantity, notes);
         entry.setLineCost(lineCost);
@@ -197,16 +576,12 @@ public class TreatmentRepository implements Repository<Treatment> {
     }
 
     private String entryToCsv(TreatmentEntry e) {
-        return String.join(",",
-                safe(e.getTreatmentId()),
-                safe(e.getTreatmentTypeId()),
+        return CsvCodec.join(
+                e.getTreatmentId(),
+                e.getTreatmentTypeId(),
                 String.valueOf(e.getQuantity()),
-                safe(e.getNotes()),
+                e.getNotes(),
                 String.valueOf(e.getLineCost())
         );
     }
-
-    private String safe(String s) {
-        return s == null ? "" : s.replace(",", " ");
-    }
 }
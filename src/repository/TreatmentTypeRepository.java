@@ -5,14 +5,19 @@ import model.TreatmentType;
 
 import java.io.IOException;
 import java.nio.file.*;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 
 public class TreatmentTypeRepository implements Repository<TreatmentType> {
 
+    /**
+     * Row mapping used by this repository, shared with alternative storage engines.
+     */
+    public static final EntityMapper<TreatmentType> MAPPER =
+            EntityMapper.of(TreatmentType::getId, TreatmentTypeRepository::toCsv, TreatmentTypeRepository::fromCsv);
+
     private final Path csvPath;
 
     public TreatmentTypeRepository(String filePath) {
@@ -26,6 +31,8 @@ public class TreatmentTypeRepository implements Repository<TreatmentType> {
                 Files.createDirectories(csvPath.getParent());
                 Files.createFile(csvPath);
             }
+            // finish any write a crash cut short before the file is read
+            AtomicFiles.recover(csvPath.toAbsolutePath().getParent());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -36,7 +43,7 @@ public class TreatmentTypeRepository implements Repository<TreatmentType> {
         try (Stream<String> lines = Files.lines(csvPath)) {
             return lines
                     .filter(line -> !line.isBlank())
-                    .map(this::fromCsv)
+                    .map(TreatmentTypeRepository::fromCsv)
                     .filter(tt -> tt.getId().equals(id))
                     .findFirst();
         } catch (IOException e) {
@@ -49,13 +56,25 @@ public class TreatmentTypeRepository implements Repository<TreatmentType> {
         try (Stream<String> lines = Files.lines(csvPath)) {
             return lines
                     .filter(line -> !line.isBlank())
-                    .map(this::fromCsv)
+                    .map(TreatmentTypeRepository::fromCsv)
                     .collect(Collectors.toList());
         } catch (IOException e) {
             throw new StorageException("Error reading treatment type data", e);
         }
     }
 
+    @Override
+    public Stream<TreatmentType> stream() throws StorageException {
+        try {
+            // Files.lines closes the file when the returned stream is closed
+            return Files.lines(csvPath)
+                    .filter(line -> !line.isBlank())
+                    .map(TreatmentTypeRepository::fromCsv);
+        } catch (IOException e) {
+            throw new StorageException("Error reading treatment type data", e);
+        }
+    }
+
     @Override
     public void save(TreatmentType type) throws StorageException {
         try {
@@ -64,9 +83,9 @@ public class TreatmentTypeRepository implements Repository<TreatmentType> {
             types.add(type);
 
             List<String> csvLines = types.stream()
-                    .map(this::toCsv)
+                    .map(TreatmentTypeRepository::toCsv)
                     .collect(Collectors.toList());
-            Files.write(csvPath, csvLines);
+            AtomicFiles.replace(csvPath, csvLines);
         } catch (IOException e) {
             throw new StorageException("Error writing treatment type data", e);
         }
@@ -79,34 +98,74 @@ public class TreatmentTypeRepository implements Repository<TreatmentType> {
             types.removeIf(t -> t.getId().equals(id));
 
             List<String> csvLines = types.stream()
-                    .map(this::toCsv)
+                    .map(TreatmentTypeRepository::toCsv)
+                    .collect(Collectors.toList());
+            AtomicFiles.replace(csvPath, csvLines);
+        } catch (IOException e) {
+            throw new StorageException("Error deleting treatment type data", e);
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<TreatmentType> batch) throws StorageException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            // later duplicates win, as if saved one by one
+            Map<String, TreatmentType> byId = new LinkedHashMap<>();
+            for (TreatmentType t : batch) {
+                byId.remove(t.getId());
+                byId.put(t.getId(), t);
+            }
+            List<TreatmentType> types = findAll();
+            types.removeIf(t -> byId.containsKey(t.getId()));
+            types.addAll(byId.values());
+
+            List<String> csvLines = types.stream()
+                    .map(TreatmentTypeRepository::toCsv)
+                    .collect(Collectors.toList());
+            AtomicFiles.replace(csvPath, csvLines);
+        } catch (IOException e) {
+            throw new StorageException("Error writing treatment type data", e);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> ids) throws StorageException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            Set<String> toDelete = new HashSet<>(ids);
+            List<TreatmentType> types = findAll();
+            types.removeIf(t -> toDelete.contains(t.getId()));
+
+            List<String> csvLines = types.stream()
+                    .map(TreatmentTypeRepository::toCsv)
                     .collect(Collectors.toList());
-            Files.write(csvPath, csvLines);
+            AtomicFiles.replace(csvPath, csvLines);
         } catch (IOException e) {
             throw new StorageException("Error deleting treatment type data", e);
         }
     }
 
-    private TreatmentType fromCsv(String line) {
-        String[] parts = line.split(",", -1);
-        String id = parts[0];
-        String name = parts[1];
-        double basePrice = Double.parseDouble(parts[2]);
-        boolean active = Boolean.parseBoolean(parts[3]);
+    private static TreatmentType fromCsv(String line) {
+        CsvCodec.Row row = CsvCodec.row(line);
+        String id = row.next();
+        String name = row.next();
+        double basePrice = row.nextDouble();
+        boolean active = row.nextBoolean();
 
         return new TreatmentType(id, name, basePrice, active);
     }
 
-    private String toCsv(TreatmentType t) {
-        return String.join(",",
-                safe(t.getId()),
-                safe(t.getName()),
+    private static String toCsv(TreatmentType t) {
+        return CsvCodec.join(
+                t.getId(),
+                t.getName(),
                 String.valueOf(t.getBasePrice()),
                 String.valueOf(t.isActive())
         );
     }
-
-    private String safe(String s) {
-        return s == null ? "" : s.replace(",", " ");
-    }
 }
@@ -0,0 +1,158 @@
+package repository;
+
+import exception.StorageException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the saves and deletes of one service call across repositories and writes
+ * them in a single commit.
+ * <p>
+ * Until {@link #commit()} nothing reaches the files. Repeated saves of the same entity
+ * collapse to the last one, so each affected file is written once per commit however
+ * many times the call touched it. All staged files are replaced together through
+ * {@link AtomicFiles}: after a crash either every file shows the commit or none does,
+ * which keeps a treatment row and its entry rows from ever being split.
+ * {@link #findById} reads through the pending changes and remembers what it read, so
+ * repeated existence checks within the call hit the files once.
+ * <p>
+ * Writes are accepted for the CSV repositories that can stage their files
+ * (patients and treatments); other repositories can still be read through it. Files kept
+ * by a repository's {@link StagedListener}s, such as the balance ledger, are part of the
+ * same commit.
+ * Not thread-safe; use one per call.
+ */
+public final class UnitOfWork {
+
+    // lock order of every repository that has joined a unit of work; unique, so a total order
+    private static final Map<Repository<?>, Long> LOCK_ORDER =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicLong NEXT_LOCK_ORDER = new AtomicLong();
+
+    // keyed by repository instance; repositories use identity equality
+    private final Map<Repository<?>, Batch<?>> batches = new LinkedHashMap<>();
+    private final Map<Repository<?>, Map<String, Optional<?>>> reads = new HashMap<>();
+
+    public <T> Optional<T> findById(Repository<T> repository, String id) throws StorageException {
+        Batch<T> batch = batchOf(repository);
+        if (batch != null) {
+            if (batch.saved.containsKey(id)) {
+                return Optional.of(batch.saved.get(id));
+            }
+            if (batch.deleted.contains(id)) {
+                return Optional.empty();
+            }
+        }
+        Map<String, Optional<?>> cached = reads.computeIfAbsent(repository, r -> new HashMap<>());
+        @SuppressWarnings("unchecked")
+        Optional<T> hit = (Optional<T>) cached.get(id);
+        if (hit == null) {
+            hit = repository.findById(id);
+            cached.put(id, hit);
+        }
+        return hit;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the repository cannot take part in a unit of work
+     */
+    public <T> void save(Repository<T> repository, T entity) {
+        Batch<T> batch = batchFor(repository);
+        String id = batch.repository.idOf(entity);
+        batch.deleted.remove(id);
+        // re-inserting keeps the order of the last save, as sequential saves would
+        batch.saved.remove(id);
+        batch.saved.put(id, entity);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the repository cannot take part in a unit of work
+     */
+    public <T> void delete(Repository<T> repository, String id) {
+        Batch<T> batch = batchFor(repository);
+        batch.saved.remove(id);
+        batch.deleted.add(id);
+    }
+
+    /**
+     * Writes every pending change, then clears them; a no-op when nothing is pending.
+     */
+    public void commit() throws StorageException {
+        List<Batch<?>> pending = new ArrayList<>();
+        for (Batch<?> batch : batches.values()) {
+            if (!batch.saved.isEmpty() || !batch.deleted.isEmpty()) {
+                pending.add(batch);
+            }
+        }
+        // a fixed lock order, so two commits over the same repositories cannot deadlock
+        pending.sort(Comparator.comparingLong(b -> b.lockOrder));
+        commitLocked(pending, 0);
+        batches.clear();
+        reads.clear();
+    }
+
+    private void commitLocked(List<Batch<?>> pending, int locked) throws StorageException {
+        if (locked < pending.size()) {
+            synchronized (pending.get(locked).repository) {
+                commitLocked(pending, locked + 1);
+            }
+            return;
+        }
+        List<List<AtomicFiles.Write>> staged = new ArrayList<>();
+        List<AtomicFiles.Write> writes = new ArrayList<>();
+        for (Batch<?> batch : pending) {
+            List<AtomicFiles.Write> files = batch.stage();
+            staged.add(files);
+            writes.addAll(files);
+        }
+        try {
+            AtomicFiles.replaceAll(writes);
+        } catch (IOException e) {
+            throw new StorageException("Error committing changes", e);
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            pending.get(i).committed(staged.get(i));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Batch<T> batchOf(Repository<T> repository) {
+        return (Batch<T>) batches.get(repository);
+    }
+
+    private <T> Batch<T> batchFor(Repository<T> repository) {
+        Batch<T> batch = batchOf(repository);
+        if (batch == null) {
+            if (!(repository instanceof StagedRepository)) {
+                throw new IllegalArgumentException(
+                        repository.getClass().getSimpleName() + " cannot take part in a unit of work");
+            }
+            long lockOrder = LOCK_ORDER.computeIfAbsent(repository, r -> NEXT_LOCK_ORDER.getAndIncrement());
+            batch = new Batch<>((StagedRepository<T>) repository, lockOrder);
+            batches.put(repository, batch);
+        }
+        return batch;
+    }
+
+    private static final class Batch<T> {
+        private final StagedRepository<T> repository;
+        private final long lockOrder;
+        private final Map<String, T> saved = new LinkedHashMap<>();
+        private final Set<String> deleted = new LinkedHashSet<>();
+
+        private Batch(StagedRepository<T> repository, long lockOrder) {
+            this.repository = repository;
+            this.lockOrder = lockOrder;
+        }
+
+        List<AtomicFiles.Write> stage() throws StorageException {
+            return repository.stage(saved, deleted);
+        }
+
+        void committed(List<AtomicFiles.Write> written) {
+            repository.committed(saved, deleted, written);
+        }
+    }
+}
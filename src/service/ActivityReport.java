@@ -0,0 +1,120 @@
+package service;
+
+import model.TreatmentStatus;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Revenue and throughput figures for the treatments created in a date range.
+ * Revenue is the costed total: per clinician and per month it sums treatment totals, per
+ * treatment type it sums line costs. Counts by status include uncosted treatments.
+ */
+public final class ActivityReport {
+
+    private final LocalDate from;
+    private final LocalDate to;
+    private final Totals overall;
+    private final Map<String, Totals> byClinician;
+    private final Map<String, Totals> byTreatmentType;
+    private final Map<YearMonth, Totals> byMonth;
+    private final Map<TreatmentStatus, Long> countByStatus;
+
+    ActivityReport(LocalDate from, LocalDate to, Totals overall,
+                   Map<String, Totals> byClinician,
+                   Map<String, Totals> byTreatmentType,
+                   Map<YearMonth, Totals> byMonth,
+                   EnumMap<TreatmentStatus, Long> countByStatus) {
+        this.from = from;
+        this.to = to;
+        this.overall = overall;
+        this.byClinician = Collections.unmodifiableMap(new TreeMap<>(byClinician));
+        this.byTreatmentType = Collections.unmodifiableMap(new TreeMap<>(byTreatmentType));
+        this.byMonth = Collections.unmodifiableMap(new TreeMap<>(byMonth));
+        this.countByStatus = Collections.unmodifiableMap(new EnumMap<>(countByStatus));
+    }
+
+    /**
+     * First day included, or null when the range is open at the start.
+     */
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    /**
+     * Last day included, or null when the range is open at the end.
+     */
+    public LocalDate getTo() {
+        return to;
+    }
+
+    /**
+     * Costed treatments across the whole range.
+     */
+    public Totals getOverall() {
+        return overall;
+    }
+
+    /**
+     * Costed treatments per clinician id, ordered by id.
+     */
+    public Map<String, Totals> getByClinician() {
+        return byClinician;
+    }
+
+    /**
+     * Costed entries per treatment type id, ordered by id.
+     */
+    public Map<String, Totals> getByTreatmentType() {
+        return byTreatmentType;
+    }
+
+    /**
+     * Costed treatments per month of creation, oldest first.
+     */
+    public Map<YearMonth, Totals> getByMonth() {
+        return byMonth;
+    }
+
+    /**
+     * Every treatment in the range per status, costed or not.
+     */
+    public Map<TreatmentStatus, Long> getCountByStatus() {
+        return countByStatus;
+    }
+
+    /**
+     * Count and sum for one group; the average is per counted item.
+     */
+    public static final class Totals {
+
+        private final long count;
+        private final double sum;
+
+        Totals(long count, double sum) {
+            this.count = count;
+            this.sum = sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getSum() {
+            return sum;
+        }
+
+        public double getAverage() {
+            return count == 0 ? 0.0 : sum / count;
+        }
+
+        @Override
+        public String toString() {
+            return "Totals{count=" + count + ", sum=" + sum + '}';
+        }
+    }
+}
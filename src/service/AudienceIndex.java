@@ -0,0 +1,368 @@
+package service;
+
+import exception.StorageException;
+import model.Patient;
+import model.Treatment;
+import model.TreatmentEntry;
+import repository.ListenableRepository;
+import repository.RepositoryListener;
+
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Bitmap indexes over patients for campaign targeting.
+ * <p>
+ * Every patient gets a dense ordinal on first sight. There is one bitmap per boolean
+ * {@link Patient} flag, and per treatment type one bitmap per creation day of the
+ * patients treated with it. An audience is then a few word-wise AND/OR/ANDNOT operations
+ * over {@link BitSet}s (see {@link SegmentExpression}) rather than a scan of patients
+ * and treatments. Built on first use and kept current through the repository listeners;
+ * rebuilt when a repository reports its files were changed from outside.
+ * <p>
+ * The flag bitmaps are plain {@link BitSet}s: they cover most patients, so they cost
+ * about {@code patients / 8} bytes each whatever the encoding. The per-day history
+ * buckets are usually very sparse, so they are kept roaring-style instead: a sorted
+ * array of ordinals (4 bytes per patient that day) that turns into a {@link BitSet}
+ * only once that is smaller. A bucket therefore never costs more than
+ * {@code min(4 * patientsThatDay, highestOrdinal / 8)} bytes, and the whole history
+ * stays proportional to the number of treatment-days rather than to
+ * {@code days * patients}.
+ */
+public class AudienceIndex {
+
+    private final ListenableRepository<Patient> patientRepository;
+    private final ListenableRepository<Treatment> treatmentRepository;
+
+    private final Map<String, Integer> ordinalById = new HashMap<>();
+    private final List<String> idByOrdinal = new ArrayList<>();
+    private final BitSet live = new BitSet();
+    private final BitSet optedIn = new BitSet();
+    private final BitSet registered = new BitSet();
+    private final BitSet flaggedNonPaying = new BitSet();
+
+    // type id -> creation day -> patients with a treatment of that type on that day
+    private final Map<String, NavigableMap<LocalDate, DayBucket>> typeHistory = new HashMap<>();
+    // what each treatment put into typeHistory, so removals can be replayed from memory
+    private final Map<String, Contribution> contributions = new HashMap<>();
+    private boolean historyStale;
+
+    private boolean loaded;
+    // sum of the repositories' outside change counts, taken before the last load
+    private long loadedChanges;
+    // changes reported while the stores are being read; replayed on top of the snapshot
+    private List<Runnable> changesDuringLoad;
+    // serializes loads; never taken by listeners
+    private final Object loadLock = new Object();
+
+    public AudienceIndex(ListenableRepository<Patient> patientRepository,
+                         ListenableRepository<Treatment> treatmentRepository) {
+        this.patientRepository = patientRepository;
+        this.treatmentRepository = treatmentRepository;
+        patientRepository.addListener(new RepositoryListener<>() {
+            @Override
+            public void saved(Patient patient) {
+                String id = patient.getId();
+                boolean[] flags = {patient.isMarketingOptIn(), patient.isRegistered(), patient.isFlaggedNonPaying()};
+                apply(() -> putPatient(id, flags));
+            }
+
+            @Override
+            public void deleted(String id) {
+                apply(() -> removePatient(id));
+            }
+        });
+        treatmentRepository.addListener(new RepositoryListener<>() {
+            @Override
+            public void saved(Treatment treatment) {
+                String id = treatment.getId();
+                Contribution c = Contribution.of(treatment);
+                apply(() -> putTreatment(id, c));
+            }
+
+            @Override
+            public void deleted(String id) {
+                apply(() -> removeTreatment(id));
+            }
+        });
+    }
+
+    /**
+     * Ids of the patients matching the segment expression, in registration order.
+     *
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    public Set<String> resolve(String expression) throws StorageException {
+        SegmentExpression segment = SegmentExpression.parse(expression);
+        ensureLoaded();
+        synchronized (this) {
+            BitSet audience = segment.evaluate(bitmaps(LocalDate.now()));
+            Set<String> ids = new LinkedHashSet<>(audience.cardinality() * 2);
+            for (int i = audience.nextSetBit(0); i >= 0; i = audience.nextSetBit(i + 1)) {
+                ids.add(idByOrdinal.get(i));
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Number of patients matching the segment expression.
+     *
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    public int count(String expression) throws StorageException {
+        SegmentExpression segment = SegmentExpression.parse(expression);
+        ensureLoaded();
+        synchronized (this) {
+            return segment.evaluate(bitmaps(LocalDate.now())).cardinality();
+        }
+    }
+
+    // The stores are read without holding this lock: repositories report writes while
+    // holding their own lock, so waiting on one from inside ours could deadlock.
+    private void ensureLoaded() throws StorageException {
+        synchronized (loadLock) {
+            // taken before reading, so an edit made during the read forces another load
+            long changes = patientRepository.outsideChanges() + treatmentRepository.outsideChanges();
+            synchronized (this) {
+                if (loaded && changes == loadedChanges) {
+                    return;
+                }
+                changesDuringLoad = new ArrayList<>();
+            }
+            Map<String, boolean[]> patients = new LinkedHashMap<>();
+            try (Stream<Patient> all = patientRepository.stream()) {
+                all.forEach(p -> patients.putIfAbsent(p.getId(),
+                        new boolean[]{p.isMarketingOptIn(), p.isRegistered(), p.isFlaggedNonPaying()}));
+            } catch (UncheckedIOException e) {
+                throw new StorageException("Error reading patients for the audience index", e);
+            }
+            Map<String, Contribution> treatments = new LinkedHashMap<>();
+            try (Stream<Treatment> all = treatmentRepository.stream()) {
+                all.forEach(t -> treatments.put(t.getId(), Contribution.of(t)));
+            } catch (UncheckedIOException e) {
+                throw new StorageException("Error reading treatments for the audience index", e);
+            }
+            synchronized (this) {
+                clear();
+                patients.forEach(this::putPatient);
+                treatments.forEach(this::putTreatment);
+                changesDuringLoad.forEach(Runnable::run);
+                changesDuringLoad = null;
+                loadedChanges = changes;
+                loaded = true;
+            }
+        }
+    }
+
+    // Changes are idempotent, so one made during a reload is applied now and again on top
+    // of the new snapshot.
+    private synchronized void apply(Runnable change) {
+        if (loaded) {
+            change.run();
+        }
+        if (changesDuringLoad != null) {
+            changesDuringLoad.add(change);
+        }
+    }
+
+    private void clear() {
+        ordinalById.clear();
+        idByOrdinal.clear();
+        live.clear();
+        optedIn.clear();
+        registered.clear();
+        flaggedNonPaying.clear();
+        typeHistory.clear();
+        contributions.clear();
+        historyStale = false;
+    }
+
+    private SegmentExpression.Bitmaps bitmaps(LocalDate today) {
+        if (historyStale) {
+            rebuildHistory();
+        }
+        return new SegmentExpression.Bitmaps() {
+            @Override
+            public BitSet all() {
+                return live;
+            }
+
+            @Override
+            public BitSet flag(String name) {
+                switch (name) {
+                    case "optedin":
+                        return optedIn;
+                    case "registered":
+                        return registered;
+                    case "flaggednonpaying":
+                        return flaggedNonPaying;
+                    default:
+                        throw new IllegalArgumentException("Unknown patient flag '" + name + "'.");
+                }
+            }
+
+            @Override
+            public BitSet treatmentType(String typeId, Integer withinDays) {
+                NavigableMap<LocalDate, DayBucket> days = typeHistory.get(typeId);
+                BitSet patients = new BitSet();
+                if (days == null) {
+                    return patients;
+                }
+                Collection<DayBucket> buckets = withinDays == null
+                        ? days.values()
+                        : days.tailMap(today.minusDays(withinDays), true).values();
+                for (DayBucket bucket : buckets) {
+                    bucket.orInto(patients);
+                }
+                return patients;
+            }
+        };
+    }
+
+    private int ordinalOf(String patientId) {
+        Integer ordinal = ordinalById.get(patientId);
+        if (ordinal == null) {
+            ordinal = idByOrdinal.size();
+            idByOrdinal.add(patientId);
+            ordinalById.put(patientId, ordinal);
+        }
+        return ordinal;
+    }
+
+    private void putPatient(String id, boolean[] flags) {
+        int ordinal = ordinalOf(id);
+        live.set(ordinal);
+        optedIn.set(ordinal, flags[0]);
+        registered.set(ordinal, flags[1]);
+        flaggedNonPaying.set(ordinal, flags[2]);
+    }
+
+    // The ordinal is kept so a re-created patient lines up with its treatment history.
+    private void removePatient(String id) {
+        Integer ordinal = ordinalById.get(id);
+        if (ordinal == null) {
+            return;
+        }
+        live.clear(ordinal);
+        optedIn.clear(ordinal);
+        registered.clear(ordinal);
+        flaggedNonPaying.clear(ordinal);
+    }
+
+    // Bits can only be added in place; anything that would take one away marks the history
+    // for a rebuild from the recorded contributions on the next query.
+    private void putTreatment(String id, Contribution c) {
+        Contribution previous = contributions.put(id, c);
+        if (previous != null && !c.covers(previous)) {
+            historyStale = true;
+            return;
+        }
+        if (!historyStale) {
+            addHistory(c);
+        }
+    }
+
+    private void removeTreatment(String id) {
+        if (contributions.remove(id) != null) {
+            historyStale = true;
+        }
+    }
+
+    private void rebuildHistory() {
+        typeHistory.clear();
+        contributions.values().forEach(this::addHistory);
+        historyStale = false;
+    }
+
+    private void addHistory(Contribution c) {
+        if (c.patientId == null || c.day == null) {
+            return;
+        }
+        int ordinal = ordinalOf(c.patientId);
+        for (String typeId : c.typeIds) {
+            typeHistory.computeIfAbsent(typeId, k -> new TreeMap<>())
+                    .computeIfAbsent(c.day, k -> new DayBucket())
+                    .add(ordinal);
+        }
+    }
+
+    /**
+     * The patients of one type on one day: a sorted ordinal array while that is smaller
+     * than a bitmap over the ordinals seen, a {@link BitSet} from then on.
+     */
+    private static final class DayBucket {
+        private int[] ordinals = new int[4];
+        private int size;
+        private BitSet dense;
+
+        void add(int ordinal) {
+            if (dense != null) {
+                dense.set(ordinal);
+                return;
+            }
+            int at = Arrays.binarySearch(ordinals, 0, size, ordinal);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            System.arraycopy(ordinals, at, ordinals, at + 1, size - at);
+            ordinals[at] = ordinal;
+            size++;
+            // 32 bits per array entry against one bit per ordinal up to the highest
+            if ((long) size * Integer.SIZE > ordinals[size - 1] + 1L) {
+                dense = new BitSet(ordinals[size - 1] + 1);
+                for (int i = 0; i < size; i++) {
+                    dense.set(ordinals[i]);
+                }
+                ordinals = null;
+                size = 0;
+            }
+        }
+
+        void orInto(BitSet target) {
+            if (dense != null) {
+                target.or(dense);
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                target.set(ordinals[i]);
+            }
+        }
+    }
+
+    private static final class Contribution {
+        private final String patientId;
+        private final LocalDate day;
+        private final Set<String> typeIds;
+
+        private Contribution(String patientId, LocalDate day, Set<String> typeIds) {
+            this.patientId = patientId;
+            this.day = day;
+            this.typeIds = typeIds;
+        }
+
+        static Contribution of(Treatment t) {
+            Set<String> types = new HashSet<>();
+            for (TreatmentEntry entry : t.getEntries()) {
+                if (entry.getTreatmentTypeId() != null) {
+                    types.add(entry.getTreatmentTypeId());
+                }
+            }
+            LocalDate day = t.getCreatedAt() == null ? null : t.getCreatedAt().toLocalDate();
+            return new Contribution(t.getPatientId(), day, types);
+        }
+
+        // true when this one sets every bit the other did
+        boolean covers(Contribution other) {
+            return Objects.equals(patientId, other.patientId)
+                    && Objects.equals(day, other.day)
+                    && typeIds.containsAll(other.typeIds);
+        }
+    }
+}
@@ -11,14 +11,24 @@ public class AuthService {
 
     private final PatientRepository patientRepo;
     private final ClinicianRepository clinicianRepo;
-    private final AdminRepository adminRepo;
+    private final ListenableRepository<CentreAdministrator> adminRepo;
+    private final CredentialDirectory directory;
 
     public AuthService(PatientRepository patientRepo,
                        ClinicianRepository clinicianRepo,
-                       AdminRepository adminRepo) {
+                       ListenableRepository<CentreAdministrator> adminRepo) {
+        this(patientRepo, clinicianRepo, adminRepo,
+                new CredentialDirectory(patientRepo, clinicianRepo, adminRepo));
+    }
+
+    public AuthService(PatientRepository patientRepo,
+                       ClinicianRepository clinicianRepo,
+                       ListenableRepository<CentreAdministrator> adminRepo,
+                       CredentialDirectory directory) {
         this.patientRepo = patientRepo;
         this.clinicianRepo = clinicianRepo;
         this.adminRepo = adminRepo;
+        this.directory = directory;
     }
 
     /**
@@ -28,33 +38,28 @@ public class AuthService {
     public User login(String email, String password)
             throws AuthenticationException, StorageException {
 
-        // 1. Admin
-        Optional<CentreAdministrator> adminOpt =
-                adminRepo.findByEmail(email);
-        if (adminOpt.isPresent() &&
-                adminOpt.get().getPassword().equals(password)) {
-            return adminOpt.get();
-        }
-
-        // 2. Clinician
-        Optional<Clinician> clinicianOpt =
-                clinicianRepo.findByEmail(email);
-        if (clinicianOpt.isPresent() &&
-                clinicianOpt.get().getPassword().equals(password)) {
-            return clinicianOpt.get();
-        }
-
-        // 3. Patient
-        Optional<Patient> patientOpt =
-                patientRepo.findByEmail(email);
-        if (patientOpt.isPresent() &&
-                patientOpt.get().getPassword().equals(password)) {
-            return patientOpt.get();
+        for (UserRole role : CredentialDirectory.LOGIN_ORDER) {
+            Optional<String> id = directory.findId(email, role);
+            if (id.isEmpty()) {
+                continue;
+            }
+            Optional<? extends User> user = findUser(role, id.get());
+            if (user.isPresent() && user.get().getPassword().equals(password)) {
+                return user.get();
+            }
         }
 
         throw new AuthenticationException("Invalid email or password.");
     }
 
+    private Optional<? extends User> findUser(UserRole role, String id) throws StorageException {
+        return switch (role) {
+            case ADMIN -> adminRepo.findById(id);
+            case CLINICIAN -> clinicianRepo.findById(id);
+            case PATIENT -> patientRepo.findById(id);
+        };
+    }
+
     /**
      * Convenience: login as Patient (throws AuthenticationException if credentials wrong or not a patient)
      */
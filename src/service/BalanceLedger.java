@@ -0,0 +1,259 @@
+package service;
+
+import exception.StorageException;
+import model.Treatment;
+import model.TreatmentStatus;
+import repository.CsvCodec;
+import repository.StagedListener;
+import repository.TreatmentRepository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Outstanding balance per patient: the sum of costed, unpaid treatment totals.
+ * <p>
+ * Every change to the treatment store moves the balances by the difference between the
+ * old and new amount owed, so reading one patient's balance is a hash lookup and the
+ * largest debtors come straight off a sorted set. The deltas come from the treatment
+ * repository itself (see {@link StagedListener}), so deletes and writes made by any
+ * caller are counted, exactly once each. When backed by a file ({@code patientId,balance}
+ * rows) the ledger is written in the same commit as the treatment files, and its first
+ * row records {@link TreatmentRepository#checksum()} as of that commit. A missing file,
+ * or one whose checksum no longer matches the treatment files (edited by hand, or written
+ * while no loaded ledger was attached), is recomputed from treatment history on load, as
+ * is everything on {@link #rebuild()}. Use one ledger per file.
+ */
+public class BalanceLedger {
+
+    // below half a cent a balance counts as settled; absorbs floating-point residue
+    private static final double EPSILON = 0.005;
+    private static final String CHECKSUM_ROW = "#treatments";
+
+    private final TreatmentRepository treatmentRepository;
+    private final Path ledgerPath;
+
+    private final Map<String, Double> balances = new HashMap<>();
+    private final NavigableSet<String> byBalance = new TreeSet<>(
+            Comparator.<String>comparingDouble(id -> -balances.get(id))
+                    .thenComparing(Comparator.naturalOrder()));
+    private volatile boolean loaded;
+    // new balance of each patient the commit in flight touches; applied once it is in place
+    private Map<String, Double> staged = Map.of();
+
+    /**
+     * A ledger kept in memory only, built from treatment history on first use.
+     */
+    public BalanceLedger(TreatmentRepository treatmentRepository) {
+        this(treatmentRepository, null);
+    }
+
+    public BalanceLedger(TreatmentRepository treatmentRepository, String ledgerCsvPath) {
+        this.treatmentRepository = treatmentRepository;
+        this.ledgerPath = ledgerCsvPath == null ? null : Paths.get(ledgerCsvPath);
+        treatmentRepository.addStagedListener(new StagedListener<>() {
+            @Override
+            public Map<Path, List<String>> staging(Map<String, Treatment> before,
+                                                   Map<String, Treatment> after, long checksum) {
+                return stage(before, after, checksum);
+            }
+
+            @Override
+            public void committed() {
+                applyStaged();
+            }
+        });
+    }
+
+    /**
+     * What a treatment adds to its patient's balance.
+     */
+    public static double owed(Treatment t) {
+        if (t.isPaid() || t.getStatus() == TreatmentStatus.PAID) {
+            return 0.0;
+        }
+        return Math.max(t.getTotalCost(), 0.0);
+    }
+
+    public double balanceOf(String patientId) throws StorageException {
+        ensureLoaded();
+        synchronized (this) {
+            return balances.getOrDefault(patientId, 0.0);
+        }
+    }
+
+    /**
+     * Up to {@code limit} patients with the largest outstanding balances, largest first
+     * (ties by patient id).
+     */
+    public LinkedHashMap<String, Double> topDebtors(int limit) throws StorageException {
+        ensureLoaded();
+        synchronized (this) {
+            LinkedHashMap<String, Double> top = new LinkedHashMap<>();
+            for (String id : byBalance) {
+                if (top.size() == limit) {
+                    break;
+                }
+                top.put(id, balances.get(id));
+            }
+            return top;
+        }
+    }
+
+    /**
+     * Recomputes every balance from the treatment store and persists the result.
+     */
+    public void rebuild() throws StorageException {
+        synchronized (treatmentRepository) {
+            synchronized (this) {
+                rebuildLocked();
+            }
+        }
+    }
+
+    // The repository's lock is taken first, the order commits take the two in, so no
+    // commit lands between reading the ledger and checking it against the treatments.
+    private void ensureLoaded() throws StorageException {
+        if (loaded) {
+            return;
+        }
+        synchronized (treatmentRepository) {
+            synchronized (this) {
+                if (loaded) {
+                    return;
+                }
+                Map<String, Double> stored = readStored();
+                if (stored == null) {
+                    rebuildLocked();
+                    return;
+                }
+                replaceWith(stored);
+                loaded = true;
+            }
+        }
+    }
+
+    private void rebuildLocked() throws StorageException {
+        Map<String, Double> totals = new HashMap<>();
+        try (Stream<Treatment> treatments = treatmentRepository.stream()) {
+            treatments.forEach(t -> {
+                double owed = owed(t);
+                if (owed > 0) {
+                    totals.merge(t.getPatientId(), owed, Double::sum);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw new StorageException("Error reading treatments for the balance ledger", e);
+        }
+        replaceWith(totals);
+        loaded = true;
+        persist(treatmentRepository.checksum());
+    }
+
+    // Null when there is no file or it was written for other treatment files.
+    private Map<String, Double> readStored() throws StorageException {
+        if (ledgerPath == null || Files.notExists(ledgerPath)) {
+            return null;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(ledgerPath);
+        } catch (IOException e) {
+            throw new StorageException("Error reading balance ledger", e);
+        }
+        if (lines.isEmpty()) {
+            return null;
+        }
+        CsvCodec.Row header = CsvCodec.row(lines.get(0));
+        if (!CHECKSUM_ROW.equals(header.next()) || !header.hasNext()
+                || Long.parseLong(header.next()) != treatmentRepository.checksum()) {
+            return null;
+        }
+        Map<String, Double> stored = new HashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (!line.isBlank()) {
+                CsvCodec.Row row = CsvCodec.row(line);
+                stored.put(row.next(), row.nextDouble());
+            }
+        }
+        return stored;
+    }
+
+    // Called under the repository's lock while a treatment change is staged. An unloaded
+    // ledger stages nothing: its file then no longer matches the checksum, so the next
+    // load recomputes it with the change included.
+    private synchronized Map<Path, List<String>> stage(Map<String, Treatment> before,
+                                                       Map<String, Treatment> after, long checksum) {
+        staged = Map.of();
+        if (!loaded) {
+            return Map.of();
+        }
+        Map<String, Double> deltas = new HashMap<>();
+        before.values().forEach(t -> deltas.merge(t.getPatientId(), -owed(t), Double::sum));
+        after.values().forEach(t -> deltas.merge(t.getPatientId(), owed(t), Double::sum));
+        Map<String, Double> next = new HashMap<>();
+        deltas.forEach((patientId, delta) -> {
+            if (delta != 0.0) {
+                next.put(patientId, balances.getOrDefault(patientId, 0.0) + delta);
+            }
+        });
+        staged = next;
+        if (ledgerPath == null) {
+            return Map.of();
+        }
+        Map<String, Double> all = new HashMap<>(balances);
+        all.putAll(next);
+        return Map.of(ledgerPath, rows(all, checksum));
+    }
+
+    private synchronized void applyStaged() {
+        staged.forEach(this::set);
+        staged = Map.of();
+    }
+
+    private void replaceWith(Map<String, Double> totals) {
+        byBalance.clear();
+        balances.clear();
+        totals.forEach(this::set);
+    }
+
+    // The id must leave the sorted set before the balance that orders it changes.
+    private void set(String patientId, double balance) {
+        if (balances.containsKey(patientId)) {
+            byBalance.remove(patientId);
+            balances.remove(patientId);
+        }
+        if (balance >= EPSILON) {
+            balances.put(patientId, balance);
+            byBalance.add(patientId);
+        }
+    }
+
+    private static List<String> rows(Map<String, Double> balances, long checksum) {
+        List<String> rows = new ArrayList<>(balances.size() + 1);
+        rows.add(CsvCodec.join(CHECKSUM_ROW, String.valueOf(checksum)));
+        balances.forEach((id, balance) -> {
+            if (balance >= EPSILON) {
+                rows.add(CsvCodec.join(id, String.valueOf(balance)));
+            }
+        });
+        return rows;
+    }
+
+    // Through the repository's commit log, like the staged writes: a replay of an older
+    // staged commit would otherwise overwrite a ledger written here directly.
+    private void persist(long checksum) throws StorageException {
+        if (ledgerPath == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(ledgerPath.toAbsolutePath().getParent());
+        } catch (IOException e) {
+            throw new StorageException("Error writing balance ledger", e);
+        }
+        treatmentRepository.replaceListenerFile(ledgerPath, rows(balances, checksum));
+    }
+}
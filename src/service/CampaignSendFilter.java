@@ -0,0 +1,286 @@
+package service;
+
+import exception.StorageException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Remembers which patients each promotion campaign has already reached.
+ * <p>
+ * A campaign is identified by its title. Per campaign there are two files in the filter
+ * directory: {@code <key>.sent}, an append-only list of patient ids that is the exact
+ * record, and {@code <key>.bloom}, a Bloom filter over the same ids. Checking a patient
+ * probes the filter in constant time; only a positive probe falls back to the exact list
+ * (loaded once per send), so false positives never suppress a real first send. The filter
+ * records how many ids of the list it covers, and on open any ids appended after it was
+ * last saved are added again, so a crash between the two writes cannot cause a re-send.
+ */
+public class CampaignSendFilter {
+
+    // target false-positive rate when sizing a filter
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int FORMAT = 1;
+
+    private final Path directory;
+
+    public CampaignSendFilter(String directory) {
+        this.directory = Paths.get(directory);
+    }
+
+    /**
+     * Opens the campaign's send record, sized for at least {@code expectedNew} more ids.
+     * Close it to save the filter.
+     */
+    public Campaign open(String title, int expectedNew) throws StorageException {
+        String key = keyOf(title);
+        Path sentPath = directory.resolve(key + ".sent");
+        Path bloomPath = directory.resolve(key + ".bloom");
+        try {
+            Files.createDirectories(directory);
+            Bloom bloom = Files.exists(bloomPath) ? Bloom.read(bloomPath) : null;
+            List<String> unfiltered = new ArrayList<>();
+            long sentCount = 0;
+            if (Files.exists(sentPath)) {
+                long covered = bloom == null ? 0 : bloom.count;
+                try (Stream<String> lines = Files.lines(sentPath, StandardCharsets.UTF_8)) {
+                    Iterator<String> it = lines.filter(l -> !l.isEmpty()).iterator();
+                    while (it.hasNext()) {
+                        String id = it.next();
+                        if (sentCount++ >= covered) {
+                            unfiltered.add(id);
+                        }
+                    }
+                }
+            }
+            long needed = sentCount + Math.max(expectedNew, 0);
+            if (bloom == null || bloom.capacity < needed) {
+                // too small for what is coming: size a new one and refill it from the exact list
+                bloom = Bloom.sized(needed);
+                unfiltered.clear();
+                if (sentCount > 0) {
+                    try (Stream<String> lines = Files.lines(sentPath, StandardCharsets.UTF_8)) {
+                        lines.filter(l -> !l.isEmpty()).forEach(unfiltered::add);
+                    }
+                }
+            }
+            for (String id : unfiltered) {
+                bloom.add(id);
+            }
+            return new Campaign(sentPath, bloomPath, bloom);
+        } catch (IOException | UncheckedIOException e) {
+            throw new StorageException("Error opening send record for campaign '" + title + "'", e);
+        }
+    }
+
+    // readable prefix plus a digest, so any title maps to a safe, distinct file name
+    private static String keyOf(String title) {
+        String normalized = title.trim().toLowerCase(Locale.ROOT);
+        String slug = normalized.replaceAll("[^a-z0-9]+", "-");
+        if (slug.length() > 40) {
+            slug = slug.substring(0, 40);
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(normalized.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(slug).append('-');
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Send record of one campaign. Not thread-safe; used by the thread running the send.
+     */
+    public static final class Campaign implements AutoCloseable {
+
+        private final Path sentPath;
+        private final Path bloomPath;
+        private final Bloom bloom;
+        private Set<String> exact;
+        private BufferedWriter appender;
+
+        private Campaign(Path sentPath, Path bloomPath, Bloom bloom) {
+            this.sentPath = sentPath;
+            this.bloomPath = bloomPath;
+            this.bloom = bloom;
+        }
+
+        /**
+         * Whether the patient was already sent this campaign.
+         *
+         * @throws UncheckedIOException if the exact list cannot be read
+         */
+        public boolean alreadySent(String patientId) {
+            if (!bloom.mightContain(patientId)) {
+                return false;
+            }
+            if (exact == null) {
+                exact = new HashSet<>();
+                if (Files.exists(sentPath)) {
+                    try (Stream<String> lines = Files.lines(sentPath, StandardCharsets.UTF_8)) {
+                        lines.filter(l -> !l.isEmpty()).forEach(exact::add);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+            return exact.contains(patientId);
+        }
+
+        /**
+         * Records a successful send; the id is written to the exact list at once.
+         */
+        public void recordSent(String patientId) throws StorageException {
+            try {
+                if (appender == null) {
+                    appender = Files.newBufferedWriter(sentPath, StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                appender.write(patientId);
+                appender.newLine();
+            } catch (IOException e) {
+                throw new StorageException("Error recording promotion send", e);
+            }
+            bloom.add(patientId);
+            if (exact != null) {
+                exact.add(patientId);
+            }
+        }
+
+        /**
+         * Flushes the exact list; call at the end of each batch.
+         */
+        public void flush() throws StorageException {
+            if (appender == null) {
+                return;
+            }
+            try {
+                appender.flush();
+            } catch (IOException e) {
+                throw new StorageException("Error recording promotion send", e);
+            }
+        }
+
+        /**
+         * Closes the exact list, then saves the filter with a temp file and atomic move.
+         */
+        @Override
+        public void close() throws StorageException {
+            try {
+                if (appender != null) {
+                    appender.close();
+                    appender = null;
+                }
+                Path temp = Files.createTempFile(bloomPath.getParent(), bloomPath.getFileName().toString(), ".tmp");
+                bloom.write(temp);
+                Files.move(temp, bloomPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new StorageException("Error saving promotion send filter", e);
+            }
+        }
+    }
+
+    private static final class Bloom {
+        private final long capacity;
+        private final int bits;
+        private final int hashes;
+        private final long[] words;
+        private long count;
+
+        private Bloom(long capacity, int bits, int hashes, long[] words, long count) {
+            this.capacity = capacity;
+            this.bits = bits;
+            this.hashes = hashes;
+            this.words = words;
+            this.count = count;
+        }
+
+        static Bloom sized(long needed) {
+            // leave headroom so repeated sends do not resize every time
+            long capacity = Math.max(MIN_CAPACITY, needed * 2);
+            double ln2 = Math.log(2);
+            long m = (long) Math.ceil(-capacity * Math.log(FALSE_POSITIVE_RATE) / (ln2 * ln2));
+            int bits = (int) Math.min(Integer.MAX_VALUE - 63, m);
+            int hashes = Math.max(1, (int) Math.round((double) bits / capacity * ln2));
+            return new Bloom(capacity, bits, hashes, new long[(bits + 63) / 64], 0);
+        }
+
+        void add(String id) {
+            long h = hash(id);
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                int bit = Math.floorMod(h1 + i * h2, bits);
+                words[bit >>> 6] |= 1L << bit;
+            }
+            count++;
+        }
+
+        boolean mightContain(String id) {
+            long h = hash(id);
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                int bit = Math.floorMod(h1 + i * h2, bits);
+                if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // 64-bit FNV-1a over the chars; the halves serve as the two base hashes
+        private static long hash(String id) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < id.length(); i++) {
+                h ^= id.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+
+        static Bloom read(Path path) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                if (in.readInt() != FORMAT) {
+                    return null;
+                }
+                long capacity = in.readLong();
+                int bits = in.readInt();
+                int hashes = in.readInt();
+                long count = in.readLong();
+                long[] words = new long[(bits + 63) / 64];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = in.readLong();
+                }
+                return new Bloom(capacity, bits, hashes, words, count);
+            } catch (EOFException e) {
+                // truncated file: rebuild from the exact list
+                return null;
+            }
+        }
+
+        void write(Path path) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+                out.writeInt(FORMAT);
+                out.writeLong(capacity);
+                out.writeInt(bits);
+                out.writeInt(hashes);
+                out.writeLong(count);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            }
+        }
+    }
+}
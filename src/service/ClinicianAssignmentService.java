@@ -0,0 +1,205 @@
+package service;
+
+import exception.StorageException;
+import model.Clinician;
+import model.Treatment;
+import model.TreatmentStatus;
+import repository.ListenableRepository;
+import repository.RepositoryListener;
+
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Picks the least-loaded clinician for a speciality.
+ * <p>
+ * Keeps an open-caseload counter per clinician (treatments that are neither paid nor in
+ * PAID status) and, per normalized speciality, a sorted set of clinician ids ordered by
+ * (open cases, id). Both are built on first use and then kept current by listening to the
+ * treatment and clinician repositories, so choosing a clinician is an O(log n) lookup.
+ * They are rebuilt when either repository reports its files were changed from outside.
+ */
+public class ClinicianAssignmentService {
+
+    private final ListenableRepository<Clinician> clinicianRepository;
+    private final ListenableRepository<Treatment> treatmentRepository;
+
+    private final Map<String, Clinician> clinicians = new HashMap<>();
+    private final Map<String, Integer> openCount = new HashMap<>();
+    // treatment id -> clinician id, for open treatments only
+    private final Map<String, String> openTreatments = new HashMap<>();
+    private final Map<String, NavigableSet<String>> bySpeciality = new HashMap<>();
+    private final Comparator<String> byLoad =
+            Comparator.<String>comparingInt(id -> openCount.getOrDefault(id, 0))
+                    .thenComparing(Comparator.naturalOrder());
+    private boolean loaded;
+    // sum of the repositories' outside change counts, taken before the last load
+    private long loadedChanges;
+
+    public ClinicianAssignmentService(ListenableRepository<Clinician> clinicianRepository,
+                                      ListenableRepository<Treatment> treatmentRepository) {
+        this.clinicianRepository = clinicianRepository;
+        this.treatmentRepository = treatmentRepository;
+        clinicianRepository.addListener(new RepositoryListener<>() {
+            @Override
+            public void saved(Clinician clinician) {
+                synchronized (ClinicianAssignmentService.this) {
+                    if (loaded) {
+                        removeClinician(clinician.getId());
+                        addClinician(clinician);
+                    }
+                }
+            }
+
+            @Override
+            public void deleted(String id) {
+                synchronized (ClinicianAssignmentService.this) {
+                    if (loaded) {
+                        removeClinician(id);
+                    }
+                }
+            }
+        });
+        treatmentRepository.addListener(new RepositoryListener<>() {
+            @Override
+            public void saved(Treatment treatment) {
+                synchronized (ClinicianAssignmentService.this) {
+                    if (loaded) {
+                        track(treatment);
+                    }
+                }
+            }
+
+            @Override
+            public void deleted(String id) {
+                synchronized (ClinicianAssignmentService.this) {
+                    if (loaded) {
+                        untrack(id);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * The clinician with the fewest open cases in the speciality (case-insensitive);
+     * ties go to the lowest id.
+     */
+    public synchronized Optional<Clinician> leastLoaded(String speciality) throws StorageException {
+        if (speciality == null) {
+            return Optional.empty();
+        }
+        ensureLoaded();
+        NavigableSet<String> ids = bySpeciality.get(normalize(speciality));
+        if (ids == null || ids.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(copy(clinicians.get(ids.first())));
+    }
+
+    public synchronized int openCaseload(String clinicianId) throws StorageException {
+        ensureLoaded();
+        return openCount.getOrDefault(clinicianId, 0);
+    }
+
+    private void ensureLoaded() throws StorageException {
+        long changes = clinicianRepository.outsideChanges() + treatmentRepository.outsideChanges();
+        if (loaded && changes == loadedChanges) {
+            return;
+        }
+        loaded = false;
+        clinicians.clear();
+        openCount.clear();
+        openTreatments.clear();
+        bySpeciality.clear();
+        // counts first, so clinicians enter their sets at the right position
+        try (Stream<Treatment> treatments = treatmentRepository.stream()) {
+            treatments.forEach(this::track);
+        } catch (UncheckedIOException e) {
+            throw new StorageException("Error reading treatments for clinician assignment", e);
+        }
+        try (Stream<Clinician> all = clinicianRepository.stream()) {
+            all.forEach(c -> {
+                if (!clinicians.containsKey(c.getId())) {
+                    addClinician(c);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw new StorageException("Error reading clinicians for assignment", e);
+        }
+        loadedChanges = changes;
+        loaded = true;
+    }
+
+    private void track(Treatment t) {
+        untrack(t.getId());
+        if (isOpen(t)) {
+            openTreatments.put(t.getId(), t.getClinicianId());
+            adjust(t.getClinicianId(), 1);
+        }
+    }
+
+    private void untrack(String treatmentId) {
+        String clinicianId = openTreatments.remove(treatmentId);
+        if (clinicianId != null) {
+            adjust(clinicianId, -1);
+        }
+    }
+
+    // Re-sorts the clinician: it must leave its set before the count that orders it changes.
+    private void adjust(String clinicianId, int delta) {
+        NavigableSet<String> ids = setOf(clinicianId);
+        if (ids != null) {
+            ids.remove(clinicianId);
+        }
+        int count = openCount.getOrDefault(clinicianId, 0) + delta;
+        if (count == 0) {
+            openCount.remove(clinicianId);
+        } else {
+            openCount.put(clinicianId, count);
+        }
+        if (ids != null) {
+            ids.add(clinicianId);
+        }
+    }
+
+    private void addClinician(Clinician c) {
+        clinicians.put(c.getId(), copy(c));
+        if (c.getSpeciality() != null) {
+            bySpeciality.computeIfAbsent(normalize(c.getSpeciality()), k -> new TreeSet<>(byLoad))
+                    .add(c.getId());
+        }
+    }
+
+    private void removeClinician(String id) {
+        NavigableSet<String> ids = setOf(id);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                bySpeciality.remove(normalize(clinicians.get(id).getSpeciality()));
+            }
+        }
+        clinicians.remove(id);
+    }
+
+    private NavigableSet<String> setOf(String clinicianId) {
+        Clinician c = clinicians.get(clinicianId);
+        if (c == null || c.getSpeciality() == null) {
+            return null;
+        }
+        return bySpeciality.get(normalize(c.getSpeciality()));
+    }
+
+    private static boolean isOpen(Treatment t) {
+        return !t.isPaid() && t.getStatus() != TreatmentStatus.PAID;
+    }
+
+    private static String normalize(String speciality) {
+        return speciality.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static Clinician copy(Clinician c) {
+        return new Clinician(c.getId(), c.getName(), c.getEmail(), c.getPassword(), c.getSpeciality());
+    }
+}
@@ -6,8 +6,8 @@ import model.Clinician;
 import repository.ClinicianRepository;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 public class ClinicianService {
 
@@ -26,9 +26,16 @@ public class ClinicianService {
     }
 
     public List<Clinician> getCliniciansBySpeciality(String speciality) throws StorageException {
-        return clinicianRepository.findAll().stream()
-                .filter(c -> c.getSpeciality().equalsIgnoreCase(speciality))
-                .collect(Collectors.toList());
+        return clinicianRepository.findBySpeciality(speciality);
+    }
+
+    public List<Clinician> getCliniciansBySpecialityPrefix(String prefix) throws StorageException {
+        return clinicianRepository.findBySpecialityPrefix(prefix);
+    }
+
+    // clinician head-count per speciality, for capacity screens
+    public Map<String, Integer> getSpecialityCounts() throws StorageException {
+        return clinicianRepository.countBySpeciality();
     }
 
     public List<Clinician> getAllClinicians() throws StorageException {
@@ -0,0 +1,147 @@
+package service;
+
+import exception.StorageException;
+import model.Treatment;
+import model.TreatmentStatus;
+import repository.RepositoryListener;
+import repository.TreatmentRepository;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Work queue of treatments that are assessed but not yet costed, oldest first.
+ * <p>
+ * Seeded once from the status index, then kept current by listening to the treatment
+ * repository: assessing a treatment pushes it, costing (or any other change that takes it
+ * out of TREATMENT_ASSESSED with a zero total) pops it. Pages are read with a keyset cursor,
+ * so fetching a page costs O(log n + page size) however long the history is. The queue is
+ * seeded again when the repository reports its files were changed from outside.
+ */
+public class CostingQueue {
+
+    private static final Comparator<Key> ORDER =
+            Comparator.comparing((Key k) -> k.createdAt).thenComparing(k -> k.id);
+
+    private final TreatmentRepository treatmentRepository;
+    private final NavigableSet<Key> queue = new TreeSet<>(ORDER);
+    private final Map<String, Key> keysById = new HashMap<>();
+    private boolean loaded;
+    // the repository's outside change count, taken before the last seed query
+    private long loadedChanges;
+    // changes reported while the seed query runs; replayed on top of it
+    private List<Runnable> changesDuringLoad;
+    // serializes loads; never taken by the listener
+    private final Object loadLock = new Object();
+
+    public CostingQueue(TreatmentRepository treatmentRepository) {
+        this.treatmentRepository = treatmentRepository;
+        treatmentRepository.addListener(new RepositoryListener<>() {
+            @Override
+            public void saved(Treatment treatment) {
+                String id = treatment.getId();
+                Key key = isPending(treatment) ? new Key(id, treatment.getCreatedAt()) : null;
+                apply(() -> put(id, key));
+            }
+
+            @Override
+            public void deleted(String id) {
+                apply(() -> put(id, null));
+            }
+        });
+    }
+
+    public int size() throws StorageException {
+        ensureLoaded();
+        synchronized (this) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Ids of up to {@code limit} pending treatments that come after the given one in queue
+     * order, or from the start when {@code after} is null. The cursor treatment does not
+     * need to still be queued.
+     */
+    public List<String> page(Treatment after, int limit) throws StorageException {
+        ensureLoaded();
+        synchronized (this) {
+            Iterable<Key> from = after == null
+                    ? queue
+                    : queue.tailSet(new Key(after.getId(), after.getCreatedAt()), false);
+            List<String> ids = new ArrayList<>(Math.min(limit, queue.size()));
+            for (Key key : from) {
+                if (ids.size() == limit) {
+                    break;
+                }
+                ids.add(key.id);
+            }
+            return ids;
+        }
+    }
+
+    // The seed query runs without holding this lock: the repository reports writes while
+    // holding its own lock, so waiting on it from inside ours could deadlock.
+    private void ensureLoaded() throws StorageException {
+        synchronized (loadLock) {
+            // taken before the query, so an edit made during it forces another seed
+            long changes = treatmentRepository.outsideChanges();
+            synchronized (this) {
+                if (loaded && changes == loadedChanges) {
+                    return;
+                }
+                changesDuringLoad = new ArrayList<>();
+            }
+            List<Treatment> assessed = treatmentRepository.findByStatus(TreatmentStatus.TREATMENT_ASSESSED);
+            synchronized (this) {
+                queue.clear();
+                keysById.clear();
+                for (Treatment t : assessed) {
+                    put(t.getId(), isPending(t) ? new Key(t.getId(), t.getCreatedAt()) : null);
+                }
+                changesDuringLoad.forEach(Runnable::run);
+                changesDuringLoad = null;
+                loadedChanges = changes;
+                loaded = true;
+            }
+        }
+    }
+
+    // Changes are idempotent, so one made during a reseed is applied now and again on top
+    // of the new seed.
+    private synchronized void apply(Runnable change) {
+        if (loaded) {
+            change.run();
+        }
+        if (changesDuringLoad != null) {
+            changesDuringLoad.add(change);
+        }
+    }
+
+    // Queues the id under the key, or drops it when the key is null.
+    private void put(String id, Key key) {
+        Key previous = keysById.remove(id);
+        if (previous != null) {
+            queue.remove(previous);
+        }
+        if (key != null) {
+            keysById.put(id, key);
+            queue.add(key);
+        }
+    }
+
+    // same rule as TreatmentService.getAssessedTreatmentsPendingCosting always used
+    static boolean isPending(Treatment t) {
+        return t.getStatus() == TreatmentStatus.TREATMENT_ASSESSED && t.getTotalCost() == 0.0;
+    }
+
+    private static final class Key {
+        private final String id;
+        private final LocalDateTime createdAt;
+
+        private Key(String id, LocalDateTime createdAt) {
+            this.id = id;
+            this.createdAt = createdAt;
+        }
+    }
+}
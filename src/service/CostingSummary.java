@@ -0,0 +1,53 @@
+package service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a bulk costing run: how many treatments were priced, their combined total,
+ * and the treatments that were left pending with the reason why.
+ */
+public final class CostingSummary {
+
+    private final int costedCount;
+    private final double total;
+    private final long catalogVersion;
+    private final Map<String, String> failures;
+
+    CostingSummary(int costedCount, double total, long catalogVersion, Map<String, String> failures) {
+        this.costedCount = costedCount;
+        this.total = total;
+        this.catalogVersion = catalogVersion;
+        this.failures = Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+    }
+
+    public int getCostedCount() {
+        return costedCount;
+    }
+
+    public double getTotal() {
+        return total;
+    }
+
+    public long getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    /**
+     * Treatment id to the reason it was not costed, in queue order.
+     */
+    public Map<String, String> getFailures() {
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return "CostingSummary{" +
+                "costedCount=" + costedCount +
+                ", total=" + total +
+                ", catalogVersion=" + catalogVersion +
+                ", failures=" + failures.size() +
+                '}';
+    }
+}
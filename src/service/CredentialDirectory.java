@@ -0,0 +1,184 @@
+package service;
+
+import exception.StorageException;
+import model.CentreAdministrator;
+import model.Clinician;
+import model.Patient;
+import model.User;
+import model.UserRole;
+import repository.ListenableRepository;
+import repository.RepositoryListener;
+
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * In-memory login directory from normalized email to the ids registered under it, per role.
+ * <p>
+ * Built from the admin, clinician and patient stores on first use and kept current through
+ * their listeners, so resolving a login is one hash probe instead of a scan of three files.
+ * Listeners only hear about the application's own writes, so each lookup also asks the
+ * stores whether their files were changed from outside, and rebuilds if one was.
+ * Ids for one email keep file order (saves move a row to the end of its file), so the first
+ * id matches what a scan of that file would find first.
+ */
+public class CredentialDirectory {
+
+    /**
+     * Order in which roles are tried for an email, highest precedence first.
+     */
+    public static final List<UserRole> LOGIN_ORDER =
+            List.of(UserRole.ADMIN, UserRole.CLINICIAN, UserRole.PATIENT);
+
+    private final ListenableRepository<Patient> patientRepository;
+    private final ListenableRepository<Clinician> clinicianRepository;
+    private final ListenableRepository<CentreAdministrator> adminRepository;
+
+    private final Map<String, Map<UserRole, Set<String>>> idsByEmail = new HashMap<>();
+    private final Map<UserRole, Map<String, String>> emailById = new EnumMap<>(UserRole.class);
+    private boolean loaded;
+    // sum of the stores' outside change counts, taken before the last load
+    private long loadedChanges;
+    // changes reported while the stores are being read; replayed on top of the snapshot
+    private List<Runnable> changesDuringLoad;
+    // serializes loads; never taken by listeners
+    private final Object loadLock = new Object();
+
+    public CredentialDirectory(ListenableRepository<Patient> patientRepository,
+                               ListenableRepository<Clinician> clinicianRepository,
+                               ListenableRepository<CentreAdministrator> adminRepository) {
+        this.patientRepository = patientRepository;
+        this.clinicianRepository = clinicianRepository;
+        this.adminRepository = adminRepository;
+        for (UserRole role : UserRole.values()) {
+            emailById.put(role, new HashMap<>());
+        }
+        patientRepository.addListener(listenerFor(UserRole.PATIENT));
+        clinicianRepository.addListener(listenerFor(UserRole.CLINICIAN));
+        adminRepository.addListener(listenerFor(UserRole.ADMIN));
+    }
+
+    /**
+     * The id of the first user with this email in the given role's store.
+     */
+    public Optional<String> findId(String email, UserRole role) throws StorageException {
+        return findIds(email, role).stream().findFirst();
+    }
+
+    /**
+     * Ids of every user with this email in the given role's store, in file order.
+     */
+    public List<String> findIds(String email, UserRole role) throws StorageException {
+        if (email == null) {
+            return new ArrayList<>();
+        }
+        ensureLoaded();
+        synchronized (this) {
+            Map<UserRole, Set<String>> roles = idsByEmail.get(normalize(email));
+            Set<String> ids = roles == null ? null : roles.get(role);
+            return ids == null ? new ArrayList<>() : new ArrayList<>(ids);
+        }
+    }
+
+    // The stores are read without holding this lock: repositories report writes while
+    // holding their own lock, so waiting on one from inside ours could deadlock.
+    private void ensureLoaded() throws StorageException {
+        synchronized (loadLock) {
+            // taken before reading, so an edit made during the read forces another load
+            long changes = adminRepository.outsideChanges()
+                    + clinicianRepository.outsideChanges()
+                    + patientRepository.outsideChanges();
+            synchronized (this) {
+                if (loaded && changes == loadedChanges) {
+                    return;
+                }
+                changesDuringLoad = new ArrayList<>();
+            }
+            Map<UserRole, Map<String, String>> snapshot = new EnumMap<>(UserRole.class);
+            snapshot.put(UserRole.ADMIN, read(adminRepository));
+            snapshot.put(UserRole.CLINICIAN, read(clinicianRepository));
+            snapshot.put(UserRole.PATIENT, read(patientRepository));
+            synchronized (this) {
+                idsByEmail.clear();
+                emailById.values().forEach(Map::clear);
+                snapshot.forEach((role, emails) -> emails.forEach((id, email) -> put(role, id, email)));
+                changesDuringLoad.forEach(Runnable::run);
+                changesDuringLoad = null;
+                loadedChanges = changes;
+                loaded = true;
+            }
+        }
+    }
+
+    // id -> email in file order
+    private static Map<String, String> read(ListenableRepository<? extends User> repository)
+            throws StorageException {
+        Map<String, String> emails = new LinkedHashMap<>();
+        try (Stream<? extends User> users = repository.stream()) {
+            // a scan by id would stop at the first row, so later duplicates are ignored
+            users.forEach(u -> emails.putIfAbsent(u.getId(), u.getEmail()));
+        } catch (UncheckedIOException e) {
+            throw new StorageException("Error reading user credentials", e);
+        }
+        return emails;
+    }
+
+    private <T extends User> RepositoryListener<T> listenerFor(UserRole role) {
+        return new RepositoryListener<>() {
+            @Override
+            public void saved(T user) {
+                String id = user.getId();
+                String email = user.getEmail();
+                apply(() -> {
+                    remove(role, id);
+                    put(role, id, email);
+                });
+            }
+
+            @Override
+            public void deleted(String id) {
+                apply(() -> remove(role, id));
+            }
+        };
+    }
+
+    // Changes are idempotent, so one made during a reload is applied now and again on top
+    // of the new snapshot.
+    private synchronized void apply(Runnable change) {
+        if (loaded) {
+            change.run();
+        }
+        if (changesDuringLoad != null) {
+            changesDuringLoad.add(change);
+        }
+    }
+
+    private void put(UserRole role, String id, String rawEmail) {
+        String email = normalize(rawEmail);
+        emailById.get(role).put(id, email);
+        idsByEmail.computeIfAbsent(email, k -> new EnumMap<>(UserRole.class))
+                .computeIfAbsent(role, k -> new LinkedHashSet<>())
+                .add(id);
+    }
+
+    private void remove(UserRole role, String id) {
+        String email = emailById.get(role).remove(id);
+        if (email == null) {
+            return;
+        }
+        Map<UserRole, Set<String>> roles = idsByEmail.get(email);
+        Set<String> ids = roles.get(role);
+        ids.remove(id);
+        if (ids.isEmpty()) {
+            roles.remove(role);
+        }
+        if (roles.isEmpty()) {
+            idsByEmail.remove(email);
+        }
+    }
+
+    private static String normalize(String email) {
+        return email.toLowerCase(Locale.ROOT);
+    }
+}
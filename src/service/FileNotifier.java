@@ -0,0 +1,42 @@
+package service;
+
+import exception.NotificationException;
+import model.Patient;
+import repository.CsvCodec;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.*;
+
+/**
+ * In-process stand-in for a mail gateway: every message becomes one
+ * {@code email,title,message} row in an outbox file.
+ */
+public class FileNotifier implements Notifier {
+
+    private final Path outboxPath;
+
+    public FileNotifier(String outboxPath) {
+        this.outboxPath = Paths.get(outboxPath);
+    }
+
+    @Override
+    public synchronized void send(Patient recipient, String title, String message)
+            throws NotificationException {
+        if (recipient.getEmail() == null || recipient.getEmail().isBlank()) {
+            throw new NotificationException("Patient " + recipient.getId() + " has no email address.");
+        }
+        try {
+            if (outboxPath.getParent() != null) {
+                Files.createDirectories(outboxPath.getParent());
+            }
+            try (BufferedWriter out = Files.newBufferedWriter(outboxPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(CsvCodec.join(recipient.getEmail(), title, message));
+                out.newLine();
+            }
+        } catch (IOException e) {
+            throw new NotificationException("Error writing to outbox", e);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package service;
+
+import exception.NotificationException;
+import model.Patient;
+
+/**
+ * Delivers a promotion to one patient. Implementations are called from several threads
+ * at once and must be thread-safe.
+ */
+public interface Notifier {
+
+    void send(Patient recipient, String title, String message) throws NotificationException;
+}
@@ -5,8 +5,10 @@ import exception.UserNotFoundException;
 import model.Patient;
 import repository.PatientRepository;
 
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 public class PatientService {
 
@@ -28,8 +30,12 @@ public class PatientService {
                                       String password,
                                       boolean marketingOptIn) throws StorageException {
 
-        boolean exists = patientRepository.findAll().stream()
-                .anyMatch(p -> p.getEmail().equalsIgnoreCase(email));
+        boolean exists;
+        try (Stream<Patient> patients = patientRepository.stream()) {
+            exists = patients.anyMatch(p -> p.getEmail().equalsIgnoreCase(email));
+        } catch (UncheckedIOException e) {
+            throw new StorageException("Error reading patient data", e);
+        }
 
         if (exists) {
             throw new IllegalArgumentException("A patient with this email already exists.");
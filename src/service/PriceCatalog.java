@@ -0,0 +1,63 @@
+package service;
+
+import model.TreatmentType;
+
+import java.util.*;
+
+/**
+ * Immutable snapshot of the treatment type price list.
+ * Costing reads prices from a snapshot without touching the file, and records the
+ * snapshot's version on each treatment it prices.
+ */
+public final class PriceCatalog {
+
+    private final long version;
+    private final Map<String, TreatmentType> typesById;
+
+    PriceCatalog(long version, Collection<TreatmentType> types) {
+        this.version = version;
+        Map<String, TreatmentType> byId = new LinkedHashMap<>();
+        for (TreatmentType t : types) {
+            // first row wins, same as a scan-based findById
+            byId.putIfAbsent(t.getId(), copy(t));
+        }
+        this.typesById = Collections.unmodifiableMap(byId);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Optional<TreatmentType> find(String id) {
+        TreatmentType t = typesById.get(id);
+        return t == null ? Optional.empty() : Optional.of(copy(t));
+    }
+
+    public int size() {
+        return typesById.size();
+    }
+
+    // Same types at the same prices, ignoring the version.
+    boolean sameContentAs(Collection<TreatmentType> types) {
+        PriceCatalog other = new PriceCatalog(version, types);
+        if (other.typesById.size() != typesById.size()) {
+            return false;
+        }
+        for (TreatmentType t : typesById.values()) {
+            TreatmentType o = other.typesById.get(t.getId());
+            if (o == null || !o.getName().equals(t.getName())
+                    || o.getBasePrice() != t.getBasePrice() || o.isActive() != t.isActive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Collection<TreatmentType> types() {
+        return typesById.values();
+    }
+
+    private static TreatmentType copy(TreatmentType t) {
+        return new TreatmentType(t.getId(), t.getName(), t.getBasePrice(), t.isActive());
+    }
+}
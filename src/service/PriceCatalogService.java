@@ -0,0 +1,135 @@
+package service;
+
+import exception.StorageException;
+import model.TreatmentType;
+import repository.Repository;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current {@link PriceCatalog} and swaps in a new snapshot atomically when
+ * treatment types are added or removed, or when the watched file changes on disk.
+ * Readers always see one complete snapshot and never block on a reload.
+ */
+public class PriceCatalogService implements AutoCloseable {
+
+    private final Repository<TreatmentType> treatmentTypeRepository;
+    private final AtomicReference<PriceCatalog> current = new AtomicReference<>();
+    private Thread watcher;
+    private WatchService watchService;
+
+    public PriceCatalogService(Repository<TreatmentType> treatmentTypeRepository) {
+        this.treatmentTypeRepository = treatmentTypeRepository;
+    }
+
+    /**
+     * The current snapshot, loading the first one on demand.
+     */
+    public PriceCatalog current() throws StorageException {
+        PriceCatalog catalog = current.get();
+        return catalog != null ? catalog : reload();
+    }
+
+    /**
+     * Re-reads the treatment types and publishes a new snapshot if anything changed.
+     */
+    public synchronized PriceCatalog reload() throws StorageException {
+        List<TreatmentType> types = treatmentTypeRepository.findAll();
+        PriceCatalog previous = current.get();
+        if (previous != null && previous.sameContentAs(types)) {
+            return previous;
+        }
+        PriceCatalog next = new PriceCatalog(nextVersion(previous), types);
+        current.set(next);
+        return next;
+    }
+
+    /**
+     * Publishes a snapshot with the type added or replaced.
+     */
+    public synchronized void put(TreatmentType type) throws StorageException {
+        PriceCatalog previous = current();
+        List<TreatmentType> types = new ArrayList<>(previous.types());
+        types.removeIf(t -> t.getId().equals(type.getId()));
+        types.add(type);
+        current.set(new PriceCatalog(nextVersion(previous), types));
+    }
+
+    /**
+     * Publishes a snapshot without the type.
+     */
+    public synchronized void remove(String typeId) throws StorageException {
+        PriceCatalog previous = current();
+        List<TreatmentType> types = new ArrayList<>(previous.types());
+        types.removeIf(t -> t.getId().equals(typeId));
+        current.set(new PriceCatalog(nextVersion(previous), types));
+    }
+
+    /**
+     * Starts a daemon thread that reloads the catalog whenever the file is written,
+     * so edits made outside the application are picked up without a restart.
+     */
+    public synchronized void watch(Path file) throws IOException {
+        if (watcher != null) {
+            return;
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Path name = file.getFileName();
+        watchService = FileSystems.getDefault().newWatchService();
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        WatchService events = watchService;
+        watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = events.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (name.equals(event.context())) {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                    if (changed) {
+                        try {
+                            reload();
+                        } catch (StorageException e) {
+                            // keep serving the last good snapshot
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // closed
+            }
+        }, "price-catalog-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        watcher.interrupt();
+        watcher = null;
+        watchService = null;
+    }
+
+    // Versions only move forward and stay ahead of snapshots from earlier runs.
+    private static long nextVersion(PriceCatalog previous) {
+        long floor = previous == null ? 0 : previous.getVersion() + 1;
+        return Math.max(floor, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,171 @@
+package service;
+
+import exception.NotificationException;
+import exception.StorageException;
+import model.Patient;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Fans promotion deliveries out to a {@link Notifier} with a bounded number in flight.
+ * <p>
+ * Recipients are pulled from the stream only when a delivery slot is free, so a slow
+ * notifier throttles the read instead of letting queued work pile up in memory. Finished
+ * deliveries are handed back in batches as they complete, which lets the caller log and
+ * report progress while the rest are still being sent. Deliveries run on virtual threads
+ * when the runtime has them, and on a fixed pool of {@code maxInFlight} threads otherwise.
+ */
+public class PromotionDispatcher {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final Notifier notifier;
+    private final int maxInFlight;
+    private final int batchSize;
+
+    public PromotionDispatcher(Notifier notifier) {
+        this(notifier, DEFAULT_MAX_IN_FLIGHT, DEFAULT_BATCH_SIZE);
+    }
+
+    public PromotionDispatcher(Notifier notifier, int maxInFlight, int batchSize) {
+        if (maxInFlight < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Concurrency limit and batch size must be positive.");
+        }
+        this.notifier = notifier;
+        this.maxInFlight = maxInFlight;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Receives finished deliveries, in completion order, one batch at a time.
+     */
+    @FunctionalInterface
+    public interface BatchHandler {
+        void completed(List<Delivery> batch) throws StorageException;
+    }
+
+    /**
+     * Sends the message to every recipient and returns once all deliveries have finished
+     * and been handed to the handler. A failed delivery is reported, not thrown.
+     */
+    public void dispatch(Stream<Patient> recipients, String title, String message, BatchHandler handler)
+            throws StorageException {
+        ExecutorService executor = newExecutor();
+        CompletionService<Delivery> completions = new ExecutorCompletionService<>(executor);
+        Semaphore slots = new Semaphore(maxInFlight);
+        int outstanding = 0;
+        List<Delivery> done = new ArrayList<>(batchSize);
+        try {
+            Iterator<Patient> it = recipients.iterator();
+            while (it.hasNext()) {
+                Patient recipient = it.next();
+                slots.acquire();
+                try {
+                    completions.submit(() -> {
+                        try {
+                            return deliver(recipient, title, message);
+                        } finally {
+                            slots.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    slots.release();
+                    throw e;
+                }
+                outstanding++;
+                for (Future<Delivery> f = completions.poll(); f != null; f = completions.poll()) {
+                    outstanding--;
+                    done = collect(f, done, handler);
+                }
+            }
+            while (outstanding > 0) {
+                outstanding--;
+                done = collect(completions.take(), done, handler);
+            }
+            if (!done.isEmpty()) {
+                handler.completed(done);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Promotion dispatch was interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Adds the result and hands over the batch once it is full; returns the batch to fill next.
+    private List<Delivery> collect(Future<Delivery> finished, List<Delivery> done, BatchHandler handler)
+            throws StorageException, InterruptedException {
+        try {
+            done.add(finished.get());
+        } catch (ExecutionException e) {
+            // deliver() catches everything, so this is a bug rather than a failed send
+            throw new IllegalStateException("Delivery task failed", e.getCause());
+        }
+        if (done.size() < batchSize) {
+            return done;
+        }
+        handler.completed(done);
+        return new ArrayList<>(batchSize);
+    }
+
+    private Delivery deliver(Patient recipient, String title, String message) {
+        try {
+            notifier.send(recipient, title, message);
+            return new Delivery(recipient, null);
+        } catch (NotificationException | RuntimeException e) {
+            return new Delivery(recipient, e.getMessage() == null ? e.toString() : e.getMessage());
+        }
+    }
+
+    // Virtual threads are looked up reflectively so the code still runs on Java 17.
+    private ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger n = new AtomicInteger();
+            return Executors.newFixedThreadPool(maxInFlight, r -> {
+                Thread t = new Thread(r, "promotion-dispatch-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Outcome of sending to one patient.
+     */
+    public static final class Delivery {
+
+        private final Patient recipient;
+        private final String error;
+
+        Delivery(Patient recipient, String error) {
+            this.recipient = recipient;
+            this.error = error;
+        }
+
+        public Patient getRecipient() {
+            return recipient;
+        }
+
+        public boolean isDelivered() {
+            return error == null;
+        }
+
+        /**
+         * Why the delivery failed, or null when it succeeded.
+         */
+        public String getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package service;
+
+import exception.StorageException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived appender for the promotion log.
+ * <p>
+ * Keeps one channel open for the life of the application. Callers hand rows to a bounded
+ * queue and return at once; a background thread takes them off in groups and writes each
+ * group with a single channel write once it holds {@code maxBatch} rows or the first row
+ * has waited {@code maxDelayMillis}. A caller only waits if the queue is full, that is when
+ * the disk is already {@code capacity} rows behind. {@link #close()} writes everything that
+ * was queued before it returns.
+ */
+public class PromotionLogWriter implements AutoCloseable {
+
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final int DEFAULT_MAX_BATCH = 500;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 50;
+
+    // marks the end of the queue; compared by identity
+    private static final String END = new String("END");
+
+    private final BlockingQueue<String> queue;
+    private final int maxBatch;
+    private final long maxDelayMillis;
+    private final Path path;
+    private final FileChannel channel;
+    private final Thread writer;
+
+    private long appended;
+    private long written;
+    // appends between the closed check and the end of their put; close() waits for them
+    private int putting;
+    private boolean closed;
+    private IOException failure;
+
+    public PromotionLogWriter(String logPath) throws StorageException {
+        this(logPath, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public PromotionLogWriter(String logPath, int capacity, int maxBatch, long maxDelayMillis)
+            throws StorageException {
+        if (capacity < 1 || maxBatch < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Capacity and batch size must be positive and the delay not negative.");
+        }
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.maxDelayMillis = maxDelayMillis;
+        this.path = Paths.get(logPath);
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            this.channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new StorageException("Error opening promotion log", e);
+        }
+        this.writer = new Thread(this::run, "promotion-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Queues one row (without line terminator) for writing.
+     */
+    public void append(String row) throws StorageException {
+        synchronized (this) {
+            checkUsable();
+            appended++;
+            putting++;
+        }
+        try {
+            queue.put(row);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (this) {
+                appended--;
+            }
+            throw new StorageException("Interrupted while queueing promotion log row", e);
+        } finally {
+            synchronized (this) {
+                putting--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until every row queued before this call has been written.
+     */
+    public synchronized void flush() throws StorageException {
+        long target = appended;
+        try {
+            while (written < target && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while flushing promotion log", e);
+        }
+        if (failure != null) {
+            throw new StorageException("Error writing promotion log", failure);
+        }
+    }
+
+    /**
+     * Writes all queued rows, stops the writer thread and closes the file.
+     */
+    @Override
+    public void close() throws StorageException {
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                // END must follow every row that got past the closed check
+                while (putting > 0) {
+                    wait();
+                }
+            }
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while closing promotion log", e);
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw new StorageException("Error writing promotion log", failure);
+            }
+        }
+    }
+
+    private void checkUsable() throws StorageException {
+        if (closed) {
+            throw new StorageException("Promotion log is closed");
+        }
+        if (failure != null) {
+            throw new StorageException("Error writing promotion log", failure);
+        }
+    }
+
+    private void run() {
+        List<String> batch = new ArrayList<>(maxBatch);
+        boolean ending = false;
+        try {
+            while (!ending) {
+                String first = queue.take();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                // group commit: gather until the batch is full or the first row has waited long enough
+                String next = first;
+                while (true) {
+                    if (next == END) {
+                        ending = true;
+                        break;
+                    }
+                    batch.add(next);
+                    if (batch.size() == maxBatch) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    write(batch);
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            // only close() stops the writer, and it does so with END
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void write(List<String> rows) {
+        StringBuilder sb = new StringBuilder(rows.size() * 64);
+        for (String row : rows) {
+            sb.append(row).append(System.lineSeparator());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        IOException error = null;
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            error = e;
+        }
+        synchronized (this) {
+            if (error != null && failure == null) {
+                failure = error;
+            }
+            written += rows.size();
+            notifyAll();
+        }
+    }
+}
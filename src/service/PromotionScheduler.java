@@ -0,0 +1,221 @@
+package service;
+
+import exception.StorageException;
+import model.Promotion;
+import repository.PromotionRepository;
+import repository.RepositoryListener;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Starts and ends promotions at their date boundaries.
+ * <p>
+ * Keeps the set of promotions running today and tells its listeners when one starts or
+ * ends. Instead of polling, it asks the repository's interval index for the next boundary
+ * day and sleeps until that midnight; a promotion write through the repository, or an
+ * edit to the watched file, wakes it early. All work happens on one daemon thread, so
+ * listeners are called one at a time.
+ */
+public class PromotionScheduler implements AutoCloseable {
+
+    /**
+     * Told when a promotion enters or leaves the running set.
+     */
+    public interface Listener {
+        void started(Promotion promotion);
+
+        void ended(Promotion promotion);
+    }
+
+    private final PromotionRepository promotionRepository;
+    private final Clock clock;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executor;
+
+    // id -> running promotion; only touched on the scheduler thread, read through a copy
+    private volatile Map<String, Promotion> running = Map.of();
+    private ScheduledFuture<?> nextBoundary;
+    private Thread watcher;
+    private WatchService watchService;
+
+    public PromotionScheduler(PromotionRepository promotionRepository) {
+        this(promotionRepository, Clock.systemDefaultZone());
+    }
+
+    public PromotionScheduler(PromotionRepository promotionRepository, Clock clock) {
+        this.promotionRepository = promotionRepository;
+        this.clock = clock;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "promotion-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        promotionRepository.addListener(new RepositoryListener<>() {
+            @Override
+            public void saved(Promotion promotion) {
+                requestRefresh();
+            }
+
+            @Override
+            public void deleted(String id) {
+                requestRefresh();
+            }
+        });
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Evaluates today's promotions and schedules the next boundary.
+     */
+    public void start() {
+        requestRefresh();
+    }
+
+    /**
+     * Re-evaluates the running set now and waits until listeners have been told; normally
+     * this happens on its own at each boundary and after each promotion write.
+     */
+    public void refresh() throws StorageException {
+        try {
+            executor.submit(() -> {
+                refreshNow();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while refreshing promotions", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+            throw new IllegalStateException("Promotion refresh failed", e.getCause());
+        }
+    }
+
+    /**
+     * Promotions running as of the last refresh, by start date.
+     */
+    public List<Promotion> getRunning() {
+        List<Promotion> result = new ArrayList<>(running.values());
+        result.sort(Comparator.comparing(Promotion::getStartDate).thenComparing(Promotion::getId));
+        return result;
+    }
+
+    /**
+     * Starts a daemon thread that re-evaluates the running set whenever the promotions file
+     * is written, so edits made outside the application are picked up before the next
+     * boundary.
+     */
+    public synchronized void watch(Path file) throws IOException {
+        if (watcher != null) {
+            return;
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Path name = file.getFileName();
+        watchService = FileSystems.getDefault().newWatchService();
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        WatchService events = watchService;
+        watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = events.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (name.equals(event.context())) {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                    if (changed) {
+                        requestRefresh();
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // closed
+            }
+        }, "promotion-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        synchronized (this) {
+            if (watcher == null) {
+                return;
+            }
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            watcher.interrupt();
+            watcher = null;
+            watchService = null;
+        }
+    }
+
+    private void requestRefresh() {
+        try {
+            executor.execute(() -> {
+                try {
+                    refreshNow();
+                } catch (StorageException e) {
+                    // keep the last known set; the next write or boundary retries
+                    e.printStackTrace();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    // Runs on the scheduler thread only.
+    private void refreshNow() throws StorageException {
+        LocalDate today = LocalDate.now(clock);
+        Map<String, Promotion> now = new LinkedHashMap<>();
+        for (Promotion p : promotionRepository.findActiveOn(today)) {
+            now.put(p.getId(), p);
+        }
+        Map<String, Promotion> before = running;
+        running = Collections.unmodifiableMap(now);
+
+        for (Promotion p : before.values()) {
+            if (!now.containsKey(p.getId())) {
+                listeners.forEach(l -> l.ended(p));
+            }
+        }
+        for (Promotion p : now.values()) {
+            if (!before.containsKey(p.getId())) {
+                listeners.forEach(l -> l.started(p));
+            }
+        }
+        schedule(promotionRepository.nextBoundaryAfter(today));
+    }
+
+    private void schedule(Optional<LocalDate> boundary) {
+        if (nextBoundary != null) {
+            nextBoundary.cancel(false);
+            nextBoundary = null;
+        }
+        if (boundary.isEmpty()) {
+            return;
+        }
+        ZonedDateTime at = boundary.get().atStartOfDay(clock.getZone());
+        long delay = Math.max(0, Duration.between(ZonedDateTime.now(clock), at).toMillis());
+        nextBoundary = executor.schedule(this::requestRefresh, delay, TimeUnit.MILLISECONDS);
+    }
+}
@@ -2,68 +2,135 @@ package service;
 
 import exception.StorageException;
 import model.Patient;
+import model.Promotion;
+import repository.CsvCodec;
 import repository.PatientRepository;
 
-import java.io.IOException;
-import java.nio.file.*;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Set;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
 
-public class PromotionService {
+public class PromotionService implements AutoCloseable {
 
     private final PatientRepository patientRepository;
-    private final Path promotionLogPath;
+    private final AudienceIndex audienceIndex;
+    private final PromotionDispatcher dispatcher;
+    private final PromotionLogWriter log;
+    private final CampaignSendFilter sendFilter;
+    private final PromotionScheduler scheduler;
     private static final DateTimeFormatter FORMATTER =
             DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
-    public PromotionService(PatientRepository patientRepository, String promotionLogCsvPath) {
+    public PromotionService(PatientRepository patientRepository,
+                            AudienceIndex audienceIndex,
+                            PromotionDispatcher dispatcher,
+                            PromotionLogWriter log) {
+        this(patientRepository, audienceIndex, dispatcher, log, null);
+    }
+
+    /**
+     * @param scheduler source of the promotions running today; may be null when dated
+     *                  promotions are not used
+     */
+    public PromotionService(PatientRepository patientRepository,
+                            AudienceIndex audienceIndex,
+                            PromotionDispatcher dispatcher,
+                            PromotionLogWriter log,
+                            PromotionScheduler scheduler) {
         this.patientRepository = patientRepository;
-        this.promotionLogPath = Paths.get(promotionLogCsvPath);
-        ensureFileExists(promotionLogPath);
+        this.scheduler = scheduler;
+        this.audienceIndex = audienceIndex;
+        this.dispatcher = dispatcher;
+        this.log = log;
+        this.sendFilter = new CampaignSendFilter(
+                log.getPath().resolveSibling("promotion_campaigns").toString());
     }
 
-    private void ensureFileExists(Path path) {
-        try {
-            if (Files.notExists(path)) {
-                if (path.getParent() != null) {
-                    Files.createDirectories(path.getParent());
-                }
-                Files.createFile(path);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Active promotions whose date range includes today.
+     */
+    public List<Promotion> getCurrentPromotions() {
+        return scheduler == null ? List.of() : scheduler.getRunning();
     }
 
     public int sendPromotionToOptInPatients(String title, String message) throws StorageException {
-        List<Patient> patients = patientRepository.findAll();
-        LocalDateTime now = LocalDateTime.now();
-        int count = 0;
-        StringBuilder sb = new StringBuilder();
-        for (Patient p : patients) {
-            if (p.isMarketingOptIn()) {
-                count++;
-                String line = String.join(",",
-                        now.format(FORMATTER),
-                        safe(title),
-                        safe(message),
-                        safe(p.getId()),
-                        safe(p.getEmail())
-                );
-                sb.append(line).append(System.lineSeparator());
-            }
-        }
+        return sendPromotionToOptInPatients(title, message, processed -> { });
+    }
 
-        try {
-            Files.writeString(promotionLogPath, sb.toString(), StandardOpenOption.APPEND);
-        } catch (IOException e) {
-            throw new StorageException("Error writing promotion log", e);
+    public int sendPromotionToOptInPatients(String title, String message, IntConsumer progress)
+            throws StorageException {
+        return sendPromotionToSegment("optedIn", title, message, progress);
+    }
+
+    /**
+     * Number of patients a segment expression currently selects.
+     *
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    public int countSegment(String segment) throws StorageException {
+        return audienceIndex.count(segment);
+    }
+
+    /**
+     * Sends the promotion to every patient matched by the segment expression, for example
+     * {@code optedIn AND registered AND NOT flaggedNonPaying} or {@code optedIn AND type(tt-1, 90)},
+     * and returns how many deliveries succeeded. Patients this campaign (same title) already
+     * reached are skipped, so sending again only reaches new or previously failed ones.
+     * Each finished batch is queued on the log with its outcome ({@code SENT} or
+     * {@code FAILED}) before {@code progress} is told how many patients have been processed
+     * so far; the log writer puts the rows on disk in the background.
+     *
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    public int sendPromotionToSegment(String segment, String title, String message, IntConsumer progress)
+            throws StorageException {
+        Set<String> audience = audienceIndex.resolve(segment);
+        String timestamp = LocalDateTime.now().format(FORMATTER);
+        int[] processed = {0};
+        int[] delivered = {0};
+        // patients are read only as fast as they are delivered, so nothing accumulates in memory
+        try (CampaignSendFilter.Campaign campaign = sendFilter.open(title, audience.size());
+             Stream<Patient> patients = patientRepository.stream()) {
+            Stream<Patient> recipients = patients
+                    .filter(p -> audience.contains(p.getId()))
+                    .filter(p -> !campaign.alreadySent(p.getId()));
+            dispatcher.dispatch(recipients, title, message, batch -> {
+                for (PromotionDispatcher.Delivery d : batch) {
+                    log.append(CsvCodec.join(
+                            timestamp,
+                            title,
+                            message,
+                            d.getRecipient().getId(),
+                            d.getRecipient().getEmail(),
+                            d.isDelivered() ? "SENT" : "FAILED"
+                    ));
+                    if (d.isDelivered()) {
+                        campaign.recordSent(d.getRecipient().getId());
+                        delivered[0]++;
+                    }
+                }
+                campaign.flush();
+                processed[0] += batch.size();
+                progress.accept(processed[0]);
+            });
+        } catch (UncheckedIOException e) {
+            throw new StorageException("Error reading patients or send history for promotion", e);
         }
-        return count;
+        return delivered[0];
     }
 
-    private String safe(String s) {
-        return s == null ? "" : s.replace(",", " ");
+    /**
+     * Stops the scheduler, writes any log rows still queued and closes the log.
+     */
+    @Override
+    public void close() throws StorageException {
+        if (scheduler != null) {
+            scheduler.close();
+        }
+        log.close();
     }
 }
@@ -0,0 +1,127 @@
+package service;
+
+import exception.StorageException;
+import model.Treatment;
+import model.TreatmentEntry;
+import model.TreatmentStatus;
+import repository.TreatmentRepository;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds {@link ActivityReport}s in one parallel pass over treatments and their entries.
+ * <p>
+ * The treatment list is split across the common fork-join pool; each task folds its share
+ * into its own {@link Accumulator}, and accumulators are merged pairwise as the tasks join,
+ * so no group map is shared between threads.
+ */
+public class ReportService {
+
+    private final TreatmentRepository treatmentRepository;
+
+    public ReportService(TreatmentRepository treatmentRepository) {
+        this.treatmentRepository = treatmentRepository;
+    }
+
+    /**
+     * Report over treatments created between the two days, both inclusive; a null bound
+     * leaves that end of the range open.
+     */
+    public ActivityReport activityReport(LocalDate from, LocalDate to) throws StorageException {
+        if (from != null && to != null && from.isAfter(to)) {
+            throw new IllegalArgumentException("Report start " + from + " is after its end " + to + ".");
+        }
+        List<Treatment> treatments = treatmentRepository.findAll();
+        Accumulator result = treatments.parallelStream()
+                .filter(t -> inRange(t, from, to))
+                .collect(Accumulator::new, Accumulator::add, Accumulator::merge);
+        return result.toReport(from, to);
+    }
+
+    private static boolean inRange(Treatment t, LocalDate from, LocalDate to) {
+        if (t.getCreatedAt() == null) {
+            return from == null && to == null;
+        }
+        LocalDate day = t.getCreatedAt().toLocalDate();
+        return (from == null || !day.isBefore(from)) && (to == null || !day.isAfter(to));
+    }
+
+    // Mutable per-task state; never shared, so plain maps suffice.
+    private static final class Accumulator {
+        private final Sum overall = new Sum();
+        private final Map<String, Sum> byClinician = new HashMap<>();
+        private final Map<String, Sum> byTreatmentType = new HashMap<>();
+        private final Map<YearMonth, Sum> byMonth = new HashMap<>();
+        private final EnumMap<TreatmentStatus, Long> countByStatus = new EnumMap<>(TreatmentStatus.class);
+
+        void add(Treatment t) {
+            if (t.getStatus() != null) {
+                countByStatus.merge(t.getStatus(), 1L, Long::sum);
+            }
+            if (t.getTotalCost() <= 0) {
+                return;
+            }
+            overall.add(t.getTotalCost());
+            if (t.getClinicianId() != null) {
+                byClinician.computeIfAbsent(t.getClinicianId(), k -> new Sum()).add(t.getTotalCost());
+            }
+            if (t.getCreatedAt() != null) {
+                byMonth.computeIfAbsent(YearMonth.from(t.getCreatedAt()), k -> new Sum()).add(t.getTotalCost());
+            }
+            for (TreatmentEntry entry : t.getEntries()) {
+                if (entry.getLineCost() > 0 && entry.getTreatmentTypeId() != null) {
+                    byTreatmentType.computeIfAbsent(entry.getTreatmentTypeId(), k -> new Sum())
+                            .add(entry.getLineCost());
+                }
+            }
+        }
+
+        void merge(Accumulator other) {
+            overall.merge(other.overall);
+            mergeInto(byClinician, other.byClinician);
+            mergeInto(byTreatmentType, other.byTreatmentType);
+            mergeInto(byMonth, other.byMonth);
+            other.countByStatus.forEach((status, n) -> countByStatus.merge(status, n, Long::sum));
+        }
+
+        ActivityReport toReport(LocalDate from, LocalDate to) {
+            return new ActivityReport(from, to, overall.toTotals(),
+                    toTotals(byClinician), toTotals(byTreatmentType), toTotals(byMonth), countByStatus);
+        }
+
+        private static <K> void mergeInto(Map<K, Sum> target, Map<K, Sum> source) {
+            source.forEach((key, sum) -> target.merge(key, sum, Sum::merge));
+        }
+
+        private static <K> Map<K, ActivityReport.Totals> toTotals(Map<K, Sum> sums) {
+            Map<K, ActivityReport.Totals> totals = new HashMap<>();
+            sums.forEach((key, sum) -> totals.put(key, sum.toTotals()));
+            return totals;
+        }
+    }
+
+    private static final class Sum {
+        private long count;
+        private double sum;
+
+        void add(double value) {
+            count++;
+            sum += value;
+        }
+
+        Sum merge(Sum other) {
+            count += other.count;
+            sum += other.sum;
+            return this;
+        }
+
+        ActivityReport.Totals toTotals() {
+            return new ActivityReport.Totals(count, sum);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parsed audience expression, evaluated to a bitmap of patient ordinals.
+ * <pre>
+ *   expr   := term ( OR term )*
+ *   term   := factor ( AND [NOT] factor )*
+ *   factor := NOT factor | '(' expr ')' | atom
+ *   atom   := all | optedIn | registered | flaggedNonPaying
+ *           | type '(' typeId [ ',' days ] ')'
+ * </pre>
+ * Keywords and field names are case-insensitive; {@code type(tt-1, 90)} matches patients
+ * with a treatment of that type created in the last 90 days, {@code type(tt-1)} at any time.
+ */
+final class SegmentExpression {
+
+    /**
+     * Sources of the bitmaps an expression combines. Returned sets may be shared; nodes
+     * copy before modifying.
+     */
+    interface Bitmaps {
+        BitSet all();
+
+        BitSet flag(String name);
+
+        BitSet treatmentType(String typeId, Integer withinDays);
+    }
+
+    private final Node root;
+
+    private SegmentExpression(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    static SegmentExpression parse(String expression) {
+        if (expression == null || expression.isBlank()) {
+            throw new IllegalArgumentException("Segment expression is empty.");
+        }
+        Parser parser = new Parser(tokenize(expression));
+        Node root = parser.expr();
+        if (!parser.atEnd()) {
+            throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in segment expression.");
+        }
+        return new SegmentExpression(root);
+    }
+
+    BitSet evaluate(Bitmaps bitmaps) {
+        BitSet result = root.eval(bitmaps);
+        // NOT and ANDNOT work against all patients, so the result never names a deleted one
+        BitSet live = (BitSet) result.clone();
+        live.and(bitmaps.all());
+        return live;
+    }
+
+    private interface Node {
+        BitSet eval(Bitmaps bitmaps);
+    }
+
+    private static List<String> tokenize(String expression) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < expression.length()) {
+            char c = expression.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')' || c == ',') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else {
+                int start = i;
+                while (i < expression.length() && isWordChar(expression.charAt(i))) {
+                    i++;
+                }
+                if (start == i) {
+                    throw new IllegalArgumentException("Unexpected '" + c + "' in segment expression.");
+                }
+                tokens.add(expression.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.' || c == ':';
+    }
+
+    private static final class Parser {
+        private final List<String> tokens;
+        private int pos;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        boolean atEnd() {
+            return pos == tokens.size();
+        }
+
+        String peek() {
+            return atEnd() ? null : tokens.get(pos);
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            if (!atEnd() && tokens.get(pos).equalsIgnoreCase(keyword)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private String next(String expected) {
+            if (atEnd()) {
+                throw new IllegalArgumentException("Segment expression ends where " + expected + " was expected.");
+            }
+            return tokens.get(pos++);
+        }
+
+        private void expect(String token) {
+            String actual = next("'" + token + "'");
+            if (!actual.equals(token)) {
+                throw new IllegalArgumentException("Expected '" + token + "' but found '" + actual + "'.");
+            }
+        }
+
+        Node expr() {
+            Node left = term();
+            while (acceptKeyword("OR")) {
+                Node l = left;
+                Node r = term();
+                left = b -> {
+                    BitSet out = (BitSet) l.eval(b).clone();
+                    out.or(r.eval(b));
+                    return out;
+                };
+            }
+            return left;
+        }
+
+        Node term() {
+            Node left = factor();
+            while (acceptKeyword("AND")) {
+                boolean negate = acceptKeyword("NOT");
+                Node l = left;
+                Node r = factor();
+                left = b -> {
+                    BitSet out = (BitSet) l.eval(b).clone();
+                    if (negate) {
+                        out.andNot(r.eval(b));
+                    } else {
+                        out.and(r.eval(b));
+                    }
+                    return out;
+                };
+            }
+            return left;
+        }
+
+        Node factor() {
+            if (acceptKeyword("NOT")) {
+                Node inner = factor();
+                return b -> {
+                    BitSet out = (BitSet) b.all().clone();
+                    out.andNot(inner.eval(b));
+                    return out;
+                };
+            }
+            if ("(".equals(peek())) {
+                pos++;
+                Node inner = expr();
+                expect(")");
+                return inner;
+            }
+            return atom();
+        }
+
+        Node atom() {
+            String word = next("a segment name");
+            String name = word.toLowerCase(Locale.ROOT);
+            switch (name) {
+                case "all":
+                    return Bitmaps::all;
+                case "optedin":
+                case "registered":
+                case "flaggednonpaying":
+                    return b -> b.flag(name);
+                case "type":
+                    expect("(");
+                    String typeId = next("a treatment type id");
+                    Integer days = null;
+                    if (",".equals(peek())) {
+                        pos++;
+                        days = parseDays(next("a number of days"));
+                    }
+                    expect(")");
+                    Integer withinDays = days;
+                    return b -> b.treatmentType(typeId, withinDays);
+                default:
+                    throw new IllegalArgumentException("Unknown segment '" + word + "'.");
+            }
+        }
+
+        private static int parseDays(String token) {
+            try {
+                int days = Integer.parseInt(token.endsWith("d") ? token.substring(0, token.length() - 1) : token);
+                if (days < 0) {
+                    throw new NumberFormatException();
+                }
+                return days;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number of days '" + token + "'.");
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package service;
+
+import exception.StorageException;
+import model.Clinician;
+import model.Patient;
+import model.Treatment;
+import repository.Repository;
+
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Attaches the Patient and Clinician objects to a list of treatments.
+ * The distinct ids are resolved with one pass over each repository, so a list costs
+ * two lookups in total rather than two per row. Ids that no longer resolve are left null.
+ */
+public class TreatmentHydrator {
+
+    private final Repository<Patient> patientRepository;
+    private final Repository<Clinician> clinicianRepository;
+
+    public TreatmentHydrator(Repository<Patient> patientRepository,
+                             Repository<Clinician> clinicianRepository) {
+        this.patientRepository = patientRepository;
+        this.clinicianRepository = clinicianRepository;
+    }
+
+    public List<Treatment> hydrate(List<Treatment> treatments) throws StorageException {
+        if (treatments.isEmpty()) {
+            return treatments;
+        }
+        Set<String> patientIds = new HashSet<>();
+        Set<String> clinicianIds = new HashSet<>();
+        for (Treatment t : treatments) {
+            patientIds.add(t.getPatientId());
+            clinicianIds.add(t.getClinicianId());
+        }
+
+        Map<String, Patient> patients = resolve(patientRepository, patientIds, Patient::getId);
+        Map<String, Clinician> clinicians = resolve(clinicianRepository, clinicianIds, Clinician::getId);
+
+        for (Treatment t : treatments) {
+            t.setPatient(patients.get(t.getPatientId()));
+            t.setClinician(clinicians.get(t.getClinicianId()));
+        }
+        return treatments;
+    }
+
+    private static <T> Map<String, T> resolve(Repository<T> repository, Set<String> ids,
+                                              Function<T, String> idOf) throws StorageException {
+        try (Stream<T> all = repository.stream()) {
+            // first row wins for a duplicated id, same as findById
+            return all.filter(e -> ids.contains(idOf.apply(e)))
+                    .collect(Collectors.toMap(idOf, Function.identity(), (first, later) -> first));
+        } catch (UncheckedIOException e) {
+            throw new StorageException("Error reading related records", e);
+        }
+    }
+}
@@ -12,28 +12,62 @@ import model.TreatmentType;
 import repository.ClinicianRepository;
 import repository.PatientRepository;
 import repository.TreatmentRepository;
-import repository.TreatmentTypeRepository;
+import repository.Repository;
+import repository.UnitOfWork;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class TreatmentService {
 
     private final TreatmentRepository treatmentRepository;
-    private final TreatmentTypeRepository treatmentTypeRepository;
+    private final Repository<TreatmentType> treatmentTypeRepository;
     private final PatientRepository patientRepository;
     private final ClinicianRepository clinicianRepository;
+    private final PriceCatalogService priceCatalog;
+    private final TreatmentHydrator hydrator;
+    private final ClinicianAssignmentService assignment;
+    private final CostingQueue costingQueue;
+    private final BalanceLedger balanceLedger;
+    private final ReportService reports;
 
     public TreatmentService(TreatmentRepository treatmentRepository,
-                            TreatmentTypeRepository treatmentTypeRepository,
+                            Repository<TreatmentType> treatmentTypeRepository,
                             PatientRepository patientRepository,
                             ClinicianRepository clinicianRepository) {
+        this(treatmentRepository, treatmentTypeRepository, patientRepository, clinicianRepository,
+                new PriceCatalogService(treatmentTypeRepository));
+    }
+
+    public TreatmentService(TreatmentRepository treatmentRepository,
+                            Repository<TreatmentType> treatmentTypeRepository,
+                            PatientRepository patientRepository,
+                            ClinicianRepository clinicianRepository,
+                            PriceCatalogService priceCatalog) {
+        this(treatmentRepository, treatmentTypeRepository, patientRepository, clinicianRepository,
+                priceCatalog, new BalanceLedger(treatmentRepository));
+    }
+
+    public TreatmentService(TreatmentRepository treatmentRepository,
+                            Repository<TreatmentType> treatmentTypeRepository,
+                            PatientRepository patientRepository,
+                            ClinicianRepository clinicianRepository,
+                            PriceCatalogService priceCatalog,
+                            BalanceLedger balanceLedger) {
 
         this.treatmentRepository = treatmentRepository;
         this.treatmentTypeRepository = treatmentTypeRepository;
         this.patientRepository = patientRepository;
         this.clinicianRepository = clinicianRepository;
+        this.priceCatalog = priceCatalog;
+        this.hydrator = new TreatmentHydrator(patientRepository, clinicianRepository);
+        this.assignment = new ClinicianAssignmentService(clinicianRepository, treatmentRepository);
+        this.costingQueue = new CostingQueue(treatmentRepository);
+        this.balanceLedger = balanceLedger;
+        this.reports = new ReportService(treatmentRepository);
     }
 
     // ADMIN: allocate by IDs (used elsewhere, throws UserNotFoundException)
@@ -41,12 +75,27 @@ public class TreatmentService {
                                        String clinicianId,
                                        List<String> treatmentTypeIds)
             throws StorageException, UserNotFoundException {
+        UnitOfWork work = new UnitOfWork();
+        Treatment treatment = allocateTreatment(work, patientId, clinicianId, treatmentTypeIds);
+        work.commit();
+        return treatment;
+    }
+
+    /**
+     * Allocates within the caller's unit of work: nothing is written until it commits, so
+     * several allocations made in one action cost one write of each treatment file.
+     */
+    public Treatment allocateTreatment(UnitOfWork work,
+                                       String patientId,
+                                       String clinicianId,
+                                       List<String> treatmentTypeIds)
+            throws StorageException, UserNotFoundException {
 
         // ensure patient & clinician exist
-        if (patientRepository.findById(patientId).isEmpty()) {
+        if (work.findById(patientRepository, patientId).isEmpty()) {
             throw new UserNotFoundException("Patient with id " + patientId + " not found.");
         }
-        if (clinicianRepository.findById(clinicianId).isEmpty()) {
+        if (work.findById(clinicianRepository, clinicianId).isEmpty()) {
             throw new UserNotFoundException("Clinician with id " + clinicianId + " not found.");
         }
 
@@ -62,8 +111,9 @@ public class TreatmentService {
         treatment.setTotalCost(0.0);
 
         // Optionally pre-fill entries with quantity=1 and no notes
+        PriceCatalog catalog = priceCatalog.current();
         for (String typeId : treatmentTypeIds) {
-            Optional<TreatmentType> typeOpt = treatmentTypeRepository.findById(typeId);
+            Optional<TreatmentType> typeOpt = catalog.find(typeId);
             typeOpt.ifPresent(type -> {
                 TreatmentEntry entry = new TreatmentEntry();
                 entry.setTreatmentId(treatmentId);
@@ -75,7 +125,7 @@ public class TreatmentService {
             });
         }
 
-        treatmentRepository.save(treatment);
+        work.save(treatmentRepository, treatment);
         return treatment;
     }
 
@@ -107,41 +157,48 @@ public class TreatmentService {
         entries.add(entry);
         treatment.setEntries(entries);
 
-        treatmentRepository.save(treatment);
+        UnitOfWork work = new UnitOfWork();
+        work.save(treatmentRepository, treatment);
+        work.commit();
         return treatment;
     }
 
     // CLINICIANS: find by speciality (used by AdminMenu + PatientMenu)
     public List<Clinician> findCliniciansBySpeciality(String speciality) throws StorageException {
-        return clinicianRepository.findAll().stream()
-                .filter(c -> c.getSpeciality() != null &&
-                        c.getSpeciality().equalsIgnoreCase(speciality))
-                .collect(Collectors.toList());
+        return clinicianRepository.findBySpeciality(speciality);
     }
 
-    // CLINICIANS: view treatments
+    public List<Clinician> findCliniciansBySpecialityPrefix(String prefix) throws StorageException {
+        return clinicianRepository.findBySpecialityPrefix(prefix);
+    }
+
+    // BOOKING: clinician in the speciality with the fewest open cases
+    public Optional<Clinician> assignClinician(String speciality) throws StorageException {
+        return assignment.leastLoaded(speciality);
+    }
+
+    // CLINICIANS: view treatments (patient and clinician attached for display)
     public List<Treatment> getTreatmentsForClinician(String clinicianId) throws StorageException {
-        return treatmentRepository.findByClinician(clinicianId);
+        return hydrator.hydrate(treatmentRepository.findByClinician(clinicianId));
     }
 
     public List<Treatment> getTreatmentsForClinicianByStatus(String clinicianId,
                                                              TreatmentStatus status)
             throws StorageException {
-        return treatmentRepository.findByClinician(clinicianId).stream()
-                .filter(t -> t.getStatus() == status)
-                .collect(Collectors.toList());
+        return hydrator.hydrate(treatmentRepository.findByClinicianAndStatus(clinicianId, status));
     }
 
     // PATIENT: view treatments
     public List<Treatment> getTreatmentsForPatient(String patientId) throws StorageException {
-        return treatmentRepository.findByPatient(patientId);
+        return hydrator.hydrate(treatmentRepository.findByPatient(patientId));
     }
 
     // CLINICIAN: assess treatment
     public void assessTreatment(String treatmentId, String notes)
             throws StorageException, InvalidTreatmentStateException {
 
-        Optional<Treatment> opt = treatmentRepository.findById(treatmentId);
+        UnitOfWork work = new UnitOfWork();
+        Optional<Treatment> opt = work.findById(treatmentRepository, treatmentId);
         if (opt.isEmpty()) {
             throw new InvalidTreatmentStateException("Treatment not found: " + treatmentId);
         }
@@ -168,14 +225,16 @@ public class TreatmentService {
         treatment.setEntries(entries);
         treatment.setStatus(TreatmentStatus.TREATMENT_ASSESSED);
 
-        treatmentRepository.save(treatment);
+        work.save(treatmentRepository, treatment);
+        work.commit();
     }
 
     public void recordAssessment(String treatmentId,
                                  List<TreatmentEntry> assessedEntries)
             throws StorageException, InvalidTreatmentStateException {
 
-        Optional<Treatment> opt = treatmentRepository.findById(treatmentId);
+        UnitOfWork work = new UnitOfWork();
+        Optional<Treatment> opt = work.findById(treatmentRepository, treatmentId);
         if (opt.isEmpty()) {
             throw new InvalidTreatmentStateException("Treatment not found: " + treatmentId);
         }
@@ -189,14 +248,16 @@ public class TreatmentService {
         treatment.setEntries(assessedEntries);
         treatment.setStatus(TreatmentStatus.TREATMENT_ASSESSED);
 
-        treatmentRepository.save(treatment);
+        work.save(treatmentRepository, treatment);
+        work.commit();
     }
 
     // ADMIN: cost treatment
     public double costTreatment(String treatmentId)
             throws StorageException, InvalidTreatmentStateException {
 
-        Optional<Treatment> opt = treatmentRepository.findById(treatmentId);
+        UnitOfWork work = new UnitOfWork();
+        Optional<Treatment> opt = work.findById(treatmentRepository, treatmentId);
         if (opt.isEmpty()) {
             throw new InvalidTreatmentStateException("Treatment not found: " + treatmentId);
         }
@@ -207,28 +268,91 @@ public class TreatmentService {
                     "Treatment must be in TREATMENT_ASSESSED state before costing.");
         }
 
+        // one snapshot for the whole treatment, so every line is priced from the same list
+        PriceCatalog catalog = priceCatalog.current();
+        String problem = checkPriceable(treatment, catalog);
+        if (problem != null) {
+            throw new InvalidTreatmentStateException("Cannot cost treatment " + treatmentId + ": " + problem);
+        }
+        double total = price(treatment, catalog);
+        work.save(treatmentRepository, treatment);
+        work.commit();
+        return total;
+    }
+
+    /**
+     * ADMIN: cost every assessed treatment that has no total yet.
+     * All treatments are priced in parallel against one catalog snapshot and written back
+     * with a single save. A treatment is left pending and reported as a failure when one of
+     * its entries names a type that is not in the catalog, or when it prices to zero.
+     */
+    public CostingSummary costAllAssessed() throws StorageException {
+        List<Treatment> pending = getAssessedTreatmentsPendingCosting();
+        PriceCatalog catalog = priceCatalog.current();
+
+        Map<String, String> failures = new ConcurrentHashMap<>();
+        List<Treatment> costed = pending.parallelStream()
+                .filter(t -> {
+                    String problem = checkPriceable(t, catalog);
+                    if (problem != null) {
+                        failures.put(t.getId(), problem);
+                        return false;
+                    }
+                    price(t, catalog);
+                    return true;
+                })
+                .collect(Collectors.toList());
+
+        UnitOfWork work = new UnitOfWork();
+        for (Treatment t : costed) {
+            work.save(treatmentRepository, t);
+        }
+        work.commit();
+
+        double total = costed.stream().mapToDouble(Treatment::getTotalCost).sum();
+        Map<String, String> orderedFailures = new LinkedHashMap<>();
+        for (Treatment t : pending) {
+            if (failures.containsKey(t.getId())) {
+                orderedFailures.put(t.getId(), failures.get(t.getId()));
+            }
+        }
+        return new CostingSummary(costed.size(), total, catalog.getVersion(), orderedFailures);
+    }
+
+    // Sets each line cost and the total from the catalog; only call after checkPriceable passed.
+    private static double price(Treatment treatment, PriceCatalog catalog) {
         double total = 0.0;
         for (TreatmentEntry entry : treatment.getEntries()) {
-            Optional<TreatmentType> typeOpt = treatmentTypeRepository.findById(entry.getTreatmentTypeId());
-            if (typeOpt.isEmpty()) {
-                continue; // or throw
-            }
-            TreatmentType type = typeOpt.get();
+            TreatmentType type = catalog.find(entry.getTreatmentTypeId()).orElseThrow();
             double lineCost = type.getBasePrice() * entry.getQuantity();
             entry.setLineCost(lineCost);
             total += lineCost;
         }
 
         treatment.setTotalCost(total);
-        treatmentRepository.save(treatment);
+        treatment.setPricedCatalogVersion(catalog.getVersion());
         return total;
     }
 
+    // Null when the treatment can be costed, otherwise the reason it cannot.
+    private static String checkPriceable(Treatment treatment, PriceCatalog catalog) {
+        double total = 0.0;
+        for (TreatmentEntry entry : treatment.getEntries()) {
+            Optional<TreatmentType> typeOpt = catalog.find(entry.getTreatmentTypeId());
+            if (typeOpt.isEmpty()) {
+                return "Unknown treatment type: " + entry.getTreatmentTypeId();
+            }
+            total += typeOpt.get().getBasePrice() * entry.getQuantity();
+        }
+        return total > 0 ? null : "Treatment prices to zero";
+    }
+
     // ADMIN: mark paid
     public void markTreatmentAsPaid(String treatmentId)
             throws StorageException, InvalidTreatmentStateException {
 
-        Optional<Treatment> opt = treatmentRepository.findById(treatmentId);
+        UnitOfWork work = new UnitOfWork();
+        Optional<Treatment> opt = work.findById(treatmentRepository, treatmentId);
         if (opt.isEmpty()) {
             throw new InvalidTreatmentStateException("Treatment not found: " + treatmentId);
         }
@@ -240,26 +364,63 @@ public class TreatmentService {
         }
 
         treatment.setPaid(true);
-        treatmentRepository.save(treatment);
+        work.save(treatmentRepository, treatment);
+        work.commit();
+    }
+
+    // PATIENT/ADMIN: costed, unpaid total for one patient
+    public double getOutstandingBalance(String patientId) throws StorageException {
+        return balanceLedger.balanceOf(patientId);
     }
 
-    // ADMIN: get assessed, not yet costed
+    /**
+     * ADMIN: patients owing the most, largest balance first, keyed by patient id.
+     */
+    public LinkedHashMap<String, Double> getTopDebtors(int limit) throws StorageException {
+        return balanceLedger.topDebtors(limit);
+    }
+
+    /**
+     * ADMIN: revenue per clinician, treatment type and month, and counts per status, for
+     * treatments created between the two days inclusive (null bounds are open).
+     */
+    public ActivityReport getActivityReport(LocalDate from, LocalDate to) throws StorageException {
+        return reports.activityReport(from, to);
+    }
+
+    // ADMIN: recompute every balance from treatment history
+    public void rebuildBalances() throws StorageException {
+        balanceLedger.rebuild();
+    }
+
+    // ADMIN: get assessed, not yet costed (oldest first)
     public List<Treatment> getAssessedTreatmentsPendingCosting() throws StorageException {
-        List<Treatment> result = new ArrayList<>();
-        for (Treatment t : treatmentRepository.findAll()) {
-            if (t.getStatus() == TreatmentStatus.TREATMENT_ASSESSED &&
-                    t.getTotalCost() == 0.0) {
-                result.add(t);
-            }
+        return loadQueued(costingQueue.page(null, Integer.MAX_VALUE));
+    }
+
+    /**
+     * ADMIN: one page of the costing work queue, oldest first. Pass the last treatment of
+     * the previous page to continue after it, or null for the first page.
+     */
+    public List<Treatment> getPendingCostingPage(Treatment after, int pageSize) throws StorageException {
+        return hydrator.hydrate(loadQueued(costingQueue.page(after, pageSize)));
+    }
+
+    public int countPendingCosting() throws StorageException {
+        return costingQueue.size();
+    }
+
+    private List<Treatment> loadQueued(List<String> ids) throws StorageException {
+        List<Treatment> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            treatmentRepository.findById(id).ifPresent(result::add);
         }
         return result;
     }
 
     // ADMIN: find by status (used by AdminMenu.getTreatmentsByStatus)
     public List<Treatment> getTreatmentsByStatus(TreatmentStatus status) throws StorageException {
-        return treatmentRepository.findAll().stream()
-                .filter(t -> t.getStatus() == status)
-                .collect(Collectors.toList());
+        return hydrator.hydrate(treatmentRepository.findByStatus(status));
     }
 
     // ADMIN: get treatment by id (used by AdminMenu)
@@ -277,11 +438,13 @@ public class TreatmentService {
     public TreatmentType addTreatmentType(String name, double basePrice) throws StorageException {
         TreatmentType type = new TreatmentType(UUID.randomUUID().toString(), name, basePrice, true);
         treatmentTypeRepository.save(type);
+        priceCatalog.put(type);
         return type;
     }
 
     public void removeTreatmentType(String id) throws StorageException {
         treatmentTypeRepository.delete(id);
+        priceCatalog.remove(id);
     }
 
     public List<TreatmentType> getAllTreatmentTypes() throws StorageException {
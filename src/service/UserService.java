@@ -4,11 +4,11 @@ import exception.AuthenticationException;
 import exception.StorageException;
 import exception.UserNotFoundException;
 import model.CentreAdministrator;
-import model.Clinician;
 import model.Patient;
 import model.User;
-import repository.AdminRepository;
+import model.UserRole;
 import repository.ClinicianRepository;
+import repository.ListenableRepository;
 import repository.PatientRepository;
 
 import java.util.Optional;
@@ -17,14 +17,24 @@ public class UserService {
 
     private final PatientRepository patientRepository;
     private final ClinicianRepository clinicianRepository;
-    private final AdminRepository adminRepository;
+    private final ListenableRepository<CentreAdministrator> adminRepository;
+    private final CredentialDirectory directory;
 
     public UserService(PatientRepository patientRepository,
                        ClinicianRepository clinicianRepository,
-                       AdminRepository adminRepository) {
+                       ListenableRepository<CentreAdministrator> adminRepository) {
+        this(patientRepository, clinicianRepository, adminRepository,
+                new CredentialDirectory(patientRepository, clinicianRepository, adminRepository));
+    }
+
+    public UserService(PatientRepository patientRepository,
+                       ClinicianRepository clinicianRepository,
+                       ListenableRepository<CentreAdministrator> adminRepository,
+                       CredentialDirectory directory) {
         this.patientRepository = patientRepository;
         this.clinicianRepository = clinicianRepository;
         this.adminRepository = adminRepository;
+        this.directory = directory;
     }
 
     /**
@@ -33,39 +43,27 @@ public class UserService {
     public User authenticate(String email, String password)
             throws AuthenticationException, StorageException {
 
-        // 1. Admin login
-        Optional<CentreAdministrator> adminOpt = adminRepository.findAll().stream()
-                .filter(a -> a.getEmail().equalsIgnoreCase(email)
-                        && a.getPassword().equals(password))
-                .findFirst();
-
-        if (adminOpt.isPresent()) {
-            return adminOpt.get();
-        }
-
-        // 2. Clinician login
-        Optional<Clinician> clinicianOpt = clinicianRepository.findAll().stream()
-                .filter(c -> c.getEmail().equalsIgnoreCase(email)
-                        && c.getPassword().equals(password))
-                .findFirst();
-
-        if (clinicianOpt.isPresent()) {
-            return clinicianOpt.get();
-        }
-
-        // 3. Patient login
-        Optional<Patient> patientOpt = patientRepository.findAll().stream()
-                .filter(p -> p.getEmail().equalsIgnoreCase(email)
-                        && p.getPassword().equals(password))
-                .findFirst();
-
-        if (patientOpt.isPresent()) {
-            return patientOpt.get();
+        // Admin, then clinician, then patient; any user under the email whose password matches
+        for (UserRole role : CredentialDirectory.LOGIN_ORDER) {
+            for (String id : directory.findIds(email, role)) {
+                Optional<? extends User> user = findUser(role, id);
+                if (user.isPresent() && user.get().getPassword().equals(password)) {
+                    return user.get();
+                }
+            }
         }
 
         throw new AuthenticationException("Invalid email or password.");
     }
 
+    private Optional<? extends User> findUser(UserRole role, String id) throws StorageException {
+        return switch (role) {
+            case ADMIN -> adminRepository.findById(id);
+            case CLINICIAN -> clinicianRepository.findById(id);
+            case PATIENT -> patientRepository.findById(id);
+        };
+    }
+
     /**
      * Register a fully registered patient.
      */
@@ -75,10 +73,7 @@ public class UserService {
                                       boolean marketingOptIn)
             throws StorageException {
 
-        boolean exists = patientRepository.findAll().stream()
-                .anyMatch(p -> p.getEmail().equalsIgnoreCase(email));
-
-        if (exists) {
+        if (directory.findId(email, UserRole.PATIENT).isPresent()) {
             throw new IllegalArgumentException("A patient with this email already exists.");
         }
 
@@ -14,6 +14,8 @@ import service.AuthService;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -147,4 +149,51 @@ class AuthServiceTest {
                 () -> authService.login("", "pwd"));
     }
 
+    // DIRECTORY FOLLOWS REPOSITORY WRITES
+    @Test
+    void login_afterEmailChangeAndDelete_usesCurrentDirectory() throws Exception {
+        authService.loginPatient("pat@test.com", "pwd");
+
+        Patient p = patientRepository.findById("p1").orElseThrow();
+        p.setEmail("new@test.com");
+        patientRepository.save(p);
+        assertEquals("p1", authService.loginPatient("NEW@test.com", "pwd").getId());
+        assertThrows(AuthenticationException.class,
+                () -> authService.loginPatient("pat@test.com", "pwd"));
+
+        clinicianRepository.delete("c1");
+        assertThrows(AuthenticationException.class,
+                () -> authService.loginClinician("doc@test.com", "pwd"));
+    }
+
+    @Test
+    void login_sharedEmail_triesAdminBeforePatient() throws Exception {
+        authService.login("pat@test.com", "pwd");
+        adminRepository.save(new CentreAdministrator("a2", "Pat Admin", "pat@test.com", "adminpwd"));
+
+        assertEquals("a2", authService.login("pat@test.com", "adminpwd").getId());
+        assertEquals("p1", authService.login("pat@test.com", "pwd").getId());
+    }
+
+    @Test
+    void login_afterRowsAddedByHand_findsThem() throws Exception {
+        authService.login("doc@test.com", "pwd");
+
+        Files.write(clinicianCsv, List.of(ClinicianRepository.MAPPER.toCsv(
+                        new Clinician("c2", "Hand Added", "hand@test.com", "pwd", "Dermatology"))),
+                StandardOpenOption.APPEND);
+        assertEquals("c2", authService.loginClinician("hand@test.com", "pwd").getId());
+
+        Files.write(adminCsv, List.of(AdminRepository.MAPPER.toCsv(
+                new CentreAdministrator("a9", "Other Admin", "other@test.com", "pwd"))));
+        assertEquals("a9", authService.login("other@test.com", "pwd").getId());
+        assertThrows(AuthenticationException.class,
+                () -> authService.loginAdmin("admin@test.com", "pwd"));
+
+        // the application's own writes still arrive through the listeners
+        clinicianRepository.delete("c2");
+        assertThrows(AuthenticationException.class,
+                () -> authService.loginClinician("hand@test.com", "pwd"));
+    }
+
 }
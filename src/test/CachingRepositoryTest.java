@@ -0,0 +1,79 @@
+package test;
+
+import model.TreatmentType;
+import org.junit.jupiter.api.*;
+import repository.CachingRepository;
+import repository.TreatmentTypeRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingRepositoryTest {
+
+    private Path tempDir;
+    private Path typeCsv;
+    private CachingRepository<TreatmentType> cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("mms-test-caching");
+        typeCsv = tempDir.resolve("treatment_types.csv");
+        Files.write(typeCsv, List.of("tt-1,Filling,50.0,true", "tt-2,Cleaning,30.0,true"));
+
+        cache = new CachingRepository<>(new TreatmentTypeRepository(typeCsv.toString()),
+                typeCsv.toString(), TreatmentTypeRepository.MAPPER);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .sorted((a, b) -> b.compareTo(a))
+                .forEach(p -> {
+                    try { Files.deleteIfExists(p); } catch (IOException ignored) {}
+                });
+    }
+
+    @Test
+    void repeatedReadsAreServedFromMemory() throws Exception {
+        assertEquals("Filling", cache.findById("tt-1").orElseThrow().getName());
+        assertEquals(30.0, cache.findById("tt-2").orElseThrow().getBasePrice());
+        assertTrue(cache.findById("missing").isEmpty());
+        assertEquals(2, cache.findAll().size());
+
+        assertEquals(1, cache.getMissCount());
+        assertEquals(3, cache.getHitCount());
+
+        // results are copies; changing one does not reach the cache
+        cache.findById("tt-1").orElseThrow().setBasePrice(999);
+        assertEquals(50.0, cache.findById("tt-1").orElseThrow().getBasePrice());
+    }
+
+    @Test
+    void writesGoThroughToTheFileAndStayCached() throws Exception {
+        cache.findAll();
+        cache.save(new TreatmentType("tt-3", "Crown", 400.0, true));
+        cache.delete("tt-2");
+
+        assertEquals(List.of("tt-1", "tt-3"),
+                cache.findAll().stream().map(TreatmentType::getId).toList());
+        assertEquals(1, cache.getMissCount());
+
+        TreatmentTypeRepository direct = new TreatmentTypeRepository(typeCsv.toString());
+        assertEquals(400.0, direct.findById("tt-3").orElseThrow().getBasePrice());
+        assertTrue(direct.findById("tt-2").isEmpty());
+    }
+
+    @Test
+    void externalEditIsDetectedAndReloaded() throws Exception {
+        cache.findAll();
+        Files.write(typeCsv, List.of("tt-1,Filling,55.0,true", "tt-9,Extraction,80.0,false"));
+
+        assertEquals(55.0, cache.findById("tt-1").orElseThrow().getBasePrice());
+        assertTrue(cache.findById("tt-9").isPresent());
+        assertEquals(2, cache.getMissCount());
+    }
+}
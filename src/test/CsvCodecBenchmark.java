@@ -0,0 +1,103 @@
+package test;
+
+import repository.CsvCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Microbenchmark comparing the old String.split row parsing with CsvCodec.
+ * Run with: java -cp out test.CsvCodecBenchmark [rows]
+ * <p>
+ * Each round parses the same treatment entry and patient rows the repositories
+ * store, so the numbers reflect a full-file scan.
+ */
+public class CsvCodecBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        List<String> entryLines = new ArrayList<>(rows);
+        List<String> patientLines = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            entryLines.add(UUID.randomUUID() + "," + UUID.randomUUID() + "," + (i % 20 + 1)
+                    + ",Follow-up session " + i + "," + (i % 7) * 25.0);
+            patientLines.add(UUID.randomUUID() + ",Patient " + i + ",patient" + i + "@test.com,pwd,"
+                    + (i % 2 == 0) + "," + (i % 3 == 0) + "," + (i % 11 == 0));
+        }
+
+        System.out.println("Rows per round: " + rows);
+        report("entries  split", () -> splitEntries(entryLines), rows);
+        report("entries  codec", () -> codecEntries(entryLines), rows);
+        report("patients split", () -> splitPatients(patientLines), rows);
+        report("patients codec", () -> codecPatients(patientLines), rows);
+    }
+
+    private static void report(String label, Round round, int rows) {
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += round.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            sink += round.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        double rowsPerSecond = (double) rows * MEASURED_ROUNDS / (elapsed / 1_000_000_000.0);
+        System.out.printf("%s: %,.0f rows/s (checksum %d)%n", label, rowsPerSecond, sink);
+    }
+
+    // the parsing the repositories did before CsvCodec
+    private static long splitEntries(List<String> lines) {
+        long checksum = 0;
+        for (String line : lines) {
+            String[] parts = line.split(",", -1);
+            checksum += parts[0].length() + parts[1].length()
+                    + Integer.parseInt(parts[2]) + parts[3].length()
+                    + (long) Double.parseDouble(parts[4]);
+        }
+        return checksum;
+    }
+
+    private static long codecEntries(List<String> lines) {
+        long checksum = 0;
+        for (String line : lines) {
+            CsvCodec.Row row = CsvCodec.row(line);
+            checksum += row.next().length() + row.next().length()
+                    + row.nextInt() + row.next().length()
+                    + (long) row.nextDouble();
+        }
+        return checksum;
+    }
+
+    private static long splitPatients(List<String> lines) {
+        long checksum = 0;
+        for (String line : lines) {
+            String[] parts = line.split(",", -1);
+            checksum += parts[0].length() + parts[1].length() + parts[2].length() + parts[3].length()
+                    + (Boolean.parseBoolean(parts[4]) ? 1 : 0)
+                    + (Boolean.parseBoolean(parts[5]) ? 1 : 0)
+                    + (Boolean.parseBoolean(parts[6]) ? 1 : 0);
+        }
+        return checksum;
+    }
+
+    private static long codecPatients(List<String> lines) {
+        long checksum = 0;
+        for (String line : lines) {
+            CsvCodec.Row row = CsvCodec.row(line);
+            checksum += row.next().length() + row.next().length() + row.next().length() + row.next().length()
+                    + (row.nextBoolean() ? 1 : 0)
+                    + (row.nextBoolean() ? 1 : 0)
+                    + (row.nextBoolean() ? 1 : 0);
+        }
+        return checksum;
+    }
+
+    private interface Round {
+        long run();
+    }
+}
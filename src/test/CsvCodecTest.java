@@ -0,0 +1,63 @@
+package test;
+
+import org.junit.jupiter.api.Test;
+import repository.CsvCodec;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CsvCodecTest {
+
+    @Test
+    void plainRow_matchesSplit() {
+        String line = "p1,Ann,,pwd,true,false,";
+        String[] expected = line.split(",", -1);
+
+        CsvCodec.Row row = CsvCodec.row(line);
+        for (String field : expected) {
+            assertTrue(row.hasNext());
+            assertEquals(field, row.next());
+        }
+        assertFalse(row.hasNext());
+    }
+
+    @Test
+    void commasAndQuotes_roundTrip() {
+        String line = CsvCodec.join("t1", "Smith, John", "said \"hello\"", null, "ok");
+        assertEquals("t1,\"Smith, John\",\"said \"\"hello\"\"\",,ok", line);
+
+        CsvCodec.Row row = CsvCodec.row(line);
+        assertEquals("t1", row.next());
+        assertEquals("Smith, John", row.next());
+        assertEquals("said \"hello\"", row.next());
+        assertEquals("", row.next());
+        assertEquals("ok", row.next());
+        assertFalse(row.hasNext());
+    }
+
+    @Test
+    void lineBreaks_areFoldedToSpaces() {
+        assertEquals("two lines", CsvCodec.encode("two\nlines"));
+        assertEquals("", CsvCodec.encode(null));
+    }
+
+    @Test
+    void typedFields_matchJdkParsing() {
+        CsvCodec.Row row = CsvCodec.row("TRUE,yes,-42,+7,2.5,\"true\"");
+        assertTrue(row.nextBoolean());
+        assertFalse(row.nextBoolean());
+        assertEquals(-42, row.nextInt());
+        assertEquals(7, row.nextInt());
+        assertEquals(2.5, row.nextDouble(), 0.0);
+        assertTrue(row.nextBoolean());
+    }
+
+    @Test
+    void invalidNumbersAndMissingFields_throw() {
+        assertThrows(NumberFormatException.class, () -> CsvCodec.row("12a").nextInt());
+        assertThrows(NumberFormatException.class, () -> CsvCodec.row("").nextInt());
+
+        CsvCodec.Row row = CsvCodec.row("only");
+        row.next();
+        assertThrows(IllegalArgumentException.class, row::next);
+    }
+}
@@ -0,0 +1,94 @@
+package test;
+
+import exception.StorageException;
+import model.Patient;
+import org.junit.jupiter.api.*;
+import repository.IndexedPatientRepository;
+import repository.PatientRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexedPatientRepositoryTest {
+
+    private Path tempDir;
+    private Path patientCsv;
+    private IndexedPatientRepository indexedRepository;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("mms-test-indexed");
+        patientCsv = tempDir.resolve("patients.csv");
+        Files.createFile(patientCsv);
+
+        indexedRepository = new IndexedPatientRepository(patientCsv.toString());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .sorted((a, b) -> b.compareTo(a))
+                .forEach(p -> {
+                    try { Files.deleteIfExists(p); } catch (IOException ignored) {}
+                });
+    }
+
+    @Test
+    void loadsExistingRowsAndFindsByIdAndEmail() throws Exception {
+        Files.write(patientCsv, List.of(
+                "p1,Ann,ann@test.com,pwd,true,true,false",
+                "p2,Ben,ben@test.com,pwd,false,false,true"));
+        IndexedPatientRepository repo = new IndexedPatientRepository(patientCsv.toString());
+
+        assertEquals("Ann", repo.findById("p1").orElseThrow().getName());
+        assertTrue(repo.findByEmail("BEN@test.com").orElseThrow().isFlaggedNonPaying());
+        assertTrue(repo.findById("missing").isEmpty());
+        assertTrue(repo.findByEmail(null).isEmpty());
+    }
+
+    @Test
+    void saveAndDelete_keepIndexesAndFileInSync() throws StorageException {
+        indexedRepository.save(new Patient("p1", "Ann", "ann@test.com", "pwd", true, false));
+
+        Patient changed = indexedRepository.findById("p1").orElseThrow();
+        changed.setEmail("ann.new@test.com");
+        indexedRepository.save(changed);
+
+        assertTrue(indexedRepository.findByEmail("ann@test.com").isEmpty());
+        assertEquals("p1", indexedRepository.findByEmail("ann.new@test.com").orElseThrow().getId());
+
+        PatientRepository scanRepository = new PatientRepository(patientCsv.toString());
+        assertEquals("ann.new@test.com", scanRepository.findById("p1").orElseThrow().getEmail());
+
+        indexedRepository.delete("p1");
+        assertTrue(indexedRepository.findById("p1").isEmpty());
+        assertTrue(scanRepository.findAll().isEmpty());
+    }
+
+    @Test
+    void saveAll_withTheSameIdTwice_indexesOnlyTheLastEmail() throws StorageException {
+        indexedRepository.save(new Patient("p1", "Ann", "ann@test.com", "pwd", true, false));
+        indexedRepository.saveAll(List.of(
+                new Patient("p1", "Ann", "ann.b@test.com", "pwd", true, false),
+                new Patient("p1", "Ann", "ann.c@test.com", "pwd", true, false)));
+
+        assertTrue(indexedRepository.findByEmail("ann@test.com").isEmpty());
+        assertTrue(indexedRepository.findByEmail("ann.b@test.com").isEmpty());
+        assertEquals("p1", indexedRepository.findByEmail("ann.c@test.com").orElseThrow().getId());
+        assertEquals(1, indexedRepository.findAll().size());
+    }
+
+    @Test
+    void returnedPatientsAreCopies() throws StorageException {
+        indexedRepository.save(new Patient("p1", "Ann", "ann@test.com", "pwd", true, false));
+
+        Patient loaded = indexedRepository.findById("p1").orElseThrow();
+        loaded.setFlaggedNonPaying(true);
+
+        assertFalse(indexedRepository.findById("p1").orElseThrow().isFlaggedNonPaying());
+    }
+}
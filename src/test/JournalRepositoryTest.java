@@ -0,0 +1,123 @@
+package test;
+
+import exception.StorageException;
+import model.Patient;
+import org.junit.jupiter.api.*;
+import repository.JournalRepository;
+import repository.PatientRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalRepositoryTest {
+
+    private Path tempDir;
+    private Path journal;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("mms-test-journal");
+        journal = tempDir.resolve("patients.journal");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .sorted((a, b) -> b.compareTo(a))
+                .forEach(p -> {
+                    try { Files.deleteIfExists(p); } catch (IOException ignored) {}
+                });
+    }
+
+    @Test
+    void saveAndDelete_appendRecordsAndReplayOnRestart() throws StorageException, IOException {
+        JournalRepository<Patient> repo = new JournalRepository<>(journal.toString(), PatientRepository.MAPPER);
+        repo.save(new Patient("p1", "Ann", "ann@test.com", "pwd", true, false));
+        repo.save(new Patient("p2", "Ben", "ben@test.com", "pwd", true, false));
+
+        Patient ann = repo.findById("p1").orElseThrow();
+        ann.setFlaggedNonPaying(true);
+        repo.save(ann);
+        repo.delete("p2");
+        repo.close();
+
+        assertEquals(4, Files.readAllLines(journal).size());
+
+        JournalRepository<Patient> reopened = new JournalRepository<>(journal.toString(), PatientRepository.MAPPER);
+        List<Patient> all = reopened.findAll();
+        assertEquals(1, all.size());
+        assertTrue(all.get(0).isFlaggedNonPaying());
+        assertEquals(3, reopened.getDeadRecordCount());
+        reopened.close();
+    }
+
+    @Test
+    void tornFinalRecord_isIgnoredOnReplay() throws StorageException, IOException {
+        Files.writeString(journal, "U,p1,Ann,ann@test.com,pwd,true,false,false\nU,p2,Be");
+
+        JournalRepository<Patient> repo = new JournalRepository<>(journal.toString(), PatientRepository.MAPPER);
+        assertEquals(1, repo.findAll().size());
+
+        repo.save(new Patient("p3", "Cat", "cat@test.com", "pwd", true, false));
+        repo.close();
+
+        JournalRepository<Patient> reopened = new JournalRepository<>(journal.toString(), PatientRepository.MAPPER);
+        assertTrue(reopened.findById("p3").isPresent());
+        reopened.close();
+    }
+
+    @Test
+    void compact_keepsOneRecordPerLiveEntity() throws StorageException, IOException {
+        JournalRepository<Patient> repo = new JournalRepository<>(journal.toString(), PatientRepository.MAPPER, 0.9);
+        Patient p = new Patient("p1", "Ann", "ann@test.com", "pwd", true, false);
+        for (int i = 0; i < 50; i++) {
+            p.setMarketingOptIn(i % 2 == 0);
+            repo.save(p);
+        }
+
+        repo.compact();
+
+        assertEquals(1, Files.readAllLines(journal).size());
+        assertEquals(0, repo.getDeadRecordCount());
+        assertFalse(repo.findById("p1").orElseThrow().isMarketingOptIn());
+        repo.close();
+    }
+
+    @Test
+    void backgroundCompaction_runsPastTheThresholdAndAgainAfterAFailure() throws Exception {
+        JournalRepository<Patient> repo = new JournalRepository<>(journal.toString(), PatientRepository.MAPPER, 0.5);
+        Patient p = new Patient("p1", "Ann", "ann@test.com", "pwd", true, false);
+
+        // a directory where the compaction file goes: every compaction fails
+        Path blocker = tempDir.resolve("patients.journal.compact");
+        Files.createDirectory(blocker);
+        Files.createFile(blocker.resolve("in-the-way"));
+        for (int i = 0; i < 120; i++) {
+            repo.save(p);
+        }
+        // queued behind the background run, so that one has finished when this fails
+        assertThrows(StorageException.class, repo::compact);
+        assertEquals(119, repo.getDeadRecordCount());
+        assertEquals(120, Files.readAllLines(journal).size());
+
+        Files.delete(blocker.resolve("in-the-way"));
+        Files.delete(blocker);
+        repo.save(p);
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (repo.getDeadRecordCount() > 50 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(repo.getDeadRecordCount() <= 50);
+
+        repo.save(p);
+        repo.close();
+        JournalRepository<Patient> reopened = new JournalRepository<>(journal.toString(), PatientRepository.MAPPER);
+        assertEquals(List.of("p1"), reopened.findAll().stream().map(Patient::getId).toList());
+        assertTrue(Files.readAllLines(journal).size() <= 52);
+        reopened.close();
+    }
+}
@@ -0,0 +1,75 @@
+package test;
+
+import model.TreatmentType;
+import org.junit.jupiter.api.*;
+import repository.TreatmentTypeRepository;
+import service.PriceCatalog;
+import service.PriceCatalogService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PriceCatalogServiceTest {
+
+    private Path tempDir;
+    private Path typeCsv;
+    private PriceCatalogService catalogService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("mms-test-catalog");
+        typeCsv = tempDir.resolve("treatment_types.csv");
+        Files.write(typeCsv, List.of("tt-1,Filling,50.0,true"));
+
+        catalogService = new PriceCatalogService(new TreatmentTypeRepository(typeCsv.toString()));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        catalogService.close();
+        Files.walk(tempDir)
+                .sorted((a, b) -> b.compareTo(a))
+                .forEach(p -> {
+                    try { Files.deleteIfExists(p); } catch (IOException ignored) {}
+                });
+    }
+
+    @Test
+    void snapshotsAreImmutableAndVersionsMoveForward() throws Exception {
+        PriceCatalog first = catalogService.current();
+        first.find("tt-1").orElseThrow().setBasePrice(1.0);
+        assertEquals(50.0, catalogService.current().find("tt-1").orElseThrow().getBasePrice());
+
+        catalogService.put(new TreatmentType("tt-2", "Crown", 400.0, true));
+        PriceCatalog second = catalogService.current();
+        assertTrue(second.getVersion() > first.getVersion());
+        assertTrue(first.find("tt-2").isEmpty());
+        assertEquals(400.0, second.find("tt-2").orElseThrow().getBasePrice());
+
+        // reloading an unchanged file keeps the current snapshot
+        catalogService.remove("tt-2");
+        PriceCatalog third = catalogService.current();
+        assertSame(third, catalogService.reload());
+    }
+
+    @Test
+    void externalEditIsPickedUpByTheWatcher() throws Exception {
+        long before = catalogService.current().getVersion();
+        catalogService.watch(typeCsv);
+
+        Files.write(typeCsv, List.of("tt-1,Filling,65.0,true"));
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        // the watcher may catch the file half-written first; wait for the final reload
+        while (catalogService.current().find("tt-1").map(TreatmentType::getBasePrice).orElse(0.0) != 65.0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(65.0, catalogService.current().find("tt-1").orElseThrow().getBasePrice());
+        assertTrue(catalogService.current().getVersion() > before);
+    }
+}
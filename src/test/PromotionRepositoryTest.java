@@ -0,0 +1,133 @@
+package test;
+
+import model.Promotion;
+import org.junit.jupiter.api.*;
+import repository.PromotionRepository;
+import service.PromotionScheduler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PromotionRepositoryTest {
+
+    private Path tempDir;
+    private Path promotionCsv;
+    private PromotionRepository repository;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("mms-test-promotion-repo");
+        promotionCsv = tempDir.resolve("promotions.csv");
+        repository = new PromotionRepository(promotionCsv.toString());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .sorted((a, b) -> b.compareTo(a))
+                .forEach(p -> {
+                    try { Files.deleteIfExists(p); } catch (IOException ignored) {}
+                });
+    }
+
+    @Test
+    void findActiveOn_matchesAFullScanForEveryDay() throws Exception {
+        Random random = new Random(42);
+        LocalDate origin = LocalDate.of(2024, 1, 1);
+        List<Promotion> promotions = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            LocalDate start = origin.plusDays(random.nextInt(365));
+            LocalDate end = start.plusDays(random.nextInt(45));
+            promotions.add(new Promotion("promo-" + i, "Promo " + i, "msg", start, end, i % 7 != 0));
+        }
+        repository.saveAll(promotions);
+
+        for (int day = -5; day < 420; day++) {
+            LocalDate d = origin.plusDays(day);
+            Set<String> expected = promotions.stream()
+                    .filter(p -> p.isActive() && !d.isBefore(p.getStartDate()) && !d.isAfter(p.getEndDate()))
+                    .map(Promotion::getId)
+                    .collect(Collectors.toSet());
+            List<Promotion> actual = repository.findActiveOn(d);
+            assertEquals(expected, actual.stream().map(Promotion::getId).collect(Collectors.toSet()), d.toString());
+            assertEquals(expected.size(), actual.size());
+        }
+    }
+
+    @Test
+    void nextBoundary_andExternalEditsAreReflected() throws Exception {
+        repository.save(new Promotion("p1", "Spring", "msg",
+                LocalDate.of(2024, 3, 1), LocalDate.of(2024, 3, 31), true));
+        assertEquals(Optional.of(LocalDate.of(2024, 3, 1)), repository.nextBoundaryAfter(LocalDate.of(2024, 2, 1)));
+        assertEquals(Optional.of(LocalDate.of(2024, 4, 1)), repository.nextBoundaryAfter(LocalDate.of(2024, 3, 1)));
+        assertEquals(Optional.empty(), repository.nextBoundaryAfter(LocalDate.of(2024, 4, 1)));
+
+        Files.write(promotionCsv, List.of("p2,Summer,msg,2024-06-01,2024-06-30,true"));
+        assertTrue(repository.findActiveOn(LocalDate.of(2024, 3, 10)).isEmpty());
+        assertEquals("p2", repository.findActiveOn(LocalDate.of(2024, 6, 10)).get(0).getId());
+    }
+
+    @Test
+    void scheduler_startsAndEndsPromotionsAsTheyChange() throws Exception {
+        LocalDate today = LocalDate.of(2024, 5, 10);
+        Clock clock = Clock.fixed(today.atTime(12, 0).toInstant(ZoneOffset.UTC), ZoneOffset.UTC);
+        repository.save(new Promotion("running", "Now", "msg", today.minusDays(3), today.plusDays(3), true));
+        repository.save(new Promotion("later", "Later", "msg", today.plusDays(5), today.plusDays(9), true));
+
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        try (PromotionScheduler scheduler = new PromotionScheduler(repository, clock)) {
+            scheduler.addListener(new PromotionScheduler.Listener() {
+                @Override
+                public void started(Promotion promotion) {
+                    events.add("start " + promotion.getId());
+                }
+
+                @Override
+                public void ended(Promotion promotion) {
+                    events.add("end " + promotion.getId());
+                }
+            });
+            scheduler.refresh();
+            assertEquals(List.of("start running"), events);
+
+            // a write wakes the scheduler without a file poll
+            repository.save(new Promotion("running", "Now", "msg", today.minusDays(3), today.minusDays(1), true));
+            repository.save(new Promotion("flash", "Flash", "msg", today, today, true));
+            scheduler.refresh();
+
+            assertEquals(List.of("start running", "end running", "start flash"), events);
+            assertEquals(List.of("flash"),
+                    scheduler.getRunning().stream().map(Promotion::getId).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void scheduler_picksUpExternalEditsThroughTheWatcher() throws Exception {
+        LocalDate today = LocalDate.of(2024, 5, 10);
+        Clock clock = Clock.fixed(today.atTime(12, 0).toInstant(ZoneOffset.UTC), ZoneOffset.UTC);
+        repository.save(new Promotion("running", "Now", "msg", today.minusDays(3), today.plusDays(3), true));
+
+        try (PromotionScheduler scheduler = new PromotionScheduler(repository, clock)) {
+            scheduler.refresh();
+            scheduler.watch(promotionCsv);
+
+            Files.write(promotionCsv, List.of("edited,Edited,msg,2024-05-01,2024-05-31,true"));
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!scheduler.getRunning().stream().map(Promotion::getId).toList().equals(List.of("edited"))
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(List.of("edited"),
+                    scheduler.getRunning().stream().map(Promotion::getId).collect(Collectors.toList()));
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package test;
+
+import exception.NotificationException;
+import exception.StorageException;
+import model.Patient;
+import model.Treatment;
+import model.TreatmentEntry;
+import model.TreatmentStatus;
+import org.junit.jupiter.api.*;
+import repository.PatientRepository;
+import repository.TreatmentRepository;
+import service.AudienceIndex;
+import service.FileNotifier;
+import service.PatientService;
+import service.PromotionDispatcher;
+import service.PromotionLogWriter;
+import service.PromotionService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PromotionServiceTest {
+
+    private Path tempDir;
+    private Path logCsv;
+    private PatientRepository patientRepository;
+    private PatientService patientService;
+    private TreatmentRepository treatmentRepository;
+    private AudienceIndex audienceIndex;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("mms-test-promotion");
+        Path patientCsv = tempDir.resolve("patients.csv");
+        Files.createFile(patientCsv);
+        logCsv = tempDir.resolve("promotion_log.csv");
+
+        patientRepository = new PatientRepository(patientCsv.toString());
+        patientService = new PatientService(patientRepository);
+        treatmentRepository = new TreatmentRepository(tempDir.resolve("treatments.csv").toString(),
+                tempDir.resolve("treatment_entries.csv").toString());
+        audienceIndex = new AudienceIndex(patientRepository, treatmentRepository);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .sorted((a, b) -> b.compareTo(a))
+                .forEach(p -> {
+                    try { Files.deleteIfExists(p); } catch (IOException ignored) {}
+                });
+    }
+
+    @Test
+    void sendPromotion_deliversToOptedInPatientsAndLogsEachOutcome() throws Exception {
+        for (int i = 0; i < 7; i++) {
+            patientService.registerNewPatient("P" + i, "p" + i + "@test.com", "pwd", i != 3);
+        }
+        Path outbox = tempDir.resolve("outbox.csv");
+        PromotionService service = new PromotionService(patientRepository, audienceIndex,
+                new PromotionDispatcher(new FileNotifier(outbox.toString()), 2, 4),
+                new PromotionLogWriter(logCsv.toString()));
+
+        List<Integer> progress = new ArrayList<>();
+        int delivered = service.sendPromotionToOptInPatients("Spring", "10% off", progress::add);
+        service.close();
+
+        assertEquals(6, delivered);
+        assertEquals(List.of(4, 6), progress);
+        assertEquals(6, Files.readAllLines(outbox).size());
+        List<String> log = Files.readAllLines(logCsv);
+        assertEquals(6, log.size());
+        assertTrue(log.stream().allMatch(line -> line.endsWith(",SENT")));
+        assertTrue(log.stream().noneMatch(line -> line.contains("p3@test.com")));
+    }
+
+    @Test
+    void segments_combineFlagsAndRecentTreatmentHistory() throws Exception {
+        Patient a = patientService.registerNewPatient("A", "a@test.com", "pwd", true);
+        Patient b = patientService.registerNewPatient("B", "b@test.com", "pwd", true);
+        Patient c = patientService.registerWalkInPatient("C", "c@test.com");
+        Patient d = patientService.registerNewPatient("D", "d@test.com", "pwd", false);
+        patientService.flagNonPaying(b.getId());
+        patientService.updateMarketingPreference(c.getId(), true);
+
+        treatmentRepository.save(treatment("t-1", a, "tt-1", 10));
+        treatmentRepository.save(treatment("t-2", c, "tt-1", 200));
+        treatmentRepository.save(treatment("t-3", d, "tt-2", 5));
+
+        assertEquals(Set.of(a.getId(), c.getId()),
+                audienceIndex.resolve("optedIn AND registered AND NOT flaggedNonPaying OR optedIn AND NOT registered"));
+        assertEquals(Set.of(a.getId()),
+                audienceIndex.resolve("optedIn and registered and not flaggedNonPaying"));
+        assertEquals(Set.of(a.getId()), audienceIndex.resolve("type(tt-1, 90)"));
+        assertEquals(Set.of(a.getId(), c.getId()), audienceIndex.resolve("type(tt-1)"));
+        assertEquals(Set.of(b.getId(), d.getId()), audienceIndex.resolve("NOT type(tt-1)"));
+        assertEquals(2, audienceIndex.count("(type(tt-1, 90) OR type(tt-2, 90)) AND registered"));
+
+        // changes after the first query are picked up through the repository listeners
+        patientService.flagNonPaying(a.getId());
+        treatmentRepository.delete("t-3");
+        treatmentRepository.save(treatment("t-4", b, "tt-2", 1));
+        assertTrue(audienceIndex.resolve("optedIn AND registered AND NOT flaggedNonPaying").isEmpty());
+        assertEquals(Set.of(b.getId()), audienceIndex.resolve("type(tt-2)"));
+
+        assertThrows(IllegalArgumentException.class, () -> audienceIndex.resolve("optedIn AND"));
+        assertThrows(IllegalArgumentException.class, () -> audienceIndex.resolve("vip"));
+    }
+
+    @Test
+    void typeHistory_answersTheSameForSparseAndDenseDays() throws Exception {
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            patients.add(patientService.registerNewPatient("P" + i, "p" + i + "@test.com", "pwd", true));
+        }
+        // one crowded day, one with a single late patient, and repeats on both
+        Set<String> recent = new HashSet<>();
+        List<Treatment> treatments = new ArrayList<>();
+        for (int i = 0; i < patients.size(); i += 2) {
+            treatments.add(treatment("t-" + i, patients.get(i), "tt-1", 3));
+            treatments.add(treatment("r-" + i, patients.get(i), "tt-1", 3));
+            recent.add(patients.get(i).getId());
+        }
+        Patient last = patients.get(patients.size() - 1);
+        treatments.add(treatment("t-old", last, "tt-1", 50));
+        treatments.add(treatment("r-old", last, "tt-1", 50));
+        treatmentRepository.saveAll(treatments);
+
+        assertEquals(recent, audienceIndex.resolve("type(tt-1, 10)"));
+        Set<String> all = new HashSet<>(recent);
+        all.add(last.getId());
+        assertEquals(all, audienceIndex.resolve("type(tt-1)"));
+        assertEquals(Set.of(last.getId()), audienceIndex.resolve("type(tt-1) AND NOT type(tt-1, 10)"));
+    }
+
+    @Test
+    void segments_followFilesEditedByHand() throws Exception {
+        Patient a = patientService.registerNewPatient("A", "a@test.com", "pwd", true);
+        treatmentRepository.save(treatment("t-1", a, "tt-1", 3));
+        assertEquals(Set.of(a.getId()), audienceIndex.resolve("optedIn AND type(tt-1)"));
+
+        Patient hand = new Patient("p-hand", "H", "h@test.com", "pwd", true, true);
+        Files.write(tempDir.resolve("patients.csv"), List.of(PatientRepository.MAPPER.toCsv(hand)),
+                StandardOpenOption.APPEND);
+        assertEquals(Set.of(a.getId(), hand.getId()), audienceIndex.resolve("optedIn"));
+
+        Files.write(tempDir.resolve("treatments.csv"), List.of());
+        Files.write(tempDir.resolve("treatment_entries.csv"), List.of());
+        assertTrue(audienceIndex.resolve("type(tt-1)").isEmpty());
+
+        // writes made by the application afterwards still arrive through the listeners
+        treatmentRepository.save(treatment("t-2", hand, "tt-1", 1));
+        assertEquals(Set.of(hand.getId()), audienceIndex.resolve("type(tt-1)"));
+    }
+
+    private static Treatment treatment(String id, Patient patient, String typeId, int daysAgo) {
+        Treatment t = new Treatment(id, patient.getId(), "cln-1");
+        t.setStatus(TreatmentStatus.NEW_TREATMENT);
+        t.setCreatedAt(LocalDateTime.now().minusDays(daysAgo));
+        t.addEntry(new TreatmentEntry(id, typeId, 1, ""));
+        return t;
+    }
+
+    @Test
+    void resendingACampaign_skipsPatientsAlreadyReached() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            patientService.registerNewPatient("P" + i, "p" + i + "@test.com", "pwd", true);
+        }
+        Path outbox = tempDir.resolve("outbox.csv");
+        PromotionService service = new PromotionService(patientRepository, audienceIndex,
+                new PromotionDispatcher(new FileNotifier(outbox.toString())),
+                new PromotionLogWriter(logCsv.toString()));
+
+        assertEquals(5, service.sendPromotionToOptInPatients("Spring", "10% off"));
+        assertEquals(0, service.sendPromotionToOptInPatients("Spring", "10% off"));
+        assertEquals(5, service.sendPromotionToOptInPatients("Summer", "15% off"));
+        service.close();
+
+        // the send record outlives the service; only the new patient is reached
+        Patient late = patientService.registerNewPatient("Late", "late@test.com", "pwd", true);
+        PromotionService restarted = new PromotionService(patientRepository, audienceIndex,
+                new PromotionDispatcher(new FileNotifier(outbox.toString())),
+                new PromotionLogWriter(logCsv.toString()));
+        assertEquals(1, restarted.sendPromotionToOptInPatients("spring", "10% off"));
+        restarted.close();
+
+        List<String> outboxRows = Files.readAllLines(outbox);
+        assertEquals(11, outboxRows.size());
+        assertTrue(outboxRows.get(10).startsWith(late.getEmail()));
+        assertTrue(Files.list(tempDir.resolve("promotion_campaigns"))
+                .anyMatch(p -> p.toString().endsWith(".bloom")));
+    }
+
+    @Test
+    void logWriter_groupsRowsAndDrainsEverythingOnClose() throws Exception {
+        PromotionLogWriter writer = new PromotionLogWriter(logCsv.toString(), 16, 10, 20);
+        List<Thread> senders = new ArrayList<>();
+        for (int s = 0; s < 4; s++) {
+            int sender = s;
+            Thread t = new Thread(() -> {
+                for (int i = 0; i < 250; i++) {
+                    try {
+                        writer.append(sender + "," + i);
+                    } catch (StorageException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            senders.add(t);
+            t.start();
+        }
+        for (Thread t : senders) {
+            t.join();
+        }
+        writer.append("last");
+        writer.flush();
+        assertEquals(1001, Files.readAllLines(logCsv).size());
+
+        writer.append("after-flush");
+        writer.close();
+        List<String> rows = Files.readAllLines(logCsv);
+        assertEquals(1002, rows.size());
+        assertEquals("after-flush", rows.get(rows.size() - 1));
+        assertThrows(StorageException.class, () -> writer.append("closed"));
+    }
+
+    @Test
+    void sendPromotion_boundsConcurrencyAndReportsFailures() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            patientService.registerNewPatient("P" + i, "p" + i + "@test.com", "pwd", true);
+        }
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        PromotionDispatcher dispatcher = new PromotionDispatcher((Patient recipient, String title, String message) -> {
+            int now = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(now, Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            if (recipient.getEmail().startsWith("p1")) {
+                throw new NotificationException("mailbox full");
+            }
+        }, 3, 5);
+        PromotionService service = new PromotionService(patientRepository, audienceIndex, dispatcher,
+                new PromotionLogWriter(logCsv.toString()));
+
+        int delivered = service.sendPromotionToOptInPatients("Spring", "10% off");
+        service.close();
+
+        // p1 and p10..p19 fail
+        assertEquals(9, delivered);
+        assertTrue(maxInFlight.get() <= 3, "max in flight was " + maxInFlight.get());
+        List<String> log = Files.readAllLines(logCsv);
+        assertEquals(20, log.size());
+        assertEquals(11, log.stream().filter(line -> line.endsWith(",FAILED")).count());
+    }
+}
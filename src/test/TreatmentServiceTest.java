@@ -11,16 +11,35 @@ import model.TreatmentStatus;
 import model.TreatmentType;
 import org.junit.jupiter.api.*;
 import repository.ClinicianRepository;
+import repository.CommitLogs;
+import repository.CommitStats;
+import repository.IndexedPatientRepository;
 import repository.PatientRepository;
 import repository.TreatmentRepository;
 import repository.TreatmentTypeRepository;
+import repository.UnitOfWork;
+import service.ActivityReport;
+import service.BalanceLedger;
+import service.CostingSummary;
 import service.PatientService;
+import service.PriceCatalogService;
 import service.TreatmentService;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -127,6 +146,22 @@ class TreatmentServiceTest {
         );
     }
 
+    @Test
+    void costTreatment_withUnknownType_isRejectedLikeBulkCosting() throws Exception {
+        Treatment t = treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+        treatmentService.recordAssessment(t.getId(), List.of(
+                new TreatmentEntry(t.getId(), testType.getId(), 2, ""),
+                new TreatmentEntry(t.getId(), "tt-missing", 1, "")));
+
+        assertThrows(InvalidTreatmentStateException.class, () -> treatmentService.costTreatment(t.getId()));
+
+        Treatment loaded = treatmentService.getTreatmentById(t.getId());
+        assertEquals(0.0, loaded.getTotalCost());
+        assertEquals(0.0, treatmentService.getOutstandingBalance(testPatient.getId()));
+        assertEquals("Unknown treatment type: tt-missing",
+                treatmentService.costAllAssessed().getFailures().get(t.getId()));
+    }
+
     @Test
     void costTreatment_onAssessedTreatment_calculatesTotal() throws StorageException, InvalidTreatmentStateException {
         Treatment t = treatmentService.createNewTreatment(testPatient, testClinician, testType, 2);
@@ -141,6 +176,312 @@ class TreatmentServiceTest {
         assertEquals(TreatmentStatus.TREATMENT_ASSESSED, loaded.getStatus());
     }
 
+    @Test
+    void costTreatment_recordsCatalogVersion_andPricesFromLatestCatalog() throws Exception {
+        Treatment t1 = treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+        treatmentService.assessTreatment(t1.getId(), "");
+        treatmentService.costTreatment(t1.getId());
+        long firstVersion = treatmentService.getTreatmentById(t1.getId()).getPricedCatalogVersion();
+        assertTrue(firstVersion > 0);
+
+        TreatmentType xray = treatmentService.addTreatmentType("X-Ray", 40.0);
+        Treatment t2 = treatmentService.allocateTreatment(testPatient.getId(), testClinician.getId(),
+                List.of(xray.getId()));
+        treatmentService.assessTreatment(t2.getId(), "");
+
+        assertEquals(40.0, treatmentService.costTreatment(t2.getId()), 0.0001);
+        assertTrue(treatmentService.getTreatmentById(t2.getId()).getPricedCatalogVersion() > firstVersion);
+    }
+
+    @Test
+    void costAllAssessed_costsPendingInOneBatchAndReportsFailures() throws Exception {
+        Treatment t1 = treatmentService.createNewTreatment(testPatient, testClinician, testType, 2);
+        Treatment t2 = treatmentService.createNewTreatment(testPatient, testClinician, testType, 3);
+        Treatment unknownType = treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+        Treatment untouched = treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+        treatmentService.assessTreatment(t1.getId(), "");
+        treatmentService.assessTreatment(t2.getId(), "");
+        unknownType.getEntries().get(0).setTreatmentTypeId("tt-missing");
+        treatmentRepository.save(markAssessed(unknownType));
+
+        CostingSummary summary = treatmentService.costAllAssessed();
+
+        assertEquals(2, summary.getCostedCount());
+        assertEquals(500.0, summary.getTotal(), 0.0001);
+        assertEquals(List.of(unknownType.getId()), List.copyOf(summary.getFailures().keySet()));
+        assertEquals(200.0, treatmentService.getTreatmentById(t1.getId()).getTotalCost(), 0.0001);
+        assertEquals(summary.getCatalogVersion(),
+                treatmentService.getTreatmentById(t2.getId()).getPricedCatalogVersion());
+        assertEquals(0.0, treatmentService.getTreatmentById(untouched.getId()).getTotalCost());
+        assertEquals(List.of(unknownType.getId()), treatmentService.getAssessedTreatmentsPendingCosting()
+                .stream().map(Treatment::getId).toList());
+    }
+
+    @Test
+    void outstandingBalances_followCostingAndPaymentAndSurviveRestart() throws Exception {
+        Path ledgerCsv = tempDir.resolve("patient_balances.csv");
+        TreatmentService withLedger = new TreatmentService(treatmentRepository, treatmentTypeRepository,
+                patientRepository, clinicianRepository, new PriceCatalogService(treatmentTypeRepository),
+                new BalanceLedger(treatmentRepository, ledgerCsv.toString()));
+        Patient other = patientService.registerNewPatient("Other", "other@test.com", "pwd", false);
+
+        Treatment a = withLedger.createNewTreatment(testPatient, testClinician, testType, 1);
+        Treatment b = withLedger.createNewTreatment(testPatient, testClinician, testType, 2);
+        Treatment c = withLedger.createNewTreatment(other, testClinician, testType, 4);
+        for (Treatment t : List.of(a, b, c)) {
+            withLedger.assessTreatment(t.getId(), "");
+        }
+        withLedger.costTreatment(a.getId());
+        assertEquals(100.0, withLedger.getOutstandingBalance(testPatient.getId()), 0.0001);
+
+        withLedger.costAllAssessed();
+        assertEquals(300.0, withLedger.getOutstandingBalance(testPatient.getId()), 0.0001);
+        assertEquals(List.of(other.getId(), testPatient.getId()),
+                List.copyOf(withLedger.getTopDebtors(10).keySet()));
+
+        withLedger.markTreatmentAsPaid(c.getId());
+        assertEquals(0.0, withLedger.getOutstandingBalance(other.getId()));
+        assertEquals(List.of(testPatient.getId()), List.copyOf(withLedger.getTopDebtors(10).keySet()));
+
+        // a fresh ledger reads the persisted balances; a rebuild from history agrees
+        BalanceLedger reopened = new BalanceLedger(treatmentRepository, ledgerCsv.toString());
+        assertEquals(300.0, reopened.balanceOf(testPatient.getId()), 0.0001);
+        reopened.rebuild();
+        assertEquals(Map.of(testPatient.getId(), 300.0), reopened.topDebtors(10));
+    }
+
+    @Test
+    void outstandingBalances_countEveryWriterOnceAndRebuildWhenStale() throws Exception {
+        Path ledgerCsv = tempDir.resolve("patient_balances.csv");
+        BalanceLedger ledger = new BalanceLedger(treatmentRepository, ledgerCsv.toString());
+        TreatmentService withLedger = new TreatmentService(treatmentRepository, treatmentTypeRepository,
+                patientRepository, clinicianRepository, new PriceCatalogService(treatmentTypeRepository), ledger);
+        List<Treatment> treatments = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Treatment t = withLedger.createNewTreatment(testPatient, testClinician, testType, 1);
+            withLedger.assessTreatment(t.getId(), "");
+            treatments.add(t);
+        }
+        assertEquals(0.0, ledger.balanceOf(testPatient.getId()));
+
+        // each treatment costed from two threads at once still counts once
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(4);
+        try {
+            List<java.util.concurrent.Future<?>> costings = new ArrayList<>();
+            for (Treatment t : treatments) {
+                for (int copy = 0; copy < 2; copy++) {
+                    costings.add(pool.submit(() -> {
+                        try {
+                            withLedger.costTreatment(t.getId());
+                        } catch (InvalidTreatmentStateException e) {
+                            // the other copy got there first
+                        }
+                        return null;
+                    }));
+                }
+            }
+            for (java.util.concurrent.Future<?> costing : costings) {
+                costing.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(800.0, ledger.balanceOf(testPatient.getId()), 0.0001);
+
+        // writes straight to the repository are counted too
+        treatmentRepository.delete(treatments.get(0).getId());
+        Treatment paid = treatmentRepository.findById(treatments.get(1).getId()).orElseThrow();
+        paid.setPaid(true);
+        treatmentRepository.saveAll(List.of(paid));
+        assertEquals(600.0, ledger.balanceOf(testPatient.getId()), 0.0001);
+        assertEquals(600.0, new BalanceLedger(treatmentRepository, ledgerCsv.toString())
+                .balanceOf(testPatient.getId()), 0.0001);
+
+        // a write the ledger never saw leaves its checksum behind, so the next load rebuilds
+        new TreatmentRepository(treatmentCsv.toString(), treatmentEntriesCsv.toString())
+                .delete(treatments.get(2).getId());
+        assertEquals(500.0, new BalanceLedger(treatmentRepository, ledgerCsv.toString())
+                .balanceOf(testPatient.getId()), 0.0001);
+    }
+
+    @Test
+    void getActivityReport_groupsRevenueAndCountsWithinRange() throws Exception {
+        TreatmentType xray = new TreatmentType("tt-2", "X-ray", 40.0, true);
+        treatmentTypeRepository.save(xray);
+        Clinician second = new Clinician("cln-2", "Dr. Second", "cln2@test.com", "pwd", "Physiotherapy");
+        clinicianRepository.save(second);
+
+        Treatment jan = treatmentService.createNewTreatment(testPatient, testClinician, testType, 2);
+        jan.addEntry(new TreatmentEntry(jan.getId(), xray.getId(), 1, ""));
+        Treatment feb = treatmentService.createNewTreatment(testPatient, second, testType, 1);
+        Treatment uncosted = treatmentService.createNewTreatment(testPatient, second, testType, 1);
+        Treatment outOfRange = treatmentService.createNewTreatment(testPatient, testClinician, testType, 5);
+        jan.setCreatedAt(LocalDateTime.of(2024, 1, 15, 9, 0));
+        feb.setCreatedAt(LocalDateTime.of(2024, 2, 3, 9, 0));
+        uncosted.setCreatedAt(LocalDateTime.of(2024, 2, 20, 9, 0));
+        outOfRange.setCreatedAt(LocalDateTime.of(2024, 3, 1, 9, 0));
+        treatmentRepository.saveAll(List.of(jan, feb, uncosted, outOfRange));
+        for (Treatment t : List.of(jan, feb, outOfRange)) {
+            treatmentService.assessTreatment(t.getId(), "");
+            treatmentService.costTreatment(t.getId());
+        }
+
+        ActivityReport report = treatmentService.getActivityReport(
+                LocalDate.of(2024, 1, 1), LocalDate.of(2024, 2, 29));
+
+        assertEquals(2, report.getOverall().getCount());
+        assertEquals(340.0, report.getOverall().getSum(), 0.0001);
+        assertEquals(170.0, report.getOverall().getAverage(), 0.0001);
+        assertEquals(240.0, report.getByClinician().get("cln-1").getSum(), 0.0001);
+        assertEquals(100.0, report.getByClinician().get("cln-2").getSum(), 0.0001);
+        assertEquals(300.0, report.getByTreatmentType().get("tt-1").getSum(), 0.0001);
+        assertEquals(40.0, report.getByTreatmentType().get("tt-2").getSum(), 0.0001);
+        assertEquals(List.of(YearMonth.of(2024, 1), YearMonth.of(2024, 2)),
+                List.copyOf(report.getByMonth().keySet()));
+        assertEquals(2L, report.getCountByStatus().get(TreatmentStatus.TREATMENT_ASSESSED));
+        assertEquals(1L, report.getCountByStatus().get(TreatmentStatus.NEW_TREATMENT));
+    }
+
+    @Test
+    void getTreatmentsForPatient_attachesPatientAndClinician() throws Exception {
+        Clinician second = new Clinician("cln-2", "Dr. Second", "cln2@test.com", "pwd", "Physiotherapy");
+        clinicianRepository.save(second);
+        treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+        treatmentService.createNewTreatment(testPatient, second, testType, 1);
+        treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+
+        List<Treatment> treatments = treatmentService.getTreatmentsForPatient(testPatient.getId());
+
+        assertEquals(3, treatments.size());
+        for (Treatment t : treatments) {
+            assertEquals("Test Patient", t.getPatient().getName());
+            assertEquals(t.getClinicianId(), t.getClinician().getId());
+        }
+        assertEquals("Dr. Second", treatments.get(1).getClinician().getName());
+    }
+
+    @Test
+    void assignClinician_picksLeastLoadedAndFollowsStatusChanges() throws Exception {
+        Clinician second = new Clinician("cln-2", "Dr. Second", "cln2@test.com", "pwd", "physiotherapy");
+        clinicianRepository.save(second);
+        Treatment first = treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+
+        assertEquals("cln-2", treatmentService.assignClinician("PHYSIOTHERAPY").orElseThrow().getId());
+        treatmentService.createNewTreatment(testPatient, second, testType, 1);
+        treatmentService.createNewTreatment(testPatient, second, testType, 1);
+
+        // cln-1 has one open case, cln-2 has two
+        assertEquals("cln-1", treatmentService.assignClinician("Physiotherapy").orElseThrow().getId());
+
+        // a clinician added later joins with no open cases
+        clinicianRepository.save(new Clinician("cln-3", "Dr. Third", "cln3@test.com", "pwd", "Physiotherapy"));
+        assertEquals("cln-3", treatmentService.assignClinician("Physiotherapy").orElseThrow().getId());
+        clinicianRepository.delete("cln-3");
+
+        // paying closes cln-1's only open case
+        Treatment costed = treatmentService.getTreatmentById(first.getId());
+        costed.setTotalCost(10.0);
+        costed.setPaid(true);
+        treatmentRepository.save(costed);
+        assertEquals("cln-1", treatmentService.assignClinician("Physiotherapy").orElseThrow().getId());
+        assertTrue(treatmentService.assignClinician("Cardiology").isEmpty());
+    }
+
+    @Test
+    void assignClinician_seesFilesEditedByHand() throws Exception {
+        clinicianRepository.save(new Clinician("cln-2", "Dr. Second", "cln2@test.com", "pwd", "Physiotherapy"));
+        treatmentService.createNewTreatment(testPatient, clinicianRepository.findById("cln-2").orElseThrow(),
+                testType, 1);
+        assertEquals("cln-1", treatmentService.assignClinician("Physiotherapy").orElseThrow().getId());
+
+        Files.write(clinicianCsv, List.of(ClinicianRepository.MAPPER.toCsv(
+                        new Clinician("cln-0", "Dr. Zero", "cln0@test.com", "pwd", "Physiotherapy"))),
+                StandardOpenOption.APPEND);
+        Clinician added = treatmentService.assignClinician("Physiotherapy").orElseThrow();
+        assertEquals("cln-0", added.getId());
+
+        // cln-0 now has the only other open case; clearing the files by hand frees both
+        treatmentService.createNewTreatment(testPatient, added, testType, 1);
+        assertEquals("cln-1", treatmentService.assignClinician("Physiotherapy").orElseThrow().getId());
+        Files.write(treatmentCsv, List.of());
+        Files.write(treatmentEntriesCsv, List.of());
+        assertEquals("cln-0", treatmentService.assignClinician("Physiotherapy").orElseThrow().getId());
+    }
+
+    @Test
+    void findCliniciansBySpeciality_usesIndexForExactPrefixAndCounts() throws Exception {
+        clinicianRepository.save(new Clinician("cln-2", "Dr. Heart", "h@test.com", "pwd", "Cardiology"));
+        clinicianRepository.save(new Clinician("cln-3", "Dr. Physio", "p@test.com", "pwd", " physiotherapy "));
+
+        assertEquals(List.of("cln-1", "cln-3"), treatmentService.findCliniciansBySpeciality("PHYSIOTHERAPY")
+                .stream().map(Clinician::getId).toList());
+        assertEquals(List.of("cln-2"), treatmentService.findCliniciansBySpecialityPrefix("card")
+                .stream().map(Clinician::getId).toList());
+        assertEquals(Map.of("Cardiology", 1, "Physiotherapy", 2), clinicianRepository.countBySpeciality());
+
+        // an edit made outside the repository is picked up on the next lookup
+        List<String> rows = new ArrayList<>(Files.readAllLines(clinicianCsv));
+        rows.add("cln-4,Dr. Late,l@test.com,pwd,Cardiology");
+        Files.write(clinicianCsv, rows);
+        assertEquals(2, treatmentService.findCliniciansBySpeciality("cardiology").size());
+    }
+
+    @Test
+    void pendingCostingQueue_pagesOldestFirstAndFollowsTransitions() throws Exception {
+        List<Treatment> created = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Treatment t = treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+            t.setCreatedAt(LocalDateTime.of(2024, 1, 10 - i, 9, 0));
+            treatmentRepository.save(t);
+            created.add(t);
+        }
+        assertEquals(0, treatmentService.countPendingCosting());
+
+        for (Treatment t : created) {
+            treatmentService.assessTreatment(t.getId(), "");
+        }
+        assertEquals(5, treatmentService.countPendingCosting());
+
+        // created[4] is the oldest, created[0] the newest
+        List<Treatment> first = treatmentService.getPendingCostingPage(null, 2);
+        assertEquals(List.of(created.get(4).getId(), created.get(3).getId()),
+                first.stream().map(Treatment::getId).toList());
+        assertNotNull(first.get(0).getPatient());
+
+        treatmentService.costTreatment(created.get(2).getId());
+        List<Treatment> second = treatmentService.getPendingCostingPage(first.get(1), 2);
+        assertEquals(List.of(created.get(1).getId(), created.get(0).getId()),
+                second.stream().map(Treatment::getId).toList());
+        assertTrue(treatmentService.getPendingCostingPage(second.get(1), 2).isEmpty());
+        assertEquals(4, treatmentService.getAssessedTreatmentsPendingCosting().size());
+    }
+
+    @Test
+    void pendingCostingQueue_seesTreatmentsEditedByHand() throws Exception {
+        Treatment first = treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+        Treatment second = treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+        treatmentService.assessTreatment(first.getId(), "");
+        treatmentService.assessTreatment(second.getId(), "");
+        assertEquals(2, treatmentService.countPendingCosting());
+
+        // send the first one back by hand
+        List<String> rows = new ArrayList<>();
+        for (String row : Files.readAllLines(treatmentCsv)) {
+            rows.add(row.startsWith(first.getId() + ",")
+                    ? row.replace(TreatmentStatus.TREATMENT_ASSESSED.name(), TreatmentStatus.NEW_TREATMENT.name())
+                    : row);
+        }
+        Files.write(treatmentCsv, rows);
+
+        assertEquals(1, treatmentService.countPendingCosting());
+        assertEquals(List.of(second.getId()), treatmentService.getPendingCostingPage(null, 10).stream()
+                .map(Treatment::getId).toList());
+
+        // writes made by the application afterwards still arrive through the listener
+        treatmentService.assessTreatment(first.getId(), "");
+        assertEquals(2, treatmentService.countPendingCosting());
+    }
+
     private Treatment markAssessed(Treatment t) throws StorageException {
         t.setStatus(TreatmentStatus.TREATMENT_ASSESSED);
         treatmentRepository.save(t);
@@ -249,4 +590,377 @@ class TreatmentServiceTest {
 
         assertTrue(assessedTreatments.stream().anyMatch(t -> t.getId().equals(t2.getId())));
     }
+
+    @Test
+    void saveAllAndDeleteAll_applyWholeBatch() throws StorageException {
+        Treatment t1 = treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+        Treatment t2 = treatmentService.createNewTreatment(testPatient, testClinician, testType, 2);
+
+        t1.setStatus(TreatmentStatus.TREATMENT_ASSESSED);
+        t2.setStatus(TreatmentStatus.TREATMENT_ASSESSED);
+        treatmentRepository.saveAll(List.of(t1, t2));
+
+        List<Treatment> assessed = treatmentService.getTreatmentsByStatus(TreatmentStatus.TREATMENT_ASSESSED);
+        assertEquals(2, assessed.size());
+        assertTrue(assessed.stream().allMatch(t -> t.getEntries().size() == 1));
+
+        treatmentRepository.deleteAll(List.of(t1.getId(), t2.getId()));
+        assertTrue(treatmentRepository.findAll().isEmpty());
+    }
+
+    @Test
+    void getTreatmentsForClinicianByStatus_followsStatusChanges() throws Exception {
+        Treatment t1 = treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+        Treatment t2 = treatmentService.createNewTreatment(testPatient, testClinician, testType, 1);
+
+        treatmentService.assessTreatment(t1.getId(), "done");
+
+        List<Treatment> newOnes = treatmentService.getTreatmentsForClinicianByStatus(
+                testClinician.getId(), TreatmentStatus.NEW_TREATMENT);
+        List<Treatment> assessed = treatmentService.getTreatmentsForClinicianByStatus(
+                testClinician.getId(), TreatmentStatus.TREATMENT_ASSESSED);
+
+        assertEquals(List.of(t2.getId()), newOnes.stream().map(Treatment::getId).toList());
+        assertEquals(List.of(t1.getId()), assessed.stream().map(Treatment::getId).toList());
+        assertEquals("done", assessed.get(0).getEntries().get(0).getNotes());
+
+        treatmentRepository.delete(t1.getId());
+        assertTrue(treatmentService.getTreatmentsForClinicianByStatus(
+                testClinician.getId(), TreatmentStatus.TREATMENT_ASSESSED).isEmpty());
+    }
+
+    @Test
+    void getTreatmentById_afterExternalEdit_reindexesAndStillFindsRow() throws Exception {
+        Treatment t = treatmentService.createNewTreatment(testPatient, testClinician, testType, 4);
+        treatmentService.getTreatmentById(t.getId());
+
+        // shift every byte offset by prepending rows behind the repository's back
+        List<String> treatments = Files.readAllLines(treatmentCsv);
+        treatments.add(0, "other,p,c,NEW_TREATMENT,2024-01-01 10:00:00,0.0,false");
+        Files.write(treatmentCsv, treatments);
+        List<String> entries = Files.readAllLines(treatmentEntriesCsv);
+        entries.add(0, "other,tt-1,1,,0.0");
+        Files.write(treatmentEntriesCsv, entries);
+
+        Treatment loaded = treatmentService.getTreatmentById(t.getId());
+        assertEquals(4, loaded.getEntries().get(0).getQuantity());
+        assertTrue(treatmentRepository.findById("other").isPresent());
+    }
+
+    @Test
+    void getTreatmentById_afterExternalAppend_findsNewRowsAndEntries() throws Exception {
+        Treatment t = treatmentService.createNewTreatment(testPatient, testClinician, testType, 4);
+        treatmentService.getTreatmentById(t.getId());
+
+        // rows added past every recorded offset: a new treatment, and a second entry for t
+        List<String> treatments = Files.readAllLines(treatmentCsv);
+        treatments.add("appended,p,cln-1,NEW_TREATMENT,2024-01-01 10:00:00,0.0,false");
+        Files.write(treatmentCsv, treatments);
+        List<String> entries = Files.readAllLines(treatmentEntriesCsv);
+        entries.add("appended,tt-1,2,,0.0");
+        entries.add(t.getId() + ",tt-1,9,,0.0");
+        Files.write(treatmentEntriesCsv, entries);
+
+        Treatment appended = treatmentRepository.findById("appended").orElseThrow();
+        assertEquals(2, appended.getEntries().get(0).getQuantity());
+        assertEquals(2, treatmentService.getTreatmentById(t.getId()).getEntries().size());
+        assertEquals(2, treatmentRepository.findByClinician("cln-1").size());
+    }
+
+    @Test
+    void findAll_onMultiChunkFiles_keepsFileOrderAndEntries() throws Exception {
+        // large enough for the loader to split both files into several chunks
+        int rows = 40_000;
+        List<String> treatments = new ArrayList<>(rows);
+        List<String> entries = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            treatments.add("t-" + i + ",p-" + (i % 50) + ",cln-1,NEW_TREATMENT,2024-01-01 10:00:00,0.0,false");
+            entries.add("t-" + i + ",tt-1," + (i % 7 + 1) + ",\"note, " + i + "\",0.0");
+        }
+        // a bare CR inside a field: the mapped loader only breaks rows on '\n', whereas a
+        // line reader would split this row in two and fail to parse it
+        entries.set(rows - 1, "t-" + (rows - 1) + ",tt-1," + ((rows - 1) % 7 + 1) + ",\"note,\r" + (rows - 1) + "\",0.0");
+        Files.write(treatmentCsv, treatments);
+        Files.write(treatmentEntriesCsv, entries);
+        // the loader's minimum chunk is 1 MiB
+        assertTrue(Files.size(treatmentCsv) > 2 << 20);
+        assertTrue(Files.size(treatmentEntriesCsv) > 1 << 20);
+
+        List<Treatment> all = treatmentRepository.findAll();
+        assertEquals(rows, all.size());
+        for (int i = 0; i < rows; i++) {
+            Treatment t = all.get(i);
+            assertEquals("t-" + i, t.getId());
+            assertEquals(i == rows - 1 ? "note,\r" + i : "note, " + i, t.getEntries().get(0).getNotes());
+        }
+
+        Treatment last = treatmentService.getTreatmentById("t-" + (rows - 1));
+        assertEquals((rows - 1) % 7 + 1, last.getEntries().get(0).getQuantity());
+        assertEquals(rows / 50, treatmentRepository.findByPatient("p-3").size());
+    }
+
+    @Test
+    void stream_splitsRowsLikeFindAllAndFetchesEntriesAsItGoes() throws Exception {
+        Files.write(treatmentCsv, List.of(
+                "t-1,p-1,cln-1,NEW_TREATMENT,2024-01-01 10:00:00,0.0,false",
+                // a bare CR inside a quoted field, then a row ended CRLF by a Windows editor
+                "t-2,p-1,\"cln\r2\",NEW_TREATMENT,2024-01-02 10:00:00,0.0,false",
+                "t-3,p-2,cln-1,NEW_TREATMENT,2024-01-03 10:00:00,0.0,false\r"));
+        Files.write(treatmentEntriesCsv, List.of(
+                "t-3,tt-1,1,\"third\",0.0",
+                "t-1,tt-1,1,\"first\",0.0",
+                "t-3,tt-1,2,\"also\rthird\",0.0"));
+
+        List<Treatment> all = treatmentRepository.findAll();
+        List<Treatment> streamed;
+        try (var stream = treatmentRepository.stream()) {
+            streamed = stream.toList();
+        }
+        assertEquals(List.of("t-1", "t-2", "t-3"), all.stream().map(Treatment::getId).toList());
+        assertEquals(all.stream().map(Treatment::getId).toList(), streamed.stream().map(Treatment::getId).toList());
+        assertEquals("cln\r2", streamed.get(1).getClinicianId());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(all.get(i).getEntries().stream().map(TreatmentEntry::getNotes).toList(),
+                    streamed.get(i).getEntries().stream().map(TreatmentEntry::getNotes).toList());
+        }
+        assertEquals(List.of("third", "also\rthird"),
+                streamed.get(2).getEntries().stream().map(TreatmentEntry::getNotes).toList());
+        assertTrue(streamed.get(1).getEntries().isEmpty());
+
+        // a stream opened before a save keeps reading the files it started on
+        List<String> ids = new ArrayList<>();
+        try (var stream = treatmentRepository.stream()) {
+            var it = stream.iterator();
+            ids.add(it.next().getId());
+            treatmentRepository.delete("t-3");
+            it.forEachRemaining(t -> ids.add(t.getId() + ":" + t.getEntries().size()));
+        }
+        assertEquals(List.of("t-1", "t-2:0", "t-3:2"), ids);
+    }
+
+    @Test
+    void unitOfWork_writesNothingUntilCommitThenEachFileOnce() throws Exception {
+        List<String> saved = new ArrayList<>();
+        treatmentRepository.addListener(new repository.RepositoryListener<>() {
+            @Override
+            public void saved(Treatment treatment) {
+                saved.add(treatment.getId());
+            }
+
+            @Override
+            public void deleted(String id) {
+            }
+        });
+
+        UnitOfWork work = new UnitOfWork();
+        Treatment first = treatmentService.allocateTreatment(work, testPatient.getId(), testClinician.getId(), List.of("tt-1"));
+        Treatment second = treatmentService.allocateTreatment(work, testPatient.getId(), testClinician.getId(), List.of("tt-1"));
+        first.setStatus(TreatmentStatus.TREATMENT_ASSESSED);
+        work.save(treatmentRepository, first);
+        testPatient.setFlaggedNonPaying(true);
+        work.save(patientRepository, testPatient);
+
+        // reads go through the pending changes, the files are untouched
+        assertEquals(TreatmentStatus.TREATMENT_ASSESSED,
+                work.findById(treatmentRepository, first.getId()).orElseThrow().getStatus());
+        assertTrue(treatmentRepository.findAll().isEmpty());
+        assertTrue(Files.readAllLines(treatmentEntriesCsv).isEmpty());
+        assertFalse(patientRepository.findById(testPatient.getId()).orElseThrow().isFlaggedNonPaying());
+
+        work.commit();
+
+        // one write per treatment, in the order of their last save
+        assertEquals(List.of(second.getId(), first.getId()), saved);
+        assertEquals(TreatmentStatus.TREATMENT_ASSESSED, treatmentService.getTreatmentById(first.getId()).getStatus());
+        assertEquals(1, treatmentService.getTreatmentById(second.getId()).getEntries().size());
+        assertEquals(2, Files.readAllLines(treatmentEntriesCsv).size());
+        assertTrue(patientRepository.findById(testPatient.getId()).orElseThrow().isFlaggedNonPaying());
+        try (var files = Files.list(tempDir)) {
+            assertTrue(files.noneMatch(f -> f.toString().endsWith(".tmp") || f.toString().endsWith(".commit")));
+        }
+    }
+
+    @Test
+    void unitOfWork_writesTheBalanceLedgerInTheSameCommit() throws Exception {
+        Path ledgerCsv = tempDir.resolve("patient_balances.csv");
+        BalanceLedger ledger = new BalanceLedger(treatmentRepository, ledgerCsv.toString());
+        Treatment t = treatmentService.createNewTreatment(testPatient, testClinician, testType, 2);
+        treatmentService.assessTreatment(t.getId(), "");
+        assertEquals(0.0, ledger.balanceOf(testPatient.getId()));
+        List<String> ledgerBefore = Files.readAllLines(ledgerCsv);
+
+        UnitOfWork work = new UnitOfWork();
+        Treatment costed = work.findById(treatmentRepository, t.getId()).orElseThrow();
+        costed.setTotalCost(200.0);
+        work.save(treatmentRepository, costed);
+        assertEquals(ledgerBefore, Files.readAllLines(ledgerCsv));
+        assertEquals(0.0, ledger.balanceOf(testPatient.getId()));
+
+        work.commit();
+        assertEquals(200.0, ledger.balanceOf(testPatient.getId()), 0.0001);
+        // the ledger file was written with the treatments, so a fresh ledger agrees
+        assertEquals(200.0, new BalanceLedger(treatmentRepository, ledgerCsv.toString())
+                .balanceOf(testPatient.getId()), 0.0001);
+        assertEquals(2, Files.readAllLines(ledgerCsv).size());
+    }
+
+    @Test
+    void interruptedCommit_isFinishedWhenTheRepositoryIsOpened() throws Exception {
+        Treatment t = treatmentService.allocateTreatment(testPatient.getId(), testClinician.getId(), List.of("tt-1"));
+
+        // the same files after a power loss: the treatment rename survived, the entries one
+        // did not, and the log ends in a record whose write never completed
+        Path crashed = Files.createDirectory(tempDir.resolve("crashed"));
+        Files.copy(treatmentCsv, crashed.resolve("treatments.csv"));
+        Files.createFile(crashed.resolve("treatment_entries.csv"));
+        Files.copy(tempDir.resolve("commit.log"), crashed.resolve("commit.log"));
+        Files.write(crashed.resolve("commit.log"), new byte[]{0x43, 0x4d, 0x49},
+                java.nio.file.StandardOpenOption.APPEND);
+
+        TreatmentRepository reopened = new TreatmentRepository(
+                crashed.resolve("treatments.csv").toString(), crashed.resolve("treatment_entries.csv").toString());
+
+        Treatment loaded = reopened.findById(t.getId()).orElseThrow();
+        assertEquals(1, loaded.getEntries().size());
+        assertEquals("tt-1", loaded.getEntries().get(0).getTreatmentTypeId());
+        assertEquals(Files.readAllLines(treatmentEntriesCsv), Files.readAllLines(crashed.resolve("treatment_entries.csv")));
+        // replayed changes are forced to the data files, after which the log starts over
+        assertEquals(0, Files.size(crashed.resolve("commit.log")));
+        try (var files = Files.list(crashed)) {
+            assertEquals(List.of(), files.map(f -> f.getFileName().toString())
+                    .filter(f -> f.endsWith(".tmp"))
+                    .sorted(Comparator.naturalOrder())
+                    .collect(java.util.stream.Collectors.toList()));
+        }
+    }
+
+    @Test
+    void replay_keepsFilesEditedAfterTheLogLastWroteThem() throws Exception {
+        Patient registered = patientService.registerNewPatient("Logged", "logged@test.com", "pwd", false);
+
+        // the same files after a crash, then edited by hand before the restart
+        Path crashed = Files.createDirectory(tempDir.resolve("crashed"));
+        Files.copy(patientCsv, crashed.resolve("patients.csv"));
+        Files.copy(clinicianCsv, crashed.resolve("clinicians.csv"));
+        Files.copy(tempDir.resolve("commit.log"), crashed.resolve("commit.log"));
+        Patient hand = new Patient("p-hand", "Hand", "hand@test.com", "pwd", true, false);
+        Files.write(crashed.resolve("patients.csv"), List.of(PatientRepository.MAPPER.toCsv(hand)),
+                StandardOpenOption.APPEND);
+
+        PatientRepository reopened = new PatientRepository(crashed.resolve("patients.csv").toString());
+        assertTrue(reopened.findById(hand.getId()).isPresent());
+        assertTrue(reopened.findById(registered.getId()).isPresent());
+        assertEquals(Files.readAllLines(clinicianCsv), Files.readAllLines(crashed.resolve("clinicians.csv")));
+        assertEquals(0, Files.size(crashed.resolve("commit.log")));
+    }
+
+    @Test
+    void cleanShutdown_emptiesTheLogAndFilesKeepTheirPermissions() throws Exception {
+        Assumptions.assumeTrue(Files.getFileStore(patientCsv)
+                .supportsFileAttributeView(PosixFileAttributeView.class));
+        Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+        Files.setPosixFilePermissions(patientCsv, permissions);
+
+        patientService.registerNewPatient("Kept", "kept@test.com", "pwd", false);
+        assertEquals(permissions, Files.getPosixFilePermissions(patientCsv));
+        assertTrue(Files.size(tempDir.resolve("commit.log")) > 0);
+
+        CommitLogs.checkpointAll();
+        assertEquals(0, Files.size(tempDir.resolve("commit.log")));
+        assertTrue(patientRepository.findAll().stream().anyMatch(p -> p.getName().equals("Kept")));
+    }
+
+    @Test
+    void concurrentSaves_shareLogFlushesAndAllSurviveAReplay() throws Exception {
+        int threads = 8;
+        int savesPerThread = 25;
+        List<PatientRepository> repositories = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            repositories.add(new PatientRepository(tempDir.resolve("patients-" + i + ".csv").toString()));
+        }
+        CommitStats before = CommitStats.of(tempDir);
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(threads);
+        try {
+            List<java.util.concurrent.Future<?>> done = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                PatientRepository repo = repositories.get(i);
+                int shard = i;
+                done.add(pool.submit(() -> {
+                    for (int n = 0; n < savesPerThread; n++) {
+                        repo.save(new Patient("p-" + shard + "-" + n, "P" + n, shard + "." + n + "@test.com",
+                                "pwd", true, n % 2 == 0));
+                    }
+                    return null;
+                }));
+            }
+            for (java.util.concurrent.Future<?> f : done) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // one force of the log per batch, however many saves shared it
+        CommitStats after = CommitStats.of(tempDir);
+        long batches = after.batches() - before.batches();
+        assertEquals(threads * savesPerThread, after.commits() - before.commits());
+        assertEquals(0, after.checkpoints() - before.checkpoints());
+        assertEquals(batches, after.forces() - before.forces());
+        assertTrue(batches <= threads * savesPerThread);
+
+        // every acknowledged save is in the log: replaying it into empty files restores them all
+        Path replayed = Files.createDirectory(tempDir.resolve("replayed"));
+        Files.copy(tempDir.resolve("commit.log"), replayed.resolve("commit.log"));
+        for (int i = 0; i < threads; i++) {
+            PatientRepository restored = new PatientRepository(replayed.resolve("patients-" + i + ".csv").toString());
+            assertEquals(savesPerThread, restored.findAll().size());
+            assertEquals(repositories.get(i).findAll().size(), restored.findAll().size());
+            assertTrue(restored.findById("p-" + i + "-" + (savesPerThread - 1)).isPresent());
+        }
+    }
+
+    @Test
+    void failedRename_isRetriedByTheNextCommitThenTheLogIsCheckpointed() throws Exception {
+        Path blockedCsv = tempDir.resolve("blocked.csv");
+        IndexedPatientRepository blocked = new IndexedPatientRepository(blockedCsv.toString());
+        blocked.findAll();
+        // a non-empty directory where the file should be: its rename fails
+        Files.delete(blockedCsv);
+        Files.createDirectory(blockedCsv);
+        Files.createFile(blockedCsv.resolve("in-the-way"));
+        // the change is logged, so the save succeeds although the file cannot be replaced yet
+        blocked.save(new Patient("p-blocked", "Blocked", "blocked@test.com", "pwd", true, false));
+        assertTrue(Files.isDirectory(blockedCsv));
+
+        Files.delete(blockedCsv.resolve("in-the-way"));
+        Files.delete(blockedCsv);
+        patientService.registerNewPatient("Next", "next@test.com", "pwd", false);
+        assertTrue(Files.readString(blockedCsv).contains("p-blocked"));
+
+        // with nothing left unapplied the log is checkpointed once it is large enough
+        CommitStats before = CommitStats.of(tempDir);
+        String bulky = "x".repeat(100_000);
+        for (int i = 0; i < 12; i++) {
+            patientRepository.save(new Patient("p-bulky", bulky + i, "bulky@test.com", "pwd", false, false));
+        }
+        assertTrue(CommitStats.of(tempDir).checkpoints() > before.checkpoints());
+        assertTrue(Files.size(tempDir.resolve("commit.log")) < 1 << 20);
+    }
+
+    @Test
+    void checkpointThreshold_growsWithTheFilesItCovers() throws Exception {
+        CommitStats before = CommitStats.of(tempDir);
+        String bulky = "x".repeat(600_000);
+        // three records of a 600 KB file pass 1 MB of log but not four times the file
+        for (int i = 0; i < 3; i++) {
+            patientRepository.save(new Patient("p-bulky", bulky + i, "bulky@test.com", "pwd", false, false));
+        }
+        assertEquals(before.checkpoints(), CommitStats.of(tempDir).checkpoints());
+        assertTrue(Files.size(tempDir.resolve("commit.log")) > 1 << 20);
+
+        for (int i = 0; i < 2; i++) {
+            patientRepository.save(new Patient("p-bulky", bulky + i, "bulky@test.com", "pwd", false, false));
+        }
+        assertEquals(before.checkpoints() + 1, CommitStats.of(tempDir).checkpoints());
+    }
 }